@@ -0,0 +1,117 @@
+package eu.antidotedb.fs;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import jnr.ffi.Memory;
+import jnr.ffi.Pointer;
+import jnr.ffi.Runtime;
+
+/**
+ * Throughput of whole-block writes and reads of a file stored with each codec,
+ * for compressible (text) and incompressible (random) content. The bytes sent
+ * to and received from the in-memory Antidote stand-in are reported as the
+ * storedBytes counter, next to the file bytes written or read (fileBytes):
+ * their ratio is the compression ratio. The content cache is disabled, so that
+ * every read fetches and decodes its blocks.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CompressionBenchmark {
+
+    static final private int FILE_SIZE = 16 * 1024 * 1024;
+    static final private int IO_SIZE   = 128 * 1024;
+
+    @Param({ "NONE", "LZ4", "DEFLATE" })
+    private BlockCodec       codec;
+
+    @Param({ "text", "random" })
+    private String           content;
+
+    private FsModel          fs;
+    private String           inodeKey;
+    private Pointer          buffer;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Counters {
+        public long fileBytes;
+        public long storedBytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            fileBytes = 0;
+            storedBytes = 0;
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        fs = new FsModel(new InMemoryBackend(), new FsOptions().setCompression(codec)
+                .setBlockSize(IO_SIZE).setCacheSize(0).setMetrics(true));
+        inodeKey = fs.makeFile("/bench");
+
+        byte[] bytes = new byte[IO_SIZE];
+        if (content.equals("text")) {
+            // log-like lines
+            StringBuilder text = new StringBuilder(IO_SIZE);
+            for (int line = 0; text.length() < IO_SIZE; line++)
+                text.append(String.format("2017-11-%02d 12:%02d:%02d INFO request %d served in "
+                        + "%d ms%n", line % 30 + 1, line % 60, line * 7 % 60, line,
+                        ThreadLocalRandom.current().nextInt(1000)));
+            bytes = text.substring(0, IO_SIZE).getBytes(StandardCharsets.US_ASCII);
+        } else
+            ThreadLocalRandom.current().nextBytes(bytes);
+        buffer = Memory.allocateDirect(Runtime.getSystemRuntime(), IO_SIZE);
+        buffer.put(0, bytes, 0, IO_SIZE);
+        for (long off = 0; off < FILE_SIZE; off += IO_SIZE)
+            fs.writeFile(inodeKey, buffer, IO_SIZE, off);
+    }
+
+    @TearDown
+    public void tearDown() {
+        fs.close();
+    }
+
+    private long randomBlock() {
+        return (long) ThreadLocalRandom.current().nextInt(FILE_SIZE / IO_SIZE) * IO_SIZE;
+    }
+
+    @Benchmark
+    public int write(Counters counters) {
+        long before = fs.getMetrics().getBytesWritten();
+        int written = fs.writeFile(inodeKey, buffer, IO_SIZE, randomBlock());
+        counters.storedBytes += fs.getMetrics().getBytesWritten() - before;
+        counters.fileBytes += written;
+        return written;
+    }
+
+    @Benchmark
+    public int read(Counters counters) {
+        long before = fs.getMetrics().getBytesRead();
+        int read = fs.readFile(inodeKey, buffer, IO_SIZE, randomBlock());
+        counters.storedBytes += fs.getMetrics().getBytesRead() - before;
+        counters.fileBytes += read;
+        return read;
+    }
+}
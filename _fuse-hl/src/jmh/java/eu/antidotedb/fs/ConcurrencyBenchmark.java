@@ -0,0 +1,124 @@
+package eu.antidotedb.fs;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import jnr.ffi.Memory;
+import jnr.ffi.Pointer;
+import jnr.ffi.Runtime;
+import ru.serce.jnrfuse.struct.FileStat;
+
+/**
+ * Throughput of FsModel's reads and getattrs issued by concurrent threads, as
+ * FUSE does, against the number of connections to the in-memory Antidote
+ * stand-in. The content and attribute caches are disabled, so that every
+ * operation goes to the backend.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ConcurrencyBenchmark {
+
+    static final private int FILES     = 64;
+    static final private int FILE_SIZE = 1024 * 1024;
+    static final private int IO_SIZE   = 128 * 1024;
+
+    @Param({ "1", "4", "16" })
+    private int              connections;
+
+    // latency injected in every round-trip to the backend (us)
+    @Param({ "250" })
+    private int              latency;
+
+    private FsModel          fs;
+    private String[]         inodeKeys;
+
+    @State(Scope.Thread)
+    public static class ThreadState {
+        private final Pointer  buffer = Memory.allocateDirect(Runtime.getSystemRuntime(),
+                IO_SIZE);
+        private final FileStat stat   = new FileStat(Runtime.getSystemRuntime());
+    }
+
+    @Setup
+    public void setUp() {
+        fs = new FsModel(new InMemoryBackend(latency, TimeUnit.MICROSECONDS, connections),
+                new FsOptions().setCacheSize(0).setAttrTtl(0));
+        inodeKeys = new String[FILES];
+        Pointer content = Memory.allocateDirect(Runtime.getSystemRuntime(), FILE_SIZE);
+        for (int f = 0; f < FILES; f++) {
+            fs.makeFile("/f" + f);
+            inodeKeys[f] = fs.getInodeKey("/f" + f);
+            fs.writeFile(inodeKeys[f], content, FILE_SIZE, 0);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        fs.close();
+    }
+
+    private int read(ThreadState state) {
+        ThreadLocalRandom rnd = ThreadLocalRandom.current();
+        return fs.readFile(inodeKeys[rnd.nextInt(FILES)], state.buffer, IO_SIZE,
+                rnd.nextInt(FILE_SIZE - IO_SIZE));
+    }
+
+    private FileStat getAttr(ThreadState state) {
+        fs.getAttr(inodeKeys[ThreadLocalRandom.current().nextInt(FILES)], state.stat);
+        return state.stat;
+    }
+
+    @Benchmark
+    @Threads(1)
+    public int read1(ThreadState state) {
+        return read(state);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public int read4(ThreadState state) {
+        return read(state);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public int read16(ThreadState state) {
+        return read(state);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public FileStat getAttr1(ThreadState state) {
+        return getAttr(state);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public FileStat getAttr4(ThreadState state) {
+        return getAttr(state);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public FileStat getAttr16(ThreadState state) {
+        return getAttr(state);
+    }
+}
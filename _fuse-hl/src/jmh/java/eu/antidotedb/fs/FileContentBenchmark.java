@@ -0,0 +1,108 @@
+package eu.antidotedb.fs;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import jnr.ffi.Memory;
+import jnr.ffi.Pointer;
+import jnr.ffi.Runtime;
+
+/**
+ * Benchmarks of FsModel's content operations on a single file, backed by the
+ * in-memory Antidote stand-in.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FileContentBenchmark {
+
+    static final private String FILE_PATH   = "/bench";
+    static final private int    FILL_CHUNK  = 1024 * 1024;
+
+    // size of the file the operations are issued against
+    @Param({ "4096", "1048576", "16777216" })
+    private int                 fileSize;
+
+    // size of each read or write, 4 KiB and the usual FUSE maximum of 128 KiB
+    @Param({ "4096", "131072" })
+    private int                 ioSize;
+
+    // latency injected in every round-trip to the backend (us)
+    @Param({ "0", "250" })
+    private int                 latency;
+
+    private FsModel             fs;
+    private String              inodeKey;
+    private Pointer             buffer;
+    // state of the sequential readers, wrapping around at the end of the file
+    private Readahead           readahead;
+    private long                sequentialOffset;
+
+    @Setup
+    public void setUp() {
+        fs = new FsModel(new InMemoryBackend(latency, TimeUnit.MICROSECONDS),
+                new FsOptions());
+        fs.makeFile(FILE_PATH);
+        inodeKey = fs.getInodeKey(FILE_PATH);
+
+        buffer = Memory.allocateDirect(Runtime.getSystemRuntime(),
+                Math.max(ioSize, FILL_CHUNK));
+        byte[] content = new byte[FILL_CHUNK];
+        ThreadLocalRandom.current().nextBytes(content);
+        buffer.put(0, content, 0, content.length);
+        for (long off = 0; off < fileSize; off += FILL_CHUNK)
+            fs.writeFile(inodeKey, buffer, Math.min(FILL_CHUNK, fileSize - off), off);
+        readahead = new Readahead(new FsOptions().getReadaheadMax());
+    }
+
+    @TearDown
+    public void tearDown() {
+        fs.close();
+    }
+
+    private long randomOffset() {
+        return ThreadLocalRandom.current().nextLong(Math.max(1, fileSize - ioSize + 1));
+    }
+
+    @Benchmark
+    public int writeFile() {
+        return fs.writeFile(inodeKey, buffer, ioSize, randomOffset());
+    }
+
+    @Benchmark
+    public int readFile() {
+        return fs.readFile(inodeKey, buffer, ioSize, randomOffset());
+    }
+
+    private long nextSequentialOffset() {
+        long offset = sequentialOffset;
+        sequentialOffset = offset + ioSize >= fileSize ? 0 : offset + ioSize;
+        return offset;
+    }
+
+    @Benchmark
+    public int readSequential() {
+        return fs.readFile(inodeKey, buffer, ioSize, nextSequentialOffset(), null);
+    }
+
+    @Benchmark
+    public int readSequentialWithReadahead() {
+        return fs.readFile(inodeKey, buffer, ioSize, nextSequentialOffset(), readahead);
+    }
+}
@@ -0,0 +1,130 @@
+package eu.antidotedb.fs;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import jnr.ffi.Runtime;
+import ru.serce.jnrfuse.FuseFillDir;
+import ru.serce.jnrfuse.struct.FileStat;
+
+/**
+ * Benchmarks of FsModel's metadata operations against namespaces of different
+ * sizes, backed by the in-memory Antidote stand-in.
+ * <p>
+ * The namespace is made of directories of FANOUT files each, all in a TREE
+ * directory, plus a small directory of 3 files.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class NamespaceBenchmark {
+
+    static final private int         FANOUT    = 100;
+    static final private String      SMALL_DIR = "/small";
+    static final private String      TREE      = "/tree";
+
+    static final private FuseFillDir NO_FILL   = (buf, name, stbuf, off) -> 0;
+
+    // total number of paths in the file system
+    @Param({ "100", "10000" })
+    private int                      namespaceSize;
+
+    // latency injected in every round-trip to the backend (us)
+    @Param({ "0", "250" })
+    private int                      latency;
+
+    // namespace layout: single paths map or per-directory maps
+    @Param({ "false", "true" })
+    private boolean                  dirMaps;
+
+    private FsModel                  fs;
+    private FileStat                 stat;
+    private String                   fileInodeKey;
+    private String                   renamePath;
+    private String                   treePath;
+    private int                      created;
+
+    @Setup
+    public void setUp() {
+        fs = new FsModel(new InMemoryBackend(latency, TimeUnit.MICROSECONDS),
+                new FsOptions().setDirMaps(dirMaps));
+        fs.makeDir(TREE);
+        for (int d = 0; d < Math.max(1, namespaceSize / FANOUT); d++) {
+            fs.makeDir(TREE + "/d" + d);
+            for (int f = 0; f < FANOUT; f++)
+                fs.makeFile(TREE + "/d" + d + "/f" + f);
+        }
+        fs.makeDir(SMALL_DIR);
+        for (int f = 0; f < 3; f++)
+            fs.makeFile(SMALL_DIR + "/f" + f);
+        fs.makeDir("/created");
+
+        stat = new FileStat(Runtime.getSystemRuntime());
+        fileInodeKey = fs.getInodeKey(TREE + "/d0/f0");
+        renamePath = SMALL_DIR + "/f0";
+        treePath = TREE;
+        created = 0;
+    }
+
+    @TearDown
+    public void tearDown() {
+        fs.close();
+    }
+
+    @Benchmark
+    public FileStat getAttr() {
+        fs.getAttr(fileInodeKey, stat);
+        return stat;
+    }
+
+    @Benchmark
+    public void listSmallDir() {
+        fs.listDir(SMALL_DIR, null, NO_FILL);
+    }
+
+    @Benchmark
+    public void listDir() {
+        fs.listDir(TREE + "/d0", null, NO_FILL);
+    }
+
+    @Benchmark
+    public void rename() {
+        String newPath = renamePath.equals(SMALL_DIR + "/f0") ? SMALL_DIR + "/r0"
+                : SMALL_DIR + "/f0";
+        fs.rename(fs.getInodeKey(renamePath), renamePath, newPath);
+        renamePath = newPath;
+    }
+
+    /*
+     * Moves the directory holding the whole namespace back and forth.
+     */
+    @Benchmark
+    public void renameTree() {
+        String newPath = treePath.equals(TREE) ? TREE + "2" : TREE;
+        fs.rename(fs.getInodeKey(treePath), treePath, newPath);
+        treePath = newPath;
+    }
+
+    /*
+     * Note: the namespace grows during the measurement.
+     */
+    @Benchmark
+    public void makeFile() {
+        fs.makeFile("/created/f" + created++);
+    }
+}
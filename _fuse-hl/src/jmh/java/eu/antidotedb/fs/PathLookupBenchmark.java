@@ -0,0 +1,72 @@
+package eu.antidotedb.fs;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of the resolution of paths in deep trees, all directories being
+ * loaded: the cost of handling path strings, which grows with the depth with
+ * per-directory maps, as each component is looked up in turn.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PathLookupBenchmark {
+
+    // number of directories above the file
+    @Param({ "1", "8", "32" })
+    private int     depth;
+
+    // namespace layout: single paths map or per-directory maps
+    @Param({ "false", "true" })
+    private boolean dirMaps;
+
+    private FsModel fs;
+    private char[]  filePath;
+
+    @Setup
+    public void setUp() {
+        fs = new FsModel(new InMemoryBackend(), new FsOptions().setDirMaps(dirMaps));
+        StringBuilder path = new StringBuilder();
+        for (int d = 0; d < depth; d++) {
+            path.append("/directory").append(d);
+            fs.makeDir(path.toString());
+        }
+        path.append("/file.txt");
+        fs.makeFile(path.toString());
+        filePath = path.toString().toCharArray();
+    }
+
+    @TearDown
+    public void tearDown() {
+        fs.close();
+    }
+
+    /*
+     * Paths come from FUSE as new strings, whose hashes are not cached yet.
+     */
+    @Benchmark
+    public String getInodeKey() {
+        return fs.getInodeKey(new String(filePath));
+    }
+
+    @Benchmark
+    public String getParentPath() {
+        return FsModel.getParentPath(new String(filePath));
+    }
+}
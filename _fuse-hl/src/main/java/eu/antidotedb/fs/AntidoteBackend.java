@@ -0,0 +1,289 @@
+package eu.antidotedb.fs;
+
+import static eu.antidotedb.client.Key.*;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
+
+import eu.antidotedb.client.AntidoteClient;
+import eu.antidotedb.client.Bucket;
+import eu.antidotedb.client.InteractiveTransaction;
+import eu.antidotedb.client.Key;
+import eu.antidotedb.client.MapKey;
+import eu.antidotedb.client.MapKey.MapReadResult;
+import eu.antidotedb.client.TransactionWithReads;
+import eu.antidotedb.client.UpdateOp;
+import eu.antidotedb.client.ValueCoder;
+
+/**
+ * A {@link StorageBackend} on top of an Antidote database.
+ */
+public class AntidoteBackend implements StorageBackend {
+
+    private final ConnectionPool<AntidoteClient> pool;
+    private final Bucket                         bucket;
+
+    static final private String                  BUCKET_LABEL = "antidote-fs";
+
+    static final private ValueCoder<ByteString>  vc           = ValueCoder.bytestringEncoder;
+
+    /**
+     * @param antidoteAddr
+     *            address of Antidote, formatted as &lt;IPAddress:Port&gt;
+     */
+    public AntidoteBackend(String antidoteAddr) {
+        this(antidoteAddr, 1);
+    }
+
+    /**
+     * @param antidoteAddr
+     *            address of Antidote, formatted as &lt;IPAddress:Port&gt;
+     * @param connections
+     *            number of connections to Antidote
+     */
+    public AntidoteBackend(String antidoteAddr, int connections) {
+        String[] addrParts = antidoteAddr.split(":");
+        InetSocketAddress addr = new InetSocketAddress(addrParts[0],
+                Integer.parseInt(addrParts[1]));
+        List<AntidoteClient> clients = new ArrayList<>(connections);
+        for (int i = 0; i < connections; i++)
+            clients.add(new AntidoteClient(addr));
+        pool = new ConnectionPool<>(clients);
+        bucket = Bucket.bucket(BUCKET_LABEL);
+    }
+
+    @Override
+    public BackendTransaction noTransaction() {
+        return new AntidoteTransaction(null, null);
+    }
+
+    @Override
+    public BackendTransaction startTransaction() {
+        AntidoteClient client = pool.acquire();
+        try {
+            return new AntidoteTransaction(client, client.startTransaction());
+        } catch (RuntimeException e) {
+            pool.release(client);
+            throw e;
+        }
+    }
+
+    @Override
+    public CompletableFuture<List<ByteString>> readRegistersAsync(List<String> keys) {
+        return pool.submit(() -> noTransaction().readRegisters(keys));
+    }
+
+    @Override
+    public CompletableFuture<List<StoredMap>> readMapsAsync(List<String> keys) {
+        return pool.submit(() -> noTransaction().readMaps(keys));
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return pool.getQueueDepth();
+    }
+
+    @Override
+    public int getInFlight() {
+        return pool.getInFlight();
+    }
+
+    @Override
+    public void close() {
+        pool.close();
+    }
+
+    private class AntidoteTransaction implements BackendTransaction {
+
+        // held until close, null for noTransaction()
+        private AntidoteClient               client;
+        // null for noTransaction()
+        private final InteractiveTransaction interactiveTx;
+
+        private AntidoteTransaction(AntidoteClient client, InteractiveTransaction interactiveTx) {
+            this.client = client;
+            this.interactiveTx = interactiveTx;
+        }
+
+        // runs a read in the transaction, or on its own on a pooled connection
+        private <T> T read(Function<TransactionWithReads, T> op) {
+            if (interactiveTx != null)
+                return op.apply(interactiveTx);
+            AntidoteClient pooled = pool.acquire();
+            try {
+                return op.apply(pooled.noTransaction());
+            } finally {
+                pool.release(pooled);
+            }
+        }
+
+        private void update(UpdateOp... ops) {
+            if (interactiveTx != null) {
+                bucket.update(interactiveTx, ops);
+                return;
+            }
+            AntidoteClient pooled = pool.acquire();
+            try {
+                bucket.update(pooled.noTransaction(), ops);
+            } finally {
+                pool.release(pooled);
+            }
+        }
+
+        @Override
+        public StoredMap readMap(String key) {
+            return new AntidoteMap(read(tx -> bucket.read(tx, map_aw(key))));
+        }
+
+        @Override
+        public List<StoredMap> readMaps(List<String> keys) {
+            List<MapKey> mapKeys = new ArrayList<>(keys.size());
+            for (String key : keys)
+                mapKeys.add(map_aw(key));
+            List<?> res = read(tx -> bucket.readAll(tx, mapKeys));
+            List<StoredMap> maps = new ArrayList<>(res.size());
+            for (Object r : res)
+                maps.add(new AntidoteMap((MapReadResult) r));
+            return maps;
+        }
+
+        @Override
+        public ByteString readRegister(String key) {
+            return read(tx -> bucket.read(tx, register(key, vc)));
+        }
+
+        @Override
+        public List<ByteString> readRegisters(List<String> keys) {
+            List<Key<ByteString>> regKeys = new ArrayList<>(keys.size());
+            for (String key : keys)
+                regKeys.add(register(key, vc));
+            List<?> res = read(tx -> bucket.readAll(tx, regKeys));
+            List<ByteString> regs = new ArrayList<>(res.size());
+            for (Object r : res)
+                regs.add((ByteString) r);
+            return regs;
+        }
+
+        @Override
+        public void updateMap(String key, MapUpdate update) {
+            MapKey mapKey = map_aw(key);
+            List<UpdateOp> entryOps = new ArrayList<>();
+            List<UpdateOp> mapOps = new ArrayList<>();
+            for (MapUpdate.Op op : update.getOps()) {
+                switch (op.type) {
+                case ASSIGN_REGISTER:
+                    entryOps.add(register(op.key, vc).assign((ByteString) op.value));
+                    break;
+                case ASSIGN_INTEGER:
+                    entryOps.add(integer(op.key).assign((Long) op.value));
+                    break;
+                case INCREMENT_INTEGER:
+                    entryOps.add(integer(op.key).increment((Long) op.value));
+                    break;
+                case REMOVE_REGISTER:
+                    mapOps.add(mapKey.removeKey(register(op.key)));
+                    break;
+                case REMOVE_INTEGER:
+                    mapOps.add(mapKey.removeKey(integer(op.key)));
+                    break;
+                }
+            }
+            if (!entryOps.isEmpty())
+                mapOps.add(mapKey.update(entryOps.toArray(new UpdateOp[0])));
+            if (!mapOps.isEmpty())
+                update(mapOps.toArray(new UpdateOp[0]));
+        }
+
+        @Override
+        public void assignRegister(String key, ByteString value) {
+            update(register(key, vc).assign(value));
+        }
+
+        @Override
+        public void commit() {
+            if (interactiveTx != null)
+                interactiveTx.commitTransaction();
+        }
+
+        @Override
+        public void close() {
+            if (client != null) {
+                try {
+                    interactiveTx.close();
+                } finally {
+                    pool.release(client);
+                    client = null;
+                }
+            }
+        }
+    }
+
+    private static class AntidoteMap implements StoredMap {
+
+        private final MapReadResult res;
+
+        private AntidoteMap(MapReadResult res) {
+            this.res = res;
+        }
+
+        @Override
+        public ByteString getRegister(String key) {
+            return res.get(register(key, vc));
+        }
+
+        @Override
+        public String getString(String key) {
+            return res.get(register(key));
+        }
+
+        @Override
+        public long getInteger(String key, long defaultValue) {
+            // XXX remove casting once IntegerKey typing is published
+            Object value = res.get(integer(key));
+            return value == null ? defaultValue : ((Number) value).longValue();
+        }
+
+        @Override
+        public boolean containsKey(String key) {
+            return res.get(register(key, vc)) != null || res.get(integer(key)) != null;
+        }
+
+        @Override
+        public Set<String> keySet() {
+            Set<String> keys = new HashSet<>();
+            for (Key<?> key : res.keySet())
+                keys.add(key.getKey().toStringUtf8());
+            return keys;
+        }
+
+        @Override
+        public int size() {
+            return res.keySet().size();
+        }
+
+        @Override
+        public long getSerializedSize() {
+            // from the keys of the response, without decoding them
+            long bytes = 0;
+            for (Key<?> key : res.keySet()) {
+                Object value = res.get(key);
+                bytes += CodedOutputStream.computeBytesSizeNoTag(key.getKey());
+                if (value instanceof ByteString)
+                    bytes += CodedOutputStream.computeBytesSizeNoTag((ByteString) value);
+                else if (value instanceof String)
+                    bytes += CodedOutputStream.computeStringSizeNoTag((String) value);
+                else if (value instanceof Number)
+                    bytes += CodedOutputStream.computeInt64SizeNoTag(((Number) value).longValue());
+            }
+            return bytes;
+        }
+    }
+}
@@ -4,6 +4,7 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Arrays;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -11,6 +12,8 @@ import org.apache.logging.log4j.Logger;
 import com.beust.jcommander.JCommander;
 import com.beust.jcommander.Parameter;
 
+import eu.antidotedb.fs.HandleTable.OpenFile;
+import eu.antidotedb.fs.Metrics.Op;
 import jnr.ffi.Pointer;
 import jnr.ffi.types.mode_t;
 import jnr.ffi.types.off_t;
@@ -29,7 +32,63 @@ import ru.serce.jnrfuse.struct.FuseFileInfo;
  * be created)</li>
  * <li>-a / --antidote: the address of the Antidote database, formatted as
  * &lt;IPAddress:Port&gt;</li>
+ * <li>--connections: number of connections to Antidote, i.e. max number of
+ * requests in flight at once</li>
  * <li>-r / --refresh: path refresh period (ms)</li>
+ * <li>--refresh-max: max path refresh period, reached while no remote changes
+ * are observed (ms, 0 for 8 times the refresh period)</li>
+ * <li>--full-refresh: period of the full reads of the paths map, in between
+ * changes are read incrementally (ms)</li>
+ * <li>--snapshot: local file the paths map is saved to, and served from while
+ * catching up at the next mount, without --dir-maps (see
+ * {@link NamespaceSnapshot})</li>
+ * <li>--dir-maps: store the entries of each directory in its inode map
+ * instead of a single paths map (volumes are converted by
+ * {@link LayoutMigration})</li>
+ * <li>--dir-cache: max number of directories held in memory, with
+ * --dir-maps</li>
+ * <li>--group-commit: window in which concurrent metadata updates are
+ * committed in a single transaction (ms, 0 commits each on its own)</li>
+ * <li>--group-commit-max: max number of metadata updates committed
+ * together</li>
+ * <li>--negative-cache: max number of missing paths cached (0 disables the
+ * cache)</li>
+ * <li>--negative-ttl: time missing paths are cached, by the file system and
+ * the kernel (ms)</li>
+ * <li>--gc-period: period of the garbage collection of unlinked inodes (ms, 0
+ * disables it)</li>
+ * <li>--gc-grace: time unlinked inodes are kept before being reclaimed
+ * (ms)</li>
+ * <li>--gc-batch: max number of inodes checked per garbage collection</li>
+ * <li>--gc-rate: max number of inodes reclaimed per second</li>
+ * <li>-b / --blocksize: size of the blocks file content is stored in (bytes),
+ * only applied to newly created files</li>
+ * <li>--compression: compression of the content of newly created files (NONE,
+ * LZ4 or DEFLATE)</li>
+ * <li>--dedup: store the content of newly created files in content-addressed
+ * blocks, shared by identical blocks of all files</li>
+ * <li>--wb-file-max: dirty bytes buffered per file before it is flushed</li>
+ * <li>--wb-total-max: dirty bytes buffered overall before the oldest files are
+ * flushed (0 disables write-back)</li>
+ * <li>--wb-max-age: max time dirty data is buffered (ms)</li>
+ * <li>--readahead-max: max size of the content prefetched ahead of sequential
+ * readers (bytes, 0 disables readahead)</li>
+ * <li>--cache-size: size of the file content cache (bytes, 0 disables it)</li>
+ * <li>--cache-offheap: store the file content cache outside of the heap</li>
+ * <li>--cache-staleness: max time file content is served from the cache
+ * (ms)</li>
+ * <li>--disk-cache: local directory file content is cached in as well,
+ * across restarts (see {@link DiskCache})</li>
+ * <li>--disk-cache-size: size of the disk cache (bytes)</li>
+ * <li>--attr-ttl: time inode attributes are cached, by the file system and the
+ * kernel (ms, 0 disables caching)</li>
+ * <li>--readdir-batch: max number of attributes of directory entries fetched
+ * per request when listing a directory (0 fetches them on getattr only)</li>
+ * <li>--metrics: collect latency histograms of the operations and storage
+ * metrics, exposed through JMX</li>
+ * <li>--metrics-period: period of the metrics dumps to the log and CSV file
+ * (ms, 0 disables them)</li>
+ * <li>--metrics-csv: file the metrics are appended to at each dump</li>
  * </ul>
  */
 public class AntidoteFs extends FuseStubFS {
@@ -40,23 +99,70 @@ public class AntidoteFs extends FuseStubFS {
         @Parameter(names = { "--antidote",
                 "-a" }, description = "IP address of Antidote (<IP>:<port>).")
         private String antidoteAddress;
-        @Parameter(names = { "--refresh", "-r" }, description = "Path refresh period (ms).")
-        private int    refreshPeriod;
     }
 
-    private final FsModel       fs;
-    private static final Logger log = LogManager.getLogger();
+    private final FsModel        fs;
+    // null if write-back is disabled
+    private final WriteBackCache writeBack;
+    private final FsOptions      options;
+    private final Metrics        metrics;
+    private final HandleTable    handles;
+    // null if the backend is owned by the caller
+    private final StorageBackend ownBackend;
+    private static final Logger  log = LogManager.getLogger();
 
     public AntidoteFs(String antidoteAddress) {
-        this(antidoteAddress, 0);
+        this(antidoteAddress, new FsOptions());
     }
 
     public AntidoteFs(String antidoteAddress, int refreshPeriod) {
-        fs = new FsModel(antidoteAddress, refreshPeriod);
+        this(antidoteAddress, new FsOptions().setRefreshPeriod(refreshPeriod));
+    }
+
+    public AntidoteFs(String antidoteAddress, FsOptions options) {
+        this(new AntidoteBackend(antidoteAddress, options.getConnections()), options, true);
+    }
+
+    /**
+     * @param backend
+     *            the backend of the file system, left open at unmount
+     */
+    public AntidoteFs(StorageBackend backend, FsOptions options) {
+        this(backend, options, false);
+    }
+
+    private AntidoteFs(StorageBackend backend, FsOptions options, boolean closeBackend) {
+        this.options = options;
+        ownBackend = closeBackend ? backend : null;
+        fs = new FsModel(backend, options);
+        metrics = fs.getMetrics();
+        handles = new HandleTable(options.getReadaheadMax());
+        writeBack = options.getWriteBackTotalMax() > 0 ? new WriteBackCache(fs, options) : null;
+    }
+
+    /**
+     * Mounts the file system, letting the kernel cache attributes, lookups and
+     * failed lookups for as long as the file system itself does.
+     */
+    @Override
+    public void mount(Path mountPoint, boolean blocking, boolean debug, String[] fuseOpts) {
+        double timeout = options.getAttrTtl() / 1000.0;
+        double negativeTimeout = options.getNegativeCacheSize() > 0
+                ? options.getNegativeTtl() / 1000.0 : 0;
+        String[] opts = Arrays.copyOf(fuseOpts, fuseOpts.length + 2);
+        opts[fuseOpts.length] = "-o";
+        opts[fuseOpts.length + 1] = "attr_timeout=" + timeout + ",entry_timeout=" + timeout
+                + ",negative_timeout=" + negativeTimeout;
+        super.mount(mountPoint, blocking, debug, opts);
     }
 
     @Override
     public int create(String path, @mode_t long mode, FuseFileInfo fi) {
+        long start = metrics.start();
+        return metrics.end(Op.CREATE, start, doCreate(path, fi));
+    }
+
+    private int doCreate(String path, FuseFileInfo fi) {
         log.debug("CREATE {}", () -> path);
         if (fs.getInodeKey(path) != null)
             return -ErrorCodes.EEXIST();
@@ -67,23 +173,47 @@ public class AntidoteFs extends FuseStubFS {
         if (!fs.isDirectory(inodeKeyParent))
             return -ErrorCodes.ENOTDIR();
 
-        fs.makeFile(path);
+        String inodeKey = fs.makeFile(path);
+        if (fi != null) // the new file is open
+            fi.fh.set(openHandle(inodeKey));
         return 0;
     }
 
     @Override
     public int getattr(String path, FileStat stat) {
+        long start = metrics.start();
+        return metrics.end(Op.GETATTR, start, doGetattr(path, stat, null));
+    }
+
+    @Override
+    public int fgetattr(String path, FileStat stat, FuseFileInfo fi) {
+        long start = metrics.start();
+        return metrics.end(Op.GETATTR, start, doGetattr(path, stat, fi));
+    }
+
+    private int doGetattr(String path, FileStat stat, FuseFileInfo fi) {
         log.debug("GETATTR {}", () -> path);
-        final String inodeKey = fs.getInodeKey(path);
+        final OpenFile file = getOpenFile(fi);
+        final String inodeKey = file != null ? file.getInodeKey() : fs.getInodeKey(path);
         if (inodeKey == null)
             return -ErrorCodes.ENOENT();
 
-        fs.getAttr(inodeKey, stat);
+        if (file != null) // cached since open
+            FsModel.setAttr(inodeKey, file.getMode(), file.getSize(), stat);
+        else
+            fs.getAttr(inodeKey, stat);
+        if (writeBack != null && !fs.isDirectory(inodeKey))
+            stat.st_size.set(writeBack.getSize(inodeKey, stat.st_size.get()));
         return 0;
     }
 
     @Override
     public int mkdir(String path, @mode_t long mode) {
+        long start = metrics.start();
+        return metrics.end(Op.MKDIR, start, doMkdir(path));
+    }
+
+    private int doMkdir(String path) {
         log.debug("MAKEDIR {}", () -> path);
         if (fs.getInodeKey(path) != null)
             return -ErrorCodes.EEXIST();
@@ -98,22 +228,63 @@ public class AntidoteFs extends FuseStubFS {
         return 0;
     }
 
+    @Override
+    public int open(String path, FuseFileInfo fi) {
+        long start = metrics.start();
+        return metrics.end(Op.OPEN, start, doOpen(path, fi));
+    }
+
+    private int doOpen(String path, FuseFileInfo fi) {
+        log.debug("OPEN {}", () -> path);
+        final String inodeKey = fs.getInodeKey(path);
+        if (inodeKey == null)
+            return -ErrorCodes.ENOENT();
+        if (fs.isDirectory(inodeKey))
+            return -ErrorCodes.EISDIR();
+
+        fi.fh.set(openHandle(inodeKey));
+        return 0;
+    }
+
+    // caches the attributes of the file open
+    private long openHandle(String inodeKey) {
+        AttrCache.Attrs attrs = fs.getAttrs(inodeKey);
+        return handles.open(inodeKey, attrs.getMode(), attrs.getSize());
+    }
+
     @Override
     public int read(String path, Pointer buf, @size_t long size, @off_t long offset,
             FuseFileInfo fi) {
+        long start = metrics.start();
+        return metrics.end(Op.READ, start, doRead(path, buf, size, offset, fi));
+    }
+
+    private int doRead(String path, Pointer buf, long size, long offset, FuseFileInfo fi) {
         log.debug("READ {}", () -> path);
-        final String inodeKey = fs.getInodeKey(path);
+        final OpenFile file = getOpenFile(fi);
+        final String inodeKey = file != null ? file.getInodeKey() : fs.getInodeKey(path);
         if (inodeKey == null)
             return -ErrorCodes.ENOENT();
         if (fs.isDirectory(inodeKey))
             return -ErrorCodes.EISDIR();
 
-        return fs.readFile(inodeKey, buf, size, offset);
+        // the buffered writes are read without flushing them
+        if (writeBack != null)
+            return writeBack.read(inodeKey, file, buf, size, offset);
+        if (file != null)
+            return fs.readFile(inodeKey, buf, size, offset, file.getSize(),
+                    file.getReadahead());
+        return fs.readFile(inodeKey, buf, size, offset, null);
     }
 
     @Override
     public int readdir(String path, Pointer buf, FuseFillDir filter, @off_t long offset,
             FuseFileInfo fi) {
+        long start = metrics.start();
+        return metrics.end(Op.READDIR, start, doReaddir(path, buf, filter));
+    }
+
+    private int doReaddir(String path, Pointer buf, FuseFillDir filter) {
         log.debug("READDIR {}", () -> path);
         final String inodeKey = fs.getInodeKey(path);
         if (inodeKey == null)
@@ -129,6 +300,11 @@ public class AntidoteFs extends FuseStubFS {
 
     @Override
     public int rename(String oldPath, String newPath) {
+        long start = metrics.start();
+        return metrics.end(Op.RENAME, start, doRename(oldPath, newPath));
+    }
+
+    private int doRename(String oldPath, String newPath) {
         log.debug("RENAME {} to {}", () -> oldPath, () -> newPath);
         final String inodeKey = fs.getInodeKey(oldPath);
         if (inodeKey == null)
@@ -139,6 +315,27 @@ public class AntidoteFs extends FuseStubFS {
             return -ErrorCodes.ENOENT();
         if (!fs.isDirectory(inodeKeyNewParent))
             return -ErrorCodes.ENOTDIR();
+        if (oldPath.equals(newPath))
+            return 0;
+        // a directory cannot be moved into its own subtree
+        if (newPath.startsWith(FsModel.childPath(oldPath, "")))
+            return -ErrorCodes.EINVAL();
+
+        // an existing target is replaced, if of the same type and empty
+        final String inodeKeyTarget = fs.getInodeKey(newPath);
+        if (inodeKeyTarget != null) {
+            if (fs.isDirectory(inodeKeyTarget)) {
+                if (!fs.isDirectory(inodeKey))
+                    return -ErrorCodes.EISDIR();
+                if (!fs.isEmptyDir(newPath))
+                    return -ErrorCodes.ENOTEMPTY();
+            } else {
+                if (fs.isDirectory(inodeKey))
+                    return -ErrorCodes.ENOTDIR();
+                if (writeBack != null)
+                    writeBack.discard(inodeKeyTarget);
+            }
+        }
 
         fs.rename(inodeKey, oldPath, newPath);
         return 0;
@@ -146,12 +343,19 @@ public class AntidoteFs extends FuseStubFS {
 
     @Override
     public int rmdir(String path) {
+        long start = metrics.start();
+        return metrics.end(Op.RMDIR, start, doRmdir(path));
+    }
+
+    private int doRmdir(String path) {
         log.debug("RMDIR {}", () -> path);
         final String inodeKey = fs.getInodeKey(path);
         if (inodeKey == null)
             return -ErrorCodes.ENOENT();
         if (!fs.isDirectory(inodeKey))
             return -ErrorCodes.ENOTDIR();
+        if (!fs.isEmptyDir(path))
+            return -ErrorCodes.ENOTEMPTY();
 
         fs.removePath(path);
         return 0;
@@ -159,23 +363,49 @@ public class AntidoteFs extends FuseStubFS {
 
     @Override
     public int truncate(String path, long offset) {
+        long start = metrics.start();
+        return metrics.end(Op.TRUNCATE, start, doTruncate(path, offset, null));
+    }
+
+    @Override
+    public int ftruncate(String path, @off_t long size, FuseFileInfo fi) {
+        long start = metrics.start();
+        return metrics.end(Op.TRUNCATE, start, doTruncate(path, size, fi));
+    }
+
+    private int doTruncate(String path, long offset, FuseFileInfo fi) {
         log.debug("TRUNCATE {}", () -> path);
-        final String inodeKey = fs.getInodeKey(path);
+        final String inodeKey = getInodeKey(path, fi);
         if (inodeKey == null)
             return -ErrorCodes.ENOENT();
         if (fs.isDirectory(inodeKey))
             return -ErrorCodes.EISDIR();
 
+        if (writeBack != null) {
+            if (offset == 0) // nothing buffered survives
+                writeBack.discard(inodeKey);
+            else
+                writeBack.flush(inodeKey);
+        }
         fs.truncate(inodeKey, offset);
+        handles.truncated(inodeKey, offset);
         return 0;
     }
 
     @Override
     public int unlink(String path) {
+        long start = metrics.start();
+        return metrics.end(Op.UNLINK, start, doUnlink(path));
+    }
+
+    private int doUnlink(String path) {
         log.debug("UNLINK {}", () -> path);
-        if (fs.getInodeKey(path) == null)
+        final String inodeKey = fs.getInodeKey(path);
+        if (inodeKey == null)
             return -ErrorCodes.ENOENT();
 
+        if (writeBack != null)
+            writeBack.discard(inodeKey);
         fs.removePath(path);
         return 0;
     }
@@ -183,25 +413,108 @@ public class AntidoteFs extends FuseStubFS {
     @Override
     public int write(String path, Pointer buf, @size_t long size, @off_t long offset,
             FuseFileInfo fi) {
+        long start = metrics.start();
+        return metrics.end(Op.WRITE, start, doWrite(path, buf, size, offset, fi));
+    }
+
+    private int doWrite(String path, Pointer buf, long size, long offset, FuseFileInfo fi) {
         log.debug("WRITE {}", () -> path);
-        final String inodeKey = fs.getInodeKey(path);
+        final String inodeKey = getInodeKey(path, fi);
         if (inodeKey == null)
             return -ErrorCodes.ENOENT();
         if (fs.isDirectory(inodeKey))
             return -ErrorCodes.EISDIR();
 
-        return fs.writeFile(inodeKey, buf, size, offset);
+        final OpenFile file = getOpenFile(fi);
+        int written = writeBack != null ? writeBack.write(inodeKey, file, buf, size, offset)
+                : fs.writeFile(inodeKey, buf, size, offset);
+        if (written > 0 && file != null)
+            file.grow(offset + written);
+        else if (written > 0)
+            handles.written(inodeKey, offset + written);
+        return written;
+    }
+
+    @Override
+    public int flush(String path, FuseFileInfo fi) {
+        log.debug("FLUSH {}", () -> path);
+        long start = metrics.start();
+        return metrics.end(Op.FLUSH, start, flushFile(path, fi));
+    }
+
+    @Override
+    public int fsync(String path, int isdatasync, FuseFileInfo fi) {
+        log.debug("FSYNC {}", () -> path);
+        long start = metrics.start();
+        return metrics.end(Op.FSYNC, start, flushFile(path, fi));
+    }
+
+    @Override
+    public int release(String path, FuseFileInfo fi) {
+        log.debug("RELEASE {}", () -> path);
+        long start = metrics.start();
+        int res = flushFile(path, fi);
+        if (fi != null)
+            handles.release(fi.fh.get());
+        return metrics.end(Op.RELEASE, start, res);
+    }
+
+    @Override
+    public void destroy(Pointer initResult) {
+        if (writeBack != null)
+            writeBack.close();
+        fs.close();
+        // once the file system no longer issues requests
+        if (ownBackend != null)
+            ownBackend.close();
+    }
+
+    public HandleTable getHandles() {
+        return handles;
+    }
+
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return the inode key of the file open as fi, without resolving path, or
+     *         the one path is bound to if the file was not opened by open or
+     *         create
+     */
+    private String getInodeKey(String path, FuseFileInfo fi) {
+        OpenFile file = getOpenFile(fi);
+        return file != null ? file.getInodeKey() : fs.getInodeKey(path);
+    }
+
+    /**
+     * @return the file open as fi, or null if not opened by open or create
+     */
+    private OpenFile getOpenFile(FuseFileInfo fi) {
+        return fi == null ? null : handles.get(fi.fh.get());
+    }
+
+    private int flushFile(String path, FuseFileInfo fi) {
+        if (writeBack == null)
+            return 0;
+        final String inodeKey = getInodeKey(path, fi);
+        if (inodeKey == null)
+            return -ErrorCodes.ENOENT();
+
+        writeBack.flush(inodeKey);
+        return 0;
     }
 
     public static void main(String[] args) {
         Args ar = new Args();
-        JCommander.newBuilder().addObject(ar).build().parse(args);
+        FsOptions options = new FsOptions();
+        JCommander.newBuilder().addObject(ar).addObject(options).build().parse(args);
         Path rootPath = Paths.get(ar.fsDir);
         AntidoteFs stub = null;
         try {
             if (Files.notExists(rootPath))
                 Files.createDirectory(rootPath);
-            stub = new AntidoteFs(ar.antidoteAddress, ar.refreshPeriod);
+            stub = new AntidoteFs(ar.antidoteAddress, options);
             stub.mount(rootPath, true, true);
         } catch (IOException e) {
             e.printStackTrace();
@@ -0,0 +1,173 @@
+package eu.antidotedb.fs;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A cache of inode attributes, keyed by inode key, whose entries are valid for
+ * a fixed time (TTL). Local changes to the attributes are written through to
+ * it.
+ * <p>
+ * Along with the attributes, it holds the inode maps and the manifest segments
+ * (see {@link Manifest}) read from the store, so that reading a file whose
+ * blocks are cached does not issue any request. A map read before a local
+ * change, and put after it, is not cached.
+ */
+public class AttrCache {
+
+    private final long                                 ttlNanos;
+    private final ConcurrentHashMap<String, Attrs>     attrs    = new ConcurrentHashMap<>();
+    // manifest segments, by segment key
+    private final ConcurrentHashMap<String, CachedMap> segments = new ConcurrentHashMap<>();
+    // incremented by each local change; written under this
+    private volatile long                              generation;
+
+    public static class Attrs {
+        final long      mode;
+        final long      size;
+        // null if only the attributes are known
+        final StoredMap inode;
+        final long      loadTime;
+
+        Attrs(long mode, long size, StoredMap inode, long loadTime) {
+            this.mode = mode;
+            this.size = size;
+            this.inode = inode;
+            this.loadTime = loadTime;
+        }
+
+        public long getMode() {
+            return mode;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * @return the inode map, whose size may be older than getSize(), or
+         *         null
+         */
+        public StoredMap getInode() {
+            return inode;
+        }
+    }
+
+    private static class CachedMap {
+        final StoredMap map;
+        final long      loadTime;
+
+        CachedMap(StoredMap map, long loadTime) {
+            this.map = map;
+            this.loadTime = loadTime;
+        }
+    }
+
+    /**
+     * @param ttl
+     *            validity of the entries (ms), 0 disables the cache
+     */
+    public AttrCache(long ttl) {
+        ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttl);
+    }
+
+    /**
+     * @return the attributes of an inode, or null if not cached or expired
+     */
+    public Attrs get(String inodeKey) {
+        Attrs a = attrs.get(inodeKey);
+        if (a == null || System.nanoTime() - a.loadTime > ttlNanos)
+            return null;
+        return a;
+    }
+
+    /**
+     * Writes through a local change of the attributes.
+     *
+     * @return the attributes put in the cache
+     */
+    public Attrs put(String inodeKey, long mode, long size) {
+        return put(inodeKey, mode, size, null);
+    }
+
+    /**
+     * Writes through a local change of the attributes, along with the inode
+     * map, up to date but for its size.
+     *
+     * @return the attributes put in the cache
+     */
+    synchronized public Attrs put(String inodeKey, long mode, long size, StoredMap inode) {
+        generation++;
+        Attrs a = new Attrs(mode, size, inode, System.nanoTime());
+        if (ttlNanos > 0)
+            attrs.put(inodeKey, a);
+        return a;
+    }
+
+    /**
+     * Caches an inode map read from the store by a read started at generation.
+     *
+     * @return the attributes of the inode
+     */
+    synchronized public Attrs put(String inodeKey, long mode, long size, StoredMap inode,
+            long generation) {
+        Attrs a = new Attrs(mode, size, inode, System.nanoTime());
+        if (ttlNanos > 0 && generation == this.generation)
+            attrs.put(inodeKey, a);
+        return a;
+    }
+
+    /**
+     * @return a manifest segment, or null if not cached or expired
+     */
+    public StoredMap getSegment(String segmentKey) {
+        CachedMap s = segments.get(segmentKey);
+        if (s == null || System.nanoTime() - s.loadTime > ttlNanos)
+            return null;
+        return s.map;
+    }
+
+    /**
+     * Caches a manifest segment read from the store by a read started at
+     * generation.
+     */
+    synchronized public void putSegment(String segmentKey, StoredMap segment,
+            long generation) {
+        if (ttlNanos > 0 && generation == this.generation)
+            segments.put(segmentKey, new CachedMap(segment, System.nanoTime()));
+    }
+
+    /**
+     * @return the generation to pass to the puts of maps read from the store,
+     *         read before reading them
+     */
+    public long getGeneration() {
+        return generation;
+    }
+
+    synchronized public void invalidate(String inodeKey) {
+        generation++;
+        attrs.remove(inodeKey);
+    }
+
+    synchronized public void invalidateSegment(String segmentKey) {
+        generation++;
+        segments.remove(segmentKey);
+    }
+
+    /**
+     * Drops the expired entries.
+     */
+    public void expire() {
+        long now = System.nanoTime();
+        Iterator<Attrs> it = attrs.values().iterator();
+        while (it.hasNext())
+            if (now - it.next().loadTime > ttlNanos)
+                it.remove();
+        Iterator<CachedMap> its = segments.values().iterator();
+        while (its.hasNext())
+            if (now - its.next().loadTime > ttlNanos)
+                its.remove();
+    }
+}
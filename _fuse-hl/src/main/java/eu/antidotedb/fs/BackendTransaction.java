@@ -0,0 +1,46 @@
+package eu.antidotedb.fs;
+
+import java.util.List;
+
+import com.google.protobuf.ByteString;
+
+/**
+ * Reads and updates issued against a {@link StorageBackend}.
+ */
+public interface BackendTransaction extends AutoCloseable {
+
+    /**
+     * @return the content of the map_aw at key, empty if it does not exist
+     */
+    StoredMap readMap(String key);
+
+    /**
+     * Reads several maps in a single round-trip.
+     * 
+     * @return the content of the maps, in the same order as keys
+     */
+    List<StoredMap> readMaps(List<String> keys);
+
+    /**
+     * @return the content of the register at key, or null if it has never been
+     *         assigned
+     */
+    ByteString readRegister(String key);
+
+    /**
+     * Reads several registers in a single round-trip.
+     * 
+     * @return the content of the registers (null for unassigned ones), in the
+     *         same order as keys
+     */
+    List<ByteString> readRegisters(List<String> keys);
+
+    void updateMap(String key, MapUpdate update);
+
+    void assignRegister(String key, ByteString value);
+
+    void commit();
+
+    @Override
+    void close();
+}
@@ -0,0 +1,204 @@
+package eu.antidotedb.fs;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+
+/**
+ * An LRU cache of file content blocks, bounded in bytes.
+ * <p>
+ * Each entry is tagged with the version of the block it holds (from the file's
+ * block manifest), and is only returned to readers asking for that version.
+ * Besides, entries older than a staleness bound are never returned, and are
+ * dropped at each refresh cycle of the file system.
+ * <p>
+ * When off-heap storage is enabled, block contents are kept in direct buffers,
+ * outside of the garbage-collected heap.
+ * <p>
+ * With a {@link DiskCache}, blocks are cached on disk as well, and the ones
+ * missing from memory are looked up there (whatever their age, as they survive
+ * restarts, but still for the requested version only).
+ */
+public class BlockCache {
+
+    private final long                          capacity;
+    private final boolean                       offHeap;
+    private final long                          stalenessNanos;
+    // null if blocks are only cached in memory
+    private final DiskCache                     disk;
+
+    // in access order, the eldest entry being the least recently used
+    private final LinkedHashMap<String, Entry> entries   = new LinkedHashMap<>(16, 0.75f,
+            true);
+    private long                                size;
+
+    private final LongAdder                     hits      = new LongAdder();
+    private final LongAdder                     misses    = new LongAdder();
+    private final LongAdder                     evictions = new LongAdder();
+
+    private static class Entry {
+        final ByteString data;
+        final long       version;
+        final long       loadTime;
+
+        Entry(ByteString data, long version, long loadTime) {
+            this.data = data;
+            this.version = version;
+            this.loadTime = loadTime;
+        }
+    }
+
+    /**
+     * @param capacity
+     *            max total size of the cached blocks (bytes), 0 disables the
+     *            cache
+     * @param offHeap
+     *            whether to store blocks outside of the heap
+     * @param staleness
+     *            max time (ms) a block is served from the cache
+     */
+    public BlockCache(long capacity, boolean offHeap, long staleness) {
+        this(capacity, offHeap, staleness, null);
+    }
+
+    /**
+     * @param disk
+     *            second tier, or null
+     */
+    public BlockCache(long capacity, boolean offHeap, long staleness, DiskCache disk) {
+        this.capacity = capacity;
+        this.offHeap = offHeap;
+        stalenessNanos = TimeUnit.MILLISECONDS.toNanos(staleness);
+        this.disk = disk;
+    }
+
+    /**
+     * @return the cached content of the given version of a block, or null
+     */
+    public ByteString get(String blockKey, long version) {
+        synchronized (this) {
+            Entry entry = entries.get(blockKey);
+            if (entry != null && entry.version == version
+                    && System.nanoTime() - entry.loadTime <= stalenessNanos) {
+                hits.increment();
+                return entry.data;
+            }
+        }
+        ByteString data = disk != null ? disk.get(blockKey, version) : null;
+        if (data == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        // already outside of the heap
+        cache(blockKey, version, data);
+        return data;
+    }
+
+    /**
+     * @return whether the given version of a block is cached, without counting
+     *         a hit or a miss
+     */
+    public boolean contains(String blockKey, long version) {
+        synchronized (this) {
+            Entry entry = entries.get(blockKey);
+            if (entry != null && entry.version == version
+                    && System.nanoTime() - entry.loadTime <= stalenessNanos)
+                return true;
+        }
+        return disk != null && disk.contains(blockKey, version);
+    }
+
+    public void put(String blockKey, long version, ByteString data) {
+        if (disk != null)
+            disk.put(blockKey, version, data);
+        if (data.size() > capacity)
+            return;
+
+        if (offHeap) {
+            ByteBuffer buf = ByteBuffer.allocateDirect(data.size());
+            data.copyTo(buf);
+            buf.flip();
+            data = UnsafeByteOperations.unsafeWrap(buf.asReadOnlyBuffer());
+        }
+        cache(blockKey, version, data);
+    }
+
+    // adds data to the memory tier
+    synchronized private void cache(String blockKey, long version, ByteString data) {
+        if (data.size() > capacity)
+            return;
+        Entry old = entries.put(blockKey, new Entry(data, version, System.nanoTime()));
+        if (old != null)
+            size -= old.data.size();
+        size += data.size();
+
+        Iterator<Entry> it = entries.values().iterator();
+        while (size > capacity && it.hasNext()) {
+            size -= it.next().data.size();
+            it.remove();
+            evictions.increment();
+        }
+    }
+
+    public void invalidate(String blockKey) {
+        synchronized (this) {
+            Entry old = entries.remove(blockKey);
+            if (old != null)
+                size -= old.data.size();
+        }
+        if (disk != null)
+            disk.invalidate(blockKey);
+    }
+
+    /**
+     * Closes the disk tier, if any.
+     */
+    public void close() {
+        if (disk != null)
+            disk.close();
+    }
+
+    /**
+     * Drops the entries older than the staleness bound.
+     */
+    synchronized public void expire() {
+        long now = System.nanoTime();
+        Iterator<Entry> it = entries.values().iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next();
+            if (now - entry.loadTime > stalenessNanos) {
+                size -= entry.data.size();
+                it.remove();
+            }
+        }
+    }
+
+    synchronized public long getSize() {
+        return size;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * @return the disk tier, or null
+     */
+    public DiskCache getDiskCache() {
+        return disk;
+    }
+}
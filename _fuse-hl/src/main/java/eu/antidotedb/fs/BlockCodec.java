@@ -0,0 +1,147 @@
+package eu.antidotedb.fs;
+
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4FastDecompressor;
+
+/**
+ * The compression of the blocks of a file, chosen when the file is created
+ * (the CODEC entry of its inode map, absent for NONE).
+ * <p>
+ * Blocks of a file stored with NONE are raw bytes. With another codec, every
+ * block starts with a header byte: RAW, followed by the block as is, for the
+ * blocks that compression would not shrink enough (e.g. already compressed
+ * content); or COMPRESSED, followed by the length of the block (4 bytes, big
+ * endian) and its compressed bytes.
+ */
+public enum BlockCodec {
+
+    NONE(0), LZ4(1), DEFLATE(2);
+
+    static final private byte   RAW        = 0;
+    static final private byte   COMPRESSED = 1;
+    static final private int    HEADER     = 1 + 4;
+
+    private static final LZ4Factory lz4 = LZ4Factory.fastestInstance();
+
+    private final int id;
+
+    BlockCodec(int id) {
+        this.id = id;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * @return the codec of the given id, NONE for unknown ids
+     */
+    public static BlockCodec of(long id) {
+        for (BlockCodec codec : values())
+            if (codec.id == id)
+                return codec;
+        return NONE;
+    }
+
+    /**
+     * @return block as stored with this codec
+     */
+    public ByteString encode(ByteString block) {
+        if (this == NONE)
+            return block;
+        if (!block.isEmpty()) {
+            byte[] compressed = compress(block);
+            // only worth it if it saves at least 1/8 of the block
+            if (compressed != null && compressed.length < block.size() - block.size() / 8) {
+                ByteBuffer.wrap(compressed).put(COMPRESSED).putInt(block.size());
+                return UnsafeByteOperations.unsafeWrap(compressed);
+            }
+        }
+        return ByteString.copyFrom(new byte[] { RAW }).concat(block);
+    }
+
+    /**
+     * @return the content of a block stored with this codec
+     */
+    public ByteString decode(ByteString stored) {
+        if (this == NONE || stored.isEmpty())
+            return stored;
+        if (stored.byteAt(0) == RAW)
+            return stored.substring(1);
+        byte[] src = stored.toByteArray();
+        byte[] block = new byte[ByteBuffer.wrap(src, 1, 4).getInt()];
+        decompress(src, block);
+        return UnsafeByteOperations.unsafeWrap(block);
+    }
+
+    // the compressed block, after HEADER bytes left for the header, or null if
+    // it does not fit in the block size
+    private byte[] compress(ByteString block) {
+        switch (this) {
+        case LZ4: {
+            LZ4Compressor compressor = lz4.fastCompressor();
+            int max = compressor.maxCompressedLength(block.size());
+            // read-only buffers would take the slow path of the codec
+            byte[] dst = new byte[HEADER + max];
+            int length = compressor.compress(block.toByteArray(), 0, block.size(), dst, HEADER,
+                    max);
+            byte[] res = new byte[HEADER + length];
+            System.arraycopy(dst, 0, res, 0, res.length);
+            return res;
+        }
+        case DEFLATE: {
+            Deflater deflater = new Deflater();
+            try {
+                deflater.setInput(block.toByteArray());
+                deflater.finish();
+                byte[] dst = new byte[HEADER + block.size()];
+                int length = deflater.deflate(dst, HEADER, block.size());
+                if (!deflater.finished())
+                    return null;
+                byte[] res = new byte[HEADER + length];
+                System.arraycopy(dst, 0, res, 0, res.length);
+                return res;
+            } finally {
+                deflater.end();
+            }
+        }
+        default:
+            throw new IllegalStateException("no compression with " + this);
+        }
+    }
+
+    // src is a stored block, header included
+    private void decompress(byte[] src, byte[] block) {
+        switch (this) {
+        case LZ4: {
+            LZ4FastDecompressor decompressor = lz4.fastDecompressor();
+            decompressor.decompress(src, HEADER, block, 0, block.length);
+            return;
+        }
+        case DEFLATE: {
+            Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(src, HEADER, src.length - HEADER);
+                if (inflater.inflate(block) != block.length)
+                    throw new IllegalStateException("truncated block");
+                return;
+            } catch (DataFormatException e) {
+                throw new IllegalStateException("corrupted block", e);
+            } finally {
+                inflater.end();
+            }
+        }
+        default:
+            throw new IllegalStateException("no compression with " + this);
+        }
+    }
+}
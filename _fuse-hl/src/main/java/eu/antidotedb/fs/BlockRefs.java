@@ -0,0 +1,218 @@
+package eu.antidotedb.fs;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import com.google.protobuf.ByteString;
+
+/**
+ * Content-addressed blocks, shared by the files created with deduplication.
+ * <p>
+ * The content of such a block is stored once, in the register of its content
+ * key. The content key is made of the hash key of the block, derived from its
+ * SHA-256 and the codec it is stored with, and of a generation. Each hash key
+ * has a referrers map, with the current generation and an entry per file block
+ * pointing to a generation of the content (keyed by the block key of the file,
+ * see {@link FsModel#getBlockKey(String, int)}). Adding and removing referrers
+ * is idempotent, unlike counting references, so that concurrent updates of
+ * several mounts and repeated garbage collections converge to the actual
+ * references.
+ * <p>
+ * A generation without referrers is left to the garbage collector, which
+ * resets its register. Writers only share the current generation of a block if
+ * it has referrers; otherwise they store the block anew under the next one. A
+ * register being reset is thus never written nor referred to again, except by
+ * writers reading referrers older than the grace period of the collector.
+ * <p>
+ * An instance gathers the changes of referrers of a single transaction.
+ */
+public class BlockRefs {
+
+    // per hash key, the changes to its referrers: block key to generation,
+    // null if removed
+    private final HashMap<String, LinkedHashMap<String, Long>> updates     = new HashMap<>();
+    // per hash key, its new generation
+    private final HashMap<String, Long>                        generations = new HashMap<>();
+    // content keys
+    private final Set<String>                                  added       = new HashSet<>();
+    private final Set<String>                                  removed     = new HashSet<>();
+
+    static final private String                                CONTENT_PREFIX = "C";
+    static final private String                                CODEC_SEP      = "_";
+    static final private String                                GENERATION_SEP = ".";
+    static final private String                                REFS_PREFIX    = "R_";
+    // entry of a referrers map holding the current generation
+    static final private String                                GENERATION     = "GEN";
+    static final private char[]                                HEX            = "0123456789abcdef"
+            .toCharArray();
+
+    /**
+     * @return the hash key of block, as stored with codec
+     */
+    public static String getHashKey(BlockCodec codec, ByteString block) {
+        MessageDigest sha;
+        try {
+            sha = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) { // required on every JVM
+            throw new IllegalStateException(e);
+        }
+        for (ByteBuffer buffer : block.asReadOnlyByteBufferList())
+            sha.update(buffer);
+        byte[] hash = sha.digest();
+        StringBuilder key = new StringBuilder(CONTENT_PREFIX.length() + 3 + 2 * hash.length);
+        key.append(CONTENT_PREFIX).append(codec.getId()).append(CODEC_SEP);
+        for (byte b : hash)
+            key.append(HEX[(b >> 4) & 0xf]).append(HEX[b & 0xf]);
+        return key.toString();
+    }
+
+    public static boolean isContentKey(String key) {
+        return key.startsWith(CONTENT_PREFIX);
+    }
+
+    static String getContentKey(String hashKey, long generation) {
+        return hashKey + GENERATION_SEP + generation;
+    }
+
+    private static String getHashKey(String contentKey) {
+        return contentKey.substring(0, contentKey.lastIndexOf(GENERATION_SEP));
+    }
+
+    private static long getGeneration(String contentKey) {
+        return Long.parseLong(
+                contentKey.substring(contentKey.lastIndexOf(GENERATION_SEP) + 1));
+    }
+
+    static String getRefsKey(String hashKey) {
+        return REFS_PREFIX + hashKey;
+    }
+
+    /**
+     * Reads the referrers of several blocks in a single round-trip.
+     *
+     * @return the content keys with referrers, whose content is then stored
+     */
+    public static Set<String> getReferenced(BackendTransaction tx,
+            Collection<String> contentKeys) {
+        Set<String> referenced = new HashSet<>();
+        if (contentKeys.isEmpty())
+            return referenced;
+        List<String> refsKeys = new ArrayList<>(contentKeys.size());
+        for (String contentKey : contentKeys)
+            refsKeys.add(getRefsKey(getHashKey(contentKey)));
+        List<StoredMap> refs = tx.readMaps(refsKeys);
+        int i = 0;
+        for (String contentKey : contentKeys)
+            if (hasReferrers(refs.get(i++), getGeneration(contentKey)))
+                referenced.add(contentKey);
+        return referenced;
+    }
+
+    /**
+     * Picks the content keys of blocks about to be referred to, reading their
+     * referrers in a single round-trip: the current generation of a block if it
+     * has referrers, the next one otherwise.
+     *
+     * @return for each hash key, its content key; the ones of the new
+     *         generations, whose content is to be stored, are added to store
+     */
+    public Map<String, String> getContentKeys(BackendTransaction tx,
+            Collection<String> hashKeys, Set<String> store) {
+        HashMap<String, String> contentKeys = new HashMap<>();
+        if (hashKeys.isEmpty())
+            return contentKeys;
+        List<String> refsKeys = new ArrayList<>(hashKeys.size());
+        for (String hashKey : hashKeys)
+            refsKeys.add(getRefsKey(hashKey));
+        List<StoredMap> refs = tx.readMaps(refsKeys);
+        int i = 0;
+        for (String hashKey : hashKeys) {
+            StoredMap map = refs.get(i++);
+            long generation = map.getInteger(GENERATION, 0L);
+            if (generation == 0 || !hasReferrers(map, generation)) {
+                generation++;
+                generations.put(hashKey, generation);
+                store.add(getContentKey(hashKey, generation));
+            }
+            contentKeys.put(hashKey, getContentKey(hashKey, generation));
+        }
+        return contentKeys;
+    }
+
+    /**
+     * Records that the block at blockKey now points to contentKey.
+     */
+    public BlockRefs add(String contentKey, String blockKey) {
+        getUpdate(contentKey).put(blockKey, getGeneration(contentKey));
+        added.add(contentKey);
+        return this;
+    }
+
+    /**
+     * Records that the block at blockKey no longer points to contentKey.
+     */
+    public BlockRefs remove(String contentKey, String blockKey) {
+        LinkedHashMap<String, Long> update = getUpdate(contentKey);
+        // unless it points to another generation of the same content
+        if (!update.containsKey(blockKey))
+            update.put(blockKey, null);
+        removed.add(contentKey);
+        return this;
+    }
+
+    public boolean isEmpty() {
+        return updates.isEmpty() && generations.isEmpty();
+    }
+
+    /**
+     * Adds the changes to tx.
+     */
+    public void apply(BackendTransaction tx) {
+        HashSet<String> hashKeys = new HashSet<>(updates.keySet());
+        hashKeys.addAll(generations.keySet());
+        for (String hashKey : hashKeys) {
+            MapUpdate update = new MapUpdate();
+            Long generation = generations.get(hashKey);
+            if (generation != null)
+                update.assign(GENERATION, generation);
+            for (Entry<String, Long> referrer : updates
+                    .getOrDefault(hashKey, new LinkedHashMap<>()).entrySet())
+                if (referrer.getValue() == null)
+                    update.removeInteger(referrer.getKey());
+                else
+                    update.assign(referrer.getKey(), referrer.getValue());
+            tx.updateMap(getRefsKey(hashKey), update);
+        }
+    }
+
+    /**
+     * @return the content keys which lost referrers and gained none, to be
+     *         checked by the garbage collector
+     */
+    public Set<String> getUnreferenced() {
+        Set<String> unreferenced = new HashSet<>(removed);
+        unreferenced.removeAll(added);
+        return unreferenced;
+    }
+
+    private LinkedHashMap<String, Long> getUpdate(String contentKey) {
+        return updates.computeIfAbsent(getHashKey(contentKey), k -> new LinkedHashMap<>());
+    }
+
+    private static boolean hasReferrers(StoredMap refs, long generation) {
+        for (String blockKey : refs.keySet())
+            if (!blockKey.equals(GENERATION) && refs.getInteger(blockKey, 0L) == generation)
+                return true;
+        return false;
+    }
+}
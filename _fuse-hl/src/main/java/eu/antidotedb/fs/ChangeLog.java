@@ -0,0 +1,329 @@
+package eu.antidotedb.fs;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.UUID;
+
+/**
+ * The log of the changes made to the paths map, which lets mounts refresh
+ * their view of the namespace by fetching only what changed since their last
+ * refresh, instead of the whole paths map.
+ * <p>
+ * Every mount appends the changes it makes to its own log, in the same
+ * transaction as the changes themselves. A log is made of segment maps of
+ * SEGMENT_SIZE records each, keyed by sequence number; only the last
+ * RETAINED_SEGMENTS segments are kept. The registry map holds, for each mount,
+ * the number of records of its log and the first sequence number still
+ * retained.
+ * Readers keep a cursor per mount: if one of them falls behind the retained
+ * records, it has to read the whole paths map again.
+ * <p>
+ * The transactions of a mount may commit concurrently, each with the sequence
+ * numbers it reserved and incrementing the number of records by as many, so
+ * their records may appear out of order: readers stop at the first missing
+ * record, and resume from there at their next refresh. A failed transaction
+ * leaves a hole, filled with empty records by the next one to commit.
+ * <p>
+ * Each mount id is registered by the first commit of the mount, and a new one
+ * is drawn at every mount. So that the registry does not grow with them, mounts
+ * record in it when they were last seen (wall clock), as they commit and
+ * refresh; the registrations not seen for EXPIRY_PERIODS full-refresh periods
+ * (MIN_EXPIRY at least) are dropped, with their log, at the full refreshes of
+ * the other mounts. A mount finding itself expired registers again under a new
+ * id.
+ */
+public class ChangeLog {
+
+    private final StorageBackend          backend;
+    // period after which a registration not seen expires (ms)
+    private final long                    expiry;
+    // guarded by this
+    private String                        mountId;
+    // last time this mount was recorded as seen (ms)
+    private long                          lastSeen;
+    // next sequence number of this mount's log, reserved or not
+    private long                          nextSeq;
+    // greatest end of the records of this mount committed
+    private long                          committedEnd;
+    // number of records of this mount committed, holes included
+    private long                          committedRecords;
+    // ranges reserved by failed transactions, start to end
+    private final TreeMap<Long, Long>     holes    = new TreeMap<>();
+    // next sequence number to read from each mount's log
+    private final HashMap<String, Long>   cursors  = new HashMap<>();
+    // serializes the reads of the log. The store is never accessed under this,
+    // which commits lock while holding a connection: the reads only lock this
+    // to copy and merge the cursors
+    private final Object                  readLock = new Object();
+
+    static final String                   REGISTRY_MAP      = "PATHS_LOG";
+    static final private String           SEGMENT_PREFIX    = "PATHS_LOG_";
+    static final private String           MIN_SUFFIX        = ".min";
+    static final String                   SEEN_SUFFIX       = ".seen";
+    static final private int              SEGMENT_SIZE      = 1024;
+    static final private int              RETAINED_SEGMENTS = 16;
+    static final private int              EXPIRY_PERIODS    = 4;
+    static final private long             MIN_EXPIRY        = 60 * 1000;
+
+    public ChangeLog(StorageBackend backend, FsOptions options) {
+        this.backend = backend;
+        expiry = Math.max(EXPIRY_PERIODS * (long) options.getFullRefreshPeriod(), MIN_EXPIRY);
+        mountId = UUID.randomUUID().toString();
+    }
+
+    /**
+     * Appends changes to the log in tx and commits tx.
+     */
+    public void commit(BackendTransaction tx, List<PathChange> changes) {
+        String mountId;
+        long start;
+        long end;
+        TreeMap<Long, Long> filled;
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            mountId = this.mountId;
+            start = nextSeq;
+            end = nextSeq += changes.size();
+            filled = new TreeMap<>(holes);
+            holes.clear();
+        }
+
+        TreeMap<Long, MapUpdate> segments = new TreeMap<>();
+        for (Entry<Long, Long> hole : filled.entrySet())
+            for (long seq = hole.getKey(); seq < hole.getValue(); seq++)
+                segments.computeIfAbsent(seq / SEGMENT_SIZE, k -> new MapUpdate())
+                        .assign(Long.toString(seq), "");
+        long seq = start;
+        for (PathChange change : changes) {
+            segments.computeIfAbsent(seq / SEGMENT_SIZE, k -> new MapUpdate())
+                    .assign(Long.toString(seq), change.encode());
+            seq++;
+        }
+        for (Entry<Long, MapUpdate> segment : segments.entrySet())
+            tx.updateMap(getSegmentKey(mountId, segment.getKey()), segment.getValue());
+
+        long records = changes.size();
+        for (Entry<Long, Long> hole : filled.entrySet())
+            records += hole.getValue() - hole.getKey();
+        MapUpdate registryUpdate = new MapUpdate().increment(mountId, records)
+                .assign(mountId + SEEN_SUFFIX, now);
+        // drop the segments falling out of the retention window
+        long oldSegment = start / SEGMENT_SIZE - RETAINED_SEGMENTS;
+        long newSegment = end / SEGMENT_SIZE - RETAINED_SEGMENTS;
+        for (long s = Math.max(0, oldSegment + 1); s <= newSegment; s++) {
+            MapUpdate reset = new MapUpdate();
+            for (long r = s * SEGMENT_SIZE; r < (s + 1) * SEGMENT_SIZE; r++)
+                reset.removeRegister(Long.toString(r));
+            tx.updateMap(getSegmentKey(mountId, s), reset);
+            registryUpdate.assign(mountId + MIN_SUFFIX, (s + 1) * SEGMENT_SIZE);
+        }
+        tx.updateMap(REGISTRY_MAP, registryUpdate);
+
+        try {
+            tx.commit();
+        } catch (RuntimeException e) {
+            synchronized (this) {
+                if (mountId.equals(this.mountId)) {
+                    holes.putAll(filled);
+                    holes.put(start, end);
+                }
+            }
+            throw e;
+        }
+        synchronized (this) {
+            // unless registered again meanwhile
+            if (mountId.equals(this.mountId)) {
+                committedEnd = Math.max(committedEnd, end);
+                committedRecords += records;
+                lastSeen = Math.max(lastSeen, now);
+                // the changes of this mount are applied by the mount itself
+                cursors.merge(mountId, committedEnd, Math::max);
+            }
+        }
+    }
+
+    /**
+     * Moves the cursors to the current end of every log, and drops the expired
+     * registrations. To be called right before reading the whole paths map.
+     */
+    public void resetCursors() {
+        synchronized (readLock) {
+            StoredMap registry = readRegistry();
+            String mountId;
+            synchronized (this) {
+                mountId = this.mountId;
+            }
+            HashMap<String, Long> newCursors = new HashMap<>();
+            long now = System.currentTimeMillis();
+            List<String> expired = new ArrayList<>();
+            for (String key : registry.keySet())
+                if (isMount(key)) {
+                    if (!key.equals(mountId)
+                            && now - registry.getInteger(key + SEEN_SUFFIX, 0L) > expiry)
+                        expired.add(key);
+                    else
+                        newCursors.put(key, registry.getInteger(key, 0L));
+                }
+            synchronized (this) {
+                cursors.clear();
+                cursors.putAll(newCursors);
+                cursors.merge(mountId, committedEnd, Math::max);
+            }
+            if (!expired.isEmpty())
+                expire(registry, expired);
+        }
+    }
+
+    // drops registrations along with their retained records
+    private void expire(StoredMap registry, List<String> mounts) {
+        try (BackendTransaction tx = backend.startTransaction()) {
+            MapUpdate registryUpdate = new MapUpdate();
+            for (String mount : mounts) {
+                long min = registry.getInteger(mount + MIN_SUFFIX, 0L);
+                long next = registry.getInteger(mount, 0L);
+                for (long s = min / SEGMENT_SIZE; s <= (next - 1) / SEGMENT_SIZE; s++) {
+                    MapUpdate reset = new MapUpdate();
+                    for (long r = Math.max(min, s * SEGMENT_SIZE);
+                            r < Math.min(next, (s + 1) * SEGMENT_SIZE); r++)
+                        reset.removeRegister(Long.toString(r));
+                    if (!reset.isEmpty())
+                        tx.updateMap(getSegmentKey(mount, s), reset);
+                }
+                registryUpdate.removeInteger(mount).removeInteger(mount + MIN_SUFFIX)
+                        .removeInteger(mount + SEEN_SUFFIX);
+            }
+            tx.updateMap(REGISTRY_MAP, registryUpdate);
+            tx.commit();
+        }
+    }
+
+    /**
+     * Reads the registry, then records this mount as seen, at most once per
+     * full-refresh period, or registers it again under a new id if its
+     * registration expired. To be called under the read lock.
+     */
+    private StoredMap readRegistry() {
+        long registered;
+        synchronized (this) {
+            registered = committedRecords;
+        }
+        // read after this mount had committed registered records
+        StoredMap registry = backend.noTransaction().readMap(REGISTRY_MAP);
+        if (registered == 0) // nothing committed, not registered
+            return registry;
+        long now = System.currentTimeMillis();
+        String seenKey;
+        synchronized (this) {
+            // dropped, possibly registered again by a commit since
+            if (registry.getInteger(mountId, 0L) < registered) {
+                cursors.remove(mountId);
+                mountId = UUID.randomUUID().toString();
+                nextSeq = 0;
+                committedEnd = 0;
+                committedRecords = 0;
+                holes.clear();
+                return registry;
+            }
+            if (now - lastSeen <= expiry / EXPIRY_PERIODS)
+                return registry;
+            lastSeen = now;
+            seenKey = mountId + SEEN_SUFFIX;
+        }
+        backend.noTransaction().updateMap(REGISTRY_MAP, new MapUpdate().assign(seenKey, now));
+        return registry;
+    }
+
+    private static boolean isMount(String key) {
+        return !key.endsWith(MIN_SUFFIX) && !key.endsWith(SEEN_SUFFIX);
+    }
+
+    /**
+     * @return the next sequence number to read from each mount's log
+     */
+    synchronized public Map<String, Long> getCursors() {
+        return new HashMap<>(cursors);
+    }
+
+    /**
+     * Moves the cursors to positions saved by {@link #getCursors()}, e.g. in a
+     * {@link NamespaceSnapshot}, instead of the end of every log.
+     */
+    synchronized public void setCursors(Map<String, Long> saved) {
+        cursors.clear();
+        cursors.putAll(saved);
+    }
+
+    /**
+     * @return the changes logged by the other mounts since the last call, in
+     *         the order each mount made them, or null if some of them are no
+     *         longer in the log; the changes of a mount following a record not
+     *         committed yet are left to the next call
+     */
+    public List<PathChange> poll() {
+        synchronized (readLock) {
+            StoredMap registry = readRegistry();
+            String mountId;
+            HashMap<String, Long> cursors;
+            synchronized (this) {
+                mountId = this.mountId;
+                cursors = new HashMap<>(this.cursors);
+            }
+            // the changes of an expired mount may not have all been read
+            for (String mount : cursors.keySet())
+                if (!mount.equals(mountId) && !registry.containsKey(mount))
+                    return null;
+
+            HashMap<String, Long> newCursors = new HashMap<>();
+            List<String> segmentKeys = new ArrayList<>();
+            for (String key : registry.keySet()) {
+                if (!isMount(key))
+                    continue;
+                long cursor = cursors.getOrDefault(key, 0L);
+                long next = registry.getInteger(key, 0L);
+                if (next <= cursor)
+                    continue;
+                if (cursor < registry.getInteger(key + MIN_SUFFIX, 0L))
+                    return null;
+                newCursors.put(key, next);
+                for (long s = cursor / SEGMENT_SIZE; s <= (next - 1) / SEGMENT_SIZE; s++)
+                    segmentKeys.add(getSegmentKey(key, s));
+            }
+
+            List<PathChange> changes = new ArrayList<>();
+            if (segmentKeys.isEmpty())
+                return changes;
+            HashMap<String, StoredMap> segments = new HashMap<>();
+            List<StoredMap> res = backend.noTransaction().readMaps(segmentKeys);
+            for (int i = 0; i < segmentKeys.size(); i++)
+                segments.put(segmentKeys.get(i), res.get(i));
+
+            for (Entry<String, Long> entry : newCursors.entrySet()) {
+                String mount = entry.getKey();
+                for (long seq = cursors.getOrDefault(mount, 0L); seq < entry.getValue(); seq++) {
+                    String record = segments.get(getSegmentKey(mount, seq / SEGMENT_SIZE))
+                            .getString(Long.toString(seq));
+                    if (record == null) {
+                        entry.setValue(seq);
+                        break;
+                    }
+                    if (!record.isEmpty()) // filling a hole
+                        changes.add(PathChange.decode(record));
+                }
+            }
+            synchronized (this) {
+                // the own cursor may have moved with the commits meanwhile
+                for (Entry<String, Long> entry : newCursors.entrySet())
+                    this.cursors.merge(entry.getKey(), entry.getValue(), Math::max);
+            }
+            return changes;
+        }
+    }
+
+    private static String getSegmentKey(String mount, long segment) {
+        return SEGMENT_PREFIX + mount + "_" + segment;
+    }
+}
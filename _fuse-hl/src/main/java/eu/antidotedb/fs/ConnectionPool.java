@@ -0,0 +1,95 @@
+package eu.antidotedb.fs;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * A fixed pool of connections to the storage, shared by the FUSE threads.
+ * Callers hold a connection for the duration of a request (or of an
+ * interactive transaction), so that as many requests as connections can be in
+ * flight at once; the others wait for a connection to be released.
+ * <p>
+ * The pool also runs asynchronous requests, on as many I/O threads as
+ * connections, so that a caller can issue several independent requests and
+ * wait for all of them.
+ */
+public class ConnectionPool<C> {
+
+    private final ArrayBlockingQueue<C> idle;
+    private final ThreadPoolExecutor    ioExecutor;
+    // callers waiting for a connection
+    private final AtomicInteger         waiting  = new AtomicInteger();
+    private final AtomicInteger         inFlight = new AtomicInteger();
+
+    public ConnectionPool(List<C> connections) {
+        idle = new ArrayBlockingQueue<>(connections.size(), false, connections);
+        AtomicInteger threads = new AtomicInteger();
+        ioExecutor = new ThreadPoolExecutor(connections.size(), connections.size(), 0,
+                TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), r -> {
+                    Thread t = new Thread(r, "antidote-io-" + threads.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                });
+    }
+
+    /**
+     * @return an idle connection, waiting for one if none is available
+     */
+    public C acquire() {
+        C connection = idle.poll();
+        if (connection == null) {
+            waiting.incrementAndGet();
+            try {
+                connection = idle.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("interrupted waiting for a connection", e);
+            } finally {
+                waiting.decrementAndGet();
+            }
+        }
+        inFlight.incrementAndGet();
+        return connection;
+    }
+
+    public void release(C connection) {
+        inFlight.decrementAndGet();
+        idle.add(connection);
+    }
+
+    /**
+     * Runs request on an I/O thread.
+     */
+    public <T> CompletableFuture<T> submit(Supplier<T> request) {
+        return CompletableFuture.supplyAsync(request, ioExecutor);
+    }
+
+    /**
+     * @return the number of requests waiting for a connection, or queued for
+     *         an I/O thread
+     */
+    public int getQueueDepth() {
+        return waiting.get() + ioExecutor.getQueue().size();
+    }
+
+    /**
+     * @return the number of connections in use
+     */
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    public int size() {
+        return idle.remainingCapacity() + idle.size();
+    }
+
+    public void close() {
+        ioExecutor.shutdownNow();
+    }
+}
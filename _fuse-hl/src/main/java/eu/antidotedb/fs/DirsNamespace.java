@@ -0,0 +1,457 @@
+package eu.antidotedb.fs;
+
+import static java.io.File.separator;
+import static java.io.File.separatorChar;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * The per-directory layout: the entries of each directory (name to inode key)
+ * are stored in an entries map of their own, next to the directory's inode
+ * map, and the paths map only binds the root. Paths are resolved component by
+ * component, loading directories on demand into an LRU cache of bounded size:
+ * a mount only reads, holds and refreshes the directories it actually uses.
+ * <p>
+ * The changes to the entries are logged in the {@link ChangeLog}, one record
+ * per entry, which mounts poll to apply the changes of the others to the
+ * directories they hold. The loaded directories are read again periodically,
+ * or when some changes are no longer in the log.
+ * <p>
+ * Volumes created with the single-map layout are converted with
+ * {@link LayoutMigration}.
+ */
+public class DirsNamespace implements Namespace {
+
+    private final StorageBackend                    backend;
+    private final ChangeLog                         changeLog;
+    private final GroupCommit                       groupCommit;
+    private final long                              fullRefreshPeriod;
+    // loaded directories, in access order; guarded by itself
+    private final LinkedHashMap<String, Directory>  dirs;
+    // directories being loaded; guarded by this
+    private final HashMap<String, Loading>          loading       = new HashMap<>();
+    private volatile String                         rootKey;
+    // the changes applied in memory and not committed yet, by identity
+    private final Set<List<PathChange>>             uncommitted   = Collections
+            .newSetFromMap(new IdentityHashMap<>());
+    // serializes the refreshes, which only lock this to apply what they read
+    private final Object                            refreshLock   = new Object();
+    private long                                    lastFullRefresh;
+
+    // prefix of the entries in an entries map, followed by their name
+    static final String                             ENTRY_PREFIX  = separator;
+    // suffix of the key of the entries map of a directory, after its inode key
+    static final private String                     ENTRIES_SUFFIX = separator;
+    // separator of the directory key and the entry name in the changes of an
+    // entry, which are path changes of <directory key>/<name>
+    static final private char                       CHANGE_SEP    = separatorChar;
+
+    private static class Directory {
+        // name to inode key
+        private final ConcurrentHashMap<String, String> entries = new ConcurrentHashMap<>();
+
+        private Directory() {
+        }
+
+        private Directory(StoredMap entriesMap) {
+            entries.putAll(getEntries(entriesMap));
+        }
+    }
+
+    // a directory being read by the first thread needing it, which the others
+    // wait for
+    private static class Loading {
+        final CompletableFuture<Directory> loaded  = new CompletableFuture<>();
+        // the changes to apply to what is read, in order
+        final List<PathChange>             changes = new ArrayList<>();
+    }
+
+    public DirsNamespace(StorageBackend backend, FsOptions options) {
+        this.backend = backend;
+        changeLog = new ChangeLog(backend, options);
+        groupCommit = new GroupCommit(backend, changeLog::commit, options);
+        fullRefreshPeriod = TimeUnit.MILLISECONDS.toNanos(options.getFullRefreshPeriod());
+        int capacity = options.getDirCacheSize();
+        dirs = new LinkedHashMap<String, Directory>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Directory> eldest) {
+                return size() > capacity;
+            }
+        };
+        // nothing loaded yet: the changes logged so far are read with the
+        // directories
+        changeLog.resetCursors();
+        lastFullRefresh = System.nanoTime();
+        rootKey = backend.noTransaction().readMap(PathsNamespace.PATHS_MAP).getString(separator);
+    }
+
+    /**
+     * @return the key of the map holding the entries of a directory
+     */
+    static String getEntriesKey(String dirKey) {
+        return dirKey + ENTRIES_SUFFIX;
+    }
+
+    @Override
+    public String getInodeKey(String path) {
+        String key = rootKey;
+        int start = separator.length();
+        while (key != null && start < path.length()) {
+            if (!FsModel.isDirectoryKey(key))
+                return null;
+            int end = path.indexOf(separatorChar, start);
+            if (end < 0)
+                end = path.length();
+            key = getDirectory(key).entries.get(path.substring(start, end));
+            start = end + separator.length();
+        }
+        return key;
+    }
+
+    @Override
+    public Collection<String> getChildren(String path) {
+        String key = getInodeKey(path);
+        if (key == null || !FsModel.isDirectoryKey(key))
+            return Collections.emptySet();
+        return Collections.unmodifiableSet(getDirectory(key).entries.keySet());
+    }
+
+    @Override
+    public void create(String path, String inodeKey, MapUpdate inode) {
+        // a new directory is empty, no need to read it
+        if (FsModel.isDirectoryKey(inodeKey))
+            synchronized (dirs) {
+                dirs.put(inodeKey, new Directory());
+            }
+        if (path.equals(separator)) {
+            rootKey = inodeKey;
+            commit(Collections.emptyList(), tx -> {
+                tx.updateMap(PathsNamespace.PATHS_MAP, new MapUpdate().assign(separator, inodeKey));
+                tx.updateMap(inodeKey, inode);
+            });
+        } else {
+            String parentKey = getParentKey(path);
+            String name = FsModel.getNameFromPath(path);
+            commit(Collections.singletonList(bind(parentKey, name, inodeKey)), tx -> {
+                tx.updateMap(getEntriesKey(parentKey),
+                        new MapUpdate().assign(ENTRY_PREFIX + name, inodeKey));
+                tx.updateMap(inodeKey, inode);
+            });
+        }
+    }
+
+    @Override
+    public void rename(String inodeKey, String oldPath, String newPath) {
+        if (oldPath.equals(newPath))
+            return;
+        String oldParentKey = getParentKey(oldPath);
+        String newParentKey = getParentKey(newPath);
+        String oldName = FsModel.getNameFromPath(oldPath);
+        String newName = FsModel.getNameFromPath(newPath);
+
+        // only the entry of the moved inode changes: its descendants are bound
+        // to it, not to its path; an entry at newPath is overwritten
+        commit(Arrays.asList(unbind(oldParentKey, oldName), bind(newParentKey, newName, inodeKey)),
+                tx -> {
+                    MapUpdate addEntry = new MapUpdate().assign(ENTRY_PREFIX + newName, inodeKey);
+                    if (oldParentKey.equals(newParentKey)) {
+                        tx.updateMap(getEntriesKey(newParentKey),
+                                addEntry.removeRegister(ENTRY_PREFIX + oldName));
+                    } else {
+                        tx.updateMap(getEntriesKey(newParentKey), addEntry);
+                        tx.updateMap(getEntriesKey(oldParentKey),
+                                new MapUpdate().removeRegister(ENTRY_PREFIX + oldName));
+                    }
+                });
+    }
+
+    @Override
+    public void remove(String path) {
+        String parentKey = getParentKey(path);
+        String name = FsModel.getNameFromPath(path);
+        commit(Collections.singletonList(unbind(parentKey, name)),
+                tx -> tx.updateMap(getEntriesKey(parentKey),
+                        new MapUpdate().removeRegister(ENTRY_PREFIX + name)));
+    }
+
+    /**
+     * Applies to the loaded directories the changes logged by the other mounts
+     * since the last refresh, without reading the directories. They are read
+     * again instead, in a single batch, periodically and when some changes are
+     * no longer in the log. The reads from the store do not hold the namespace
+     * lock.
+     */
+    @Override
+    public boolean refresh() {
+        synchronized (refreshLock) {
+            if (System.nanoTime() - lastFullRefresh < fullRefreshPeriod) {
+                List<PathChange> changes = changeLog.poll();
+                if (changes != null) {
+                    synchronized (this) {
+                        for (PathChange change : changes)
+                            applyLoaded(change);
+                    }
+                    return !changes.isEmpty();
+                }
+            }
+
+            List<String> keys;
+            synchronized (dirs) {
+                keys = new ArrayList<>(dirs.keySet());
+            }
+            List<List<PathChange>> pending;
+            synchronized (this) {
+                pending = new ArrayList<>(uncommitted);
+            }
+            changeLog.resetCursors();
+            lastFullRefresh = System.nanoTime();
+            if (keys.isEmpty())
+                return false;
+
+            List<String> entriesKeys = new ArrayList<>(keys.size());
+            for (String key : keys)
+                entriesKeys.add(getEntriesKey(key));
+            List<StoredMap> entriesMaps = backend.noTransaction().readMaps(entriesKeys);
+            boolean changed = false;
+            synchronized (this) {
+                // the changes of this mount being committed may not be in the
+                // read, including the ones made since
+                pending.addAll(uncommitted);
+                for (int i = 0; i < keys.size(); i++) {
+                    Directory dir = getLoaded(keys.get(i));
+                    if (dir == null) // evicted meanwhile
+                        continue;
+                    HashMap<String, String> entries = getEntries(entriesMaps.get(i));
+                    for (List<PathChange> changes : pending)
+                        for (PathChange change : changes)
+                            if (getDirKey(change).equals(keys.get(i)))
+                                apply(entries, change);
+                    if (!entries.equals(dir.entries)) {
+                        dir.entries.keySet().retainAll(entries.keySet());
+                        dir.entries.putAll(entries);
+                        changed = true;
+                    }
+                }
+            }
+            return changed;
+        }
+    }
+
+    /**
+     * Walks the whole tree from the root, one level per batch of reads, until
+     * all of inodeKeys are found.
+     */
+    @Override
+    public Set<String> getReachable(Collection<String> inodeKeys) {
+        HashSet<String> reachable = new HashSet<>();
+        HashSet<String> visited = new HashSet<>();
+        List<String> level = new ArrayList<>();
+        if (rootKey != null)
+            level.add(rootKey);
+        while (!level.isEmpty() && reachable.size() < inodeKeys.size()) {
+            List<String> next = new ArrayList<>();
+            List<String> entriesKeys = new ArrayList<>(level.size());
+            for (String key : level)
+                entriesKeys.add(getEntriesKey(key));
+            for (StoredMap dir : backend.noTransaction().readMaps(entriesKeys))
+                for (String key : getEntries(dir).values()) {
+                    if (inodeKeys.contains(key))
+                        reachable.add(key);
+                    if (FsModel.isDirectoryKey(key) && visited.add(key))
+                        next.add(key);
+                }
+            level = next;
+        }
+        return reachable;
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        synchronized (dirs) {
+            for (Directory dir : dirs.values())
+                size += dir.entries.size();
+        }
+        return size;
+    }
+
+    @Override
+    public void close() {
+        groupCommit.close();
+    }
+
+    /**
+     * Applies changes to the loaded directories, then commits them along with
+     * updates. Only the in-memory changes hold the namespace lock, so that the
+     * commits of concurrent changes overlap; loads and refreshes apply again the
+     * changes not committed yet to what they read. If the commit fails, the
+     * directories changed are dropped, to be read again.
+     */
+    private void commit(List<PathChange> changes, Consumer<BackendTransaction> updates) {
+        synchronized (this) {
+            for (PathChange change : changes)
+                applyLoaded(change);
+            uncommitted.add(changes);
+        }
+        try {
+            GroupCommit.await(groupCommit.submit(changes, updates));
+        } catch (RuntimeException e) {
+            synchronized (this) {
+                uncommitted.remove(changes);
+                synchronized (dirs) {
+                    for (PathChange change : changes)
+                        dirs.remove(getDirKey(change));
+                }
+            }
+            throw e;
+        }
+        synchronized (this) {
+            uncommitted.remove(changes);
+        }
+    }
+
+    // applies the change of an entry to its directory if loaded or being
+    // loaded; to be called under the namespace lock
+    private void applyLoaded(PathChange change) {
+        String dirKey = getDirKey(change);
+        Directory dir = getLoaded(dirKey);
+        if (dir != null)
+            apply(dir.entries, change);
+        Loading load = loading.get(dirKey);
+        if (load != null)
+            load.changes.add(change);
+    }
+
+    /**
+     * Applies the change of an entry to the entries of its directory; the
+     * directory it unbinds, if any, is no longer loaded.
+     */
+    private void apply(Map<String, String> entries, PathChange change) {
+        String name = getName(change);
+        String unbound = change.isRemoval() ? entries.remove(name)
+                : entries.put(name, change.getInodeKey());
+        if (unbound != null && !unbound.equals(change.getInodeKey()))
+            synchronized (dirs) {
+                dirs.remove(unbound);
+            }
+    }
+
+    private static PathChange bind(String dirKey, String name, String inodeKey) {
+        return PathChange.bind(dirKey + CHANGE_SEP + name, inodeKey);
+    }
+
+    private static PathChange unbind(String dirKey, String name) {
+        return PathChange.remove(dirKey + CHANGE_SEP + name);
+    }
+
+    // empty for the changes logged by the single-map layout, which start with
+    // the separator
+    private static String getDirKey(PathChange change) {
+        return change.getPath().substring(0, change.getPath().indexOf(CHANGE_SEP));
+    }
+
+    private static String getName(PathChange change) {
+        return change.getPath().substring(change.getPath().indexOf(CHANGE_SEP) + 1);
+    }
+
+    /**
+     * @return the directory bound to key, loaded from the store if needed. A
+     *         directory is read once by the first thread needing it, without
+     *         holding the namespace lock: the local changes not committed when
+     *         it starts, and the changes made while it reads, are applied to
+     *         what it reads.
+     */
+    private Directory getDirectory(String key) {
+        Directory dir = getLoaded(key);
+        if (dir != null)
+            return dir;
+        Loading load;
+        boolean loader;
+        synchronized (this) {
+            dir = getLoaded(key);
+            if (dir != null)
+                return dir;
+            load = loading.get(key);
+            loader = load == null;
+            if (loader) {
+                load = new Loading();
+                for (List<PathChange> changes : uncommitted)
+                    for (PathChange change : changes)
+                        if (getDirKey(change).equals(key))
+                            load.changes.add(change);
+                loading.put(key, load);
+            }
+        }
+        if (!loader)
+            return await(load);
+
+        try {
+            StoredMap entries = backend.noTransaction().readMap(getEntriesKey(key));
+            synchronized (this) {
+                dir = new Directory(entries);
+                for (PathChange change : load.changes)
+                    apply(dir.entries, change);
+                synchronized (dirs) {
+                    dirs.put(key, dir);
+                }
+                loading.remove(key);
+            }
+        } catch (RuntimeException e) {
+            synchronized (this) {
+                loading.remove(key);
+            }
+            load.loaded.completeExceptionally(e);
+            throw e;
+        }
+        load.loaded.complete(dir);
+        return dir;
+    }
+
+    private static Directory await(Loading load) {
+        try {
+            return load.loaded.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw e;
+        }
+    }
+
+    private Directory getLoaded(String key) {
+        synchronized (dirs) {
+            return dirs.get(key);
+        }
+    }
+
+    private String getParentKey(String path) {
+        String parentKey = getInodeKey(FsModel.getParentPath(path));
+        if (parentKey == null || !FsModel.isDirectoryKey(parentKey))
+            throw new IllegalStateException("parent of " + path + " is not a directory");
+        return parentKey;
+    }
+
+    private static HashMap<String, String> getEntries(StoredMap entriesMap) {
+        HashMap<String, String> entries = new HashMap<>();
+        for (String key : entriesMap.keySet())
+            if (key.startsWith(ENTRY_PREFIX))
+                entries.put(key.substring(ENTRY_PREFIX.length()), entriesMap.getString(key));
+        return entries;
+    }
+}
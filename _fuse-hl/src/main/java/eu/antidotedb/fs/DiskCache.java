@@ -0,0 +1,357 @@
+package eu.antidotedb.fs;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+
+/**
+ * A cache of file content blocks in a local directory, which survives the
+ * restarts of the mount, bounded in bytes. It is the second tier of the
+ * {@link BlockCache}.
+ * <p>
+ * Blocks are appended to memory-mapped segment files, of a sixteenth of the
+ * capacity each, and served straight from the mappings. The index, from block
+ * key to the version and location of its last record, is held in memory and
+ * rebuilt at startup by scanning the segments: each record carries a CRC32,
+ * and a segment is only read up to its first damaged record (e.g. the one being
+ * written when the process died). When the capacity is exceeded, the oldest
+ * segment is dropped.
+ * <p>
+ * As in the memory tier, a block is only returned to readers asking for the
+ * version it was cached with, taken from the inode manifest they read: once
+ * another mount writes the block, its cached content is no longer served.
+ * <p>
+ * A segment is a sequence of records made of the key length (int, 0 past the
+ * last record), the key in UTF-8, the version (long), the block length (int),
+ * the CRC32 of the preceding fields and the block, and the block.
+ */
+public class DiskCache {
+
+    private final File                      directory;
+    private final long                      capacity;
+    private final int                       segmentSize;
+    // held while the directory is in use, so that no other mount shares it
+    private final FileLock                  lock;
+
+    // oldest first
+    private final ArrayDeque<Segment>       segments  = new ArrayDeque<>();
+    private final HashMap<String, Location> index     = new HashMap<>();
+    // the segment records are appended to, null until the first one; the
+    // segments found at startup are only read
+    private Segment                         current;
+    private long                            nextSegmentId;
+    // false once new segments can no longer be created
+    private boolean                         writable  = true;
+
+    private final LongAdder                 hits      = new LongAdder();
+    private final LongAdder                 misses    = new LongAdder();
+    private final LongAdder                 evictions = new LongAdder();
+
+    static final private String             SEGMENT_PREFIX = "segment-";
+    static final private String             LOCK_FILE      = "lock";
+    static final private int                SEGMENTS       = 16;
+    static final private int                MAX_SEGMENT    = 1 << 30;
+    // key length, version, block length, CRC
+    static final private int                HEADER_SIZE    = 4 + 8 + 4 + 4;
+
+    private static final Logger             log            = LogManager.getLogger();
+
+    private static class Segment {
+        final File             file;
+        final MappedByteBuffer buffer;
+        // end of the last record
+        int                    end;
+
+        Segment(File file, MappedByteBuffer buffer) {
+            this.file = file;
+            this.buffer = buffer;
+        }
+    }
+
+    private static class Location {
+        final Segment segment;
+        final long    version;
+        // of the block in the segment
+        final int     offset;
+        final int     length;
+
+        Location(Segment segment, long version, int offset, int length) {
+            this.segment = segment;
+            this.version = version;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Opens the cache in directory, created if needed, and indexes the blocks
+     * it holds.
+     *
+     * @param capacity
+     *            max total size of the segment files (bytes)
+     * @throws UncheckedIOException
+     *             if the directory cannot be used
+     * @throws IllegalStateException
+     *             if the directory is in use by another mount
+     */
+    public DiskCache(File directory, long capacity) {
+        this.directory = directory;
+        this.capacity = capacity;
+        segmentSize = (int) Math.min(MAX_SEGMENT, capacity / SEGMENTS);
+        try {
+            if (!directory.isDirectory() && !directory.mkdirs())
+                throw new IOException("cannot create " + directory);
+            FileChannel lockFile = new RandomAccessFile(new File(directory, LOCK_FILE), "rw")
+                    .getChannel();
+            lock = lockFile.tryLock();
+            if (lock == null) {
+                lockFile.close();
+                throw new IllegalStateException(directory + " is used by another mount");
+            }
+            load();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @return the cached content of the given version of a block, or null
+     */
+    synchronized public ByteString get(String blockKey, long version) {
+        Location location = index.get(blockKey);
+        if (location == null || location.version != version) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        ByteBuffer block = location.segment.buffer.asReadOnlyBuffer();
+        block.position(location.offset).limit(location.offset + location.length);
+        return UnsafeByteOperations.unsafeWrap(block.slice());
+    }
+
+    /**
+     * @return whether the given version of a block is cached, without counting
+     *         a hit or a miss
+     */
+    synchronized public boolean contains(String blockKey, long version) {
+        Location location = index.get(blockKey);
+        return location != null && location.version == version;
+    }
+
+    synchronized public void put(String blockKey, long version, ByteString data) {
+        Location old = index.get(blockKey);
+        if (old != null && old.version == version)
+            return;
+        byte[] key = blockKey.getBytes(UTF_8);
+        long recordSize = (long) HEADER_SIZE + key.length + data.size();
+        if (recordSize > segmentSize)
+            return;
+
+        if (current == null || current.end + recordSize > segmentSize) {
+            current = addSegment();
+            if (current == null)
+                return;
+        }
+        Segment segment = current;
+        ByteBuffer out = segment.buffer.duplicate();
+        out.position(segment.end);
+        out.putInt(key.length).put(key).putLong(version).putInt(data.size());
+        int crcPosition = out.position();
+        out.putInt(0);
+        int offset = out.position();
+        data.copyTo(out);
+        ByteBuffer record = segment.buffer.duplicate();
+        record.position(segment.end).limit(crcPosition);
+        CRC32 crc = new CRC32();
+        crc.update(record);
+        record.limit(offset + data.size()).position(offset);
+        crc.update(record);
+        segment.buffer.putInt(crcPosition, (int) crc.getValue());
+        segment.end = offset + data.size();
+        index.put(blockKey, new Location(segment, version, offset, data.size()));
+    }
+
+    synchronized public void invalidate(String blockKey) {
+        index.remove(blockKey);
+    }
+
+    /**
+     * Writes the last segment out and releases the directory.
+     */
+    synchronized public void close() {
+        if (current != null)
+            current.buffer.force();
+        try {
+            lock.release();
+            lock.channel().close();
+        } catch (IOException e) {
+            log.warn("failed to release " + directory, e);
+        }
+    }
+
+    /**
+     * @return the number of blocks indexed
+     */
+    synchronized public int size() {
+        return index.size();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return the number of segments dropped to stay within the capacity
+     */
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    // indexes the records of the existing segments, oldest first
+    private void load() throws IOException {
+        List<Long> ids = new ArrayList<>();
+        File[] files = directory.listFiles();
+        for (File file : files == null ? new File[0] : files) {
+            String name = file.getName();
+            if (!name.startsWith(SEGMENT_PREFIX))
+                continue;
+            try {
+                ids.add(Long.parseLong(name.substring(SEGMENT_PREFIX.length())));
+            } catch (NumberFormatException e) {
+                // not a segment
+            }
+        }
+        Collections.sort(ids);
+        int damaged = 0;
+        for (long id : ids) {
+            File file = getSegmentFile(id);
+            MappedByteBuffer buffer;
+            try (FileChannel channel = new RandomAccessFile(file, "r").getChannel()) {
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                        Math.min(channel.size(), MAX_SEGMENT));
+            }
+            Segment segment = new Segment(file, buffer);
+            if (!scan(segment))
+                damaged++;
+            segments.add(segment);
+            nextSegmentId = id + 1;
+        }
+        evict();
+        if (!segments.isEmpty())
+            log.info("disk cache {}: {} blocks in {} segments, {} damaged", directory,
+                    index.size(), segments.size(), damaged);
+    }
+
+    /**
+     * Indexes the records of segment, up to the first damaged one.
+     *
+     * @return whether the segment is sound
+     */
+    private boolean scan(Segment segment) {
+        ByteBuffer in = segment.buffer.duplicate();
+        CRC32 crc = new CRC32();
+        while (in.remaining() >= 4) {
+            int start = in.position();
+            int keyLength = in.getInt();
+            if (keyLength == 0)
+                return true;
+            if (keyLength < 0 || keyLength > in.remaining() - (HEADER_SIZE - 4))
+                return false;
+            byte[] key = new byte[keyLength];
+            in.get(key);
+            long version = in.getLong();
+            int length = in.getInt();
+            int crcPosition = in.position();
+            int expectedCrc = in.getInt();
+            if (length < 0 || length > in.remaining())
+                return false;
+
+            ByteBuffer record = in.duplicate();
+            record.position(start).limit(crcPosition);
+            crc.reset();
+            crc.update(record);
+            record.limit(in.position() + length).position(in.position());
+            crc.update(record);
+            if ((int) crc.getValue() != expectedCrc)
+                return false;
+
+            index.put(new String(key, UTF_8),
+                    new Location(segment, version, in.position(), length));
+            in.position(in.position() + length);
+            segment.end = in.position();
+        }
+        return true;
+    }
+
+    /**
+     * Maps a new segment to append records to, zero-filled so that it ends
+     * after its last record, and drops the oldest ones past the capacity.
+     *
+     * @return the segment, or null if it cannot be created
+     */
+    private Segment addSegment() {
+        if (!writable)
+            return null;
+        long id = nextSegmentId++;
+        File file = getSegmentFile(id);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(segmentSize);
+            if (current != null)
+                current.buffer.force();
+            Segment segment = new Segment(file,
+                    raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize));
+            segments.add(segment);
+            evict();
+            return segment;
+        } catch (IOException e) {
+            log.warn("disk cache " + directory + " no longer written", e);
+            writable = false;
+            file.delete();
+            return null;
+        }
+    }
+
+    // drops the oldest segments, and the blocks they hold, past the capacity
+    private void evict() {
+        while ((long) segments.size() * segmentSize > capacity && segments.size() > 1) {
+            Segment oldest = segments.poll();
+            Iterator<Location> it = index.values().iterator();
+            while (it.hasNext())
+                if (it.next().segment == oldest)
+                    it.remove();
+            // served blocks remain readable until their mapping is collected
+            if (!oldest.file.delete())
+                log.warn("failed to delete {}", oldest.file);
+            evictions.increment();
+        }
+    }
+
+    private File getSegmentFile(long id) {
+        return new File(directory, SEGMENT_PREFIX + id);
+    }
+}
@@ -1,211 +1,572 @@
 package eu.antidotedb.fs;
 
-import static eu.antidotedb.client.Key.*;
 import static java.io.File.separator;
+import static java.io.File.separatorChar;
 
-import java.net.InetSocketAddress;
-import java.nio.ByteBuffer;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
 import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 
 import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
 
-import eu.antidotedb.client.AntidoteClient;
-import eu.antidotedb.client.Bucket;
-import eu.antidotedb.client.InteractiveTransaction;
-import eu.antidotedb.client.Key;
-import eu.antidotedb.client.MapKey;
-import eu.antidotedb.client.ValueCoder;
-import eu.antidotedb.client.MapKey.MapReadResult;
 import jnr.ffi.Pointer;
+import jnr.ffi.Runtime;
 import ru.serce.jnrfuse.FuseFillDir;
 import ru.serce.jnrfuse.struct.FileStat;
 
 public class FsModel implements Runnable {
 
-    private final AntidoteClient                antidote;
-    private final Bucket                        bucket;
+    private final StorageBackend                backend;
     private final int                           refreshPeriod;
-
-    private final MapKey                        pathsKey;
-    private MapReadResult                       pathsMap;
+    private final int                           blockSize;
+    private final BlockCodec                    compression;
+    private final boolean                       dedup;
+    private final int                           readdirBatch;
+    private final BlockCache                    blockCache;
+    private final AttrCache                     attrCache;
+    private final NegativeCache                 negativeCache;
+    // blocks being prefetched, by block key
+    private final ConcurrentHashMap<String, PendingBlock> prefetching = new ConcurrentHashMap<>();
+
+    private final Namespace                     namespace;
+    private final GarbageCollector              gc;
+    private final Metrics                       metrics;
     private final ScheduledExecutorService      pathsRefreshScheduler;
+    private final int                           maxRefreshPeriod;
+    // current period of the refresh, adapted to the rate of remote changes
+    private int                                 currentRefreshPeriod;
 
-    static final private String                 BUCKET_LABEL           = "antidote-fs";
-    static final private String                 PATHS_MAP              = "PATHS";
-
-    // default period for refreshing the path map
-    static final private int                    DEFAULT_REFRESH_PERIOD = 5000;
+    private static final Logger                 log                    = LogManager.getLogger();
 
     // prefixes of inode maps' keys
     static final private String                 DIR_PREFIX             = "D_";
     static final private String                 FILE_PREFIX            = "F_";
 
     // keys in each inode map
-    static final private String                 CONTENT                = "CONT";
-    static final private String                 SIZE                   = "SIZE";
+    static final String                         SIZE                   = "SIZE";
     static final private String                 MODE                   = "MODE";
+    static final String                         BLOCK_SIZE             = "BSIZE";
+    // id of the BlockCodec of the file's blocks, absent for uncompressed files
+    static final private String                 CODEC                  = "CODEC";
+    // present in the inode maps of files whose blocks are content-addressed
+    // (see BlockRefs): the manifest entry HASH_PREFIX + i then holds the content
+    // key of the i-th block, next to its version
+    static final private String                 DEDUP                  = "DEDUP";
+    static final String                         HASH_PREFIX            = "H";
+    // prefix of the block manifest entries of a file, stored in segments apart
+    // from its inode map (see Manifest): the entry BLOCK_PREFIX + i holds the
+    // version of the i-th block, and is absent if the block has never been
+    // written (a hole, read as zeros)
+    static final String                         BLOCK_PREFIX           = "B";
+    // number of times the file was shrunk, part of the version of its blocks:
+    // the manifest entries of the blocks dropped by a shrink restart from 0
+    static final private String                 TRUNCATES              = "TRUNC";
+
+    // separator between the inode key and the block index in block registers' keys
+    static final private String                 BLOCK_SEP              = "#";
+
+    // max number of blocks fetched in a single request
+    static final private int                    READ_BATCH             = 8;
 
-    static final private String                 SEP_REGEXP             = "[" + separator + "]*";
-
-    static final private ValueCoder<ByteString> vc                     = ValueCoder.bytestringEncoder;
+    // default period for refreshing the path map
+    static final private int                    DEFAULT_REFRESH_PERIOD = 5000;
 
-    public FsModel(String antidoteAddr, int rfsPeriod) {
-        String[] addrParts = antidoteAddr.split(":");
-        antidote = new AntidoteClient(
-                new InetSocketAddress(addrParts[0], Integer.parseInt(addrParts[1])));
-        bucket = Bucket.bucket(BUCKET_LABEL);
+    // default size of the content blocks of new files
+    static final private int                    DEFAULT_BLOCK_SIZE     = 128 * 1024;
+
+    public FsModel(StorageBackend backend, FsOptions options) {
+        metrics = new Metrics(options);
+        this.backend = metrics.isEnabled() ? new MeteredBackend(backend, metrics) : backend;
+        blockSize = options.getBlockSize() > 0 ? options.getBlockSize() : DEFAULT_BLOCK_SIZE;
+        compression = options.getCompression();
+        dedup = options.isDedup();
+        readdirBatch = options.getReaddirBatch();
+        DiskCache diskCache = options.getDiskCache() != null
+                ? new DiskCache(new File(options.getDiskCache()), options.getDiskCacheSize())
+                : null;
+        blockCache = new BlockCache(options.getCacheSize(), options.isCacheOffHeap(),
+                options.getCacheStaleness(), diskCache);
+        attrCache = new AttrCache(options.getAttrTtl());
+        negativeCache = new NegativeCache(options.getNegativeCacheSize(),
+                options.getNegativeTtl());
+        namespace = options.isDirMaps() ? new DirsNamespace(this.backend, options)
+                : new PathsNamespace(this.backend, options);
+        gc = new GarbageCollector(this.backend, namespace, options);
+
+        refreshPeriod = options.getRefreshPeriod() > 0 ? options.getRefreshPeriod()
+                : DEFAULT_REFRESH_PERIOD;
+        maxRefreshPeriod = options.getMaxRefreshPeriod() > 0 ? options.getMaxRefreshPeriod()
+                : 8 * refreshPeriod;
 
-        pathsKey = map_aw(PATHS_MAP);
-        refreshPathsMap();
         if (getInodeKey(separator) == null) // create the root dir if not existing
             makeDir(separator);
 
-        refreshPeriod = rfsPeriod > 0 ? rfsPeriod : DEFAULT_REFRESH_PERIOD;
+        currentRefreshPeriod = refreshPeriod;
         pathsRefreshScheduler = Executors.newScheduledThreadPool(1);
-        pathsRefreshScheduler.scheduleAtFixedRate(this,
-                refreshPeriod, refreshPeriod, TimeUnit.MILLISECONDS);
+        // a namespace loaded from a snapshot catches up right away
+        pathsRefreshScheduler.schedule(this, options.getSnapshot() != null ? 0 : refreshPeriod,
+                TimeUnit.MILLISECONDS);
     }
 
+    /**
+     * Stops the periodic refresh of the paths map and garbage collection,
+     * closes the disk cache and unregisters the metrics.
+     */
+    public void close() {
+        pathsRefreshScheduler.shutdownNow();
+        gc.close();
+        namespace.close();
+        blockCache.close();
+        metrics.close();
+    }
+
+    /**
+     * Lists the entries of the directory at path, with their attributes as
+     * getattr would return them: the ones missing from the attribute cache are
+     * fetched and cached, in requests of up to readdirBatch inode maps issued
+     * over the pool connections at once, so that the getattrs following a
+     * listing (e.g. ls -l) do not each cost a round-trip.
+     */
     public void listDir(String path, Pointer buf, FuseFillDir filter) {
-        for (Key<?> key : pathsMap.keySet()) {
-            String keyStr = key.getKey().toStringUtf8();
-            if (isChildPath(path, keyStr))
-                filter.apply(buf, getNameFromPath(keyStr), null, 0);
+        if (readdirBatch <= 0) {
+            for (String name : namespace.getChildren(path))
+                filter.apply(buf, name, null, 0);
+            return;
+        }
+
+        List<String> names = new ArrayList<>(namespace.getChildren(path));
+        String[] inodeKeys = new String[names.size()];
+        AttrCache.Attrs[] attrs = new AttrCache.Attrs[names.size()];
+        List<Integer> missing = new ArrayList<>();
+        for (int i = 0; i < inodeKeys.length; i++) {
+            inodeKeys[i] = namespace.getInodeKey(childPath(path, names.get(i)));
+            if (inodeKeys[i] != null && (attrs[i] = attrCache.get(inodeKeys[i])) == null)
+                missing.add(i);
+        }
+        long generation = attrCache.getGeneration();
+        List<CompletableFuture<List<StoredMap>>> batches = new ArrayList<>();
+        for (int i = 0; i < missing.size(); i += readdirBatch) {
+            List<String> keys = new ArrayList<>(readdirBatch);
+            for (int j = i; j < Math.min(i + readdirBatch, missing.size()); j++)
+                keys.add(inodeKeys[missing.get(j)]);
+            batches.add(backend.readMapsAsync(keys));
+        }
+        int m = 0;
+        for (CompletableFuture<List<StoredMap>> batch : batches)
+            for (StoredMap inode : batch.join()) {
+                int i = missing.get(m++);
+                attrs[i] = attrCache.put(inodeKeys[i], inode.getInteger(MODE, 0L),
+                        inode.getInteger(SIZE, 0L), inode, generation);
+            }
+
+        FileStat stat = new FileStat(Runtime.getSystemRuntime());
+        for (int i = 0; i < inodeKeys.length; i++) {
+            if (attrs[i] != null) {
+                setAttr(inodeKeys[i], attrs[i].getMode(), attrs[i].getSize(), stat);
+                filter.apply(buf, names.get(i), stat, 0);
+            } else // removed meanwhile
+                filter.apply(buf, names.get(i), null, 0);
         }
     }
 
     public int writeFile(String inodeKey, Pointer buffer, long bufSize, long writeOffset) {
-        ByteString res = bucket.read(antidote.noTransaction(), map_aw(inodeKey))
-                .get(register(CONTENT, vc));
+        if (bufSize <= 0)
+            return 0;
 
-        byte[] contentBytes = res == null ? new byte[0] : res.toByteArray();
-        ByteBuffer contents = ByteBuffer.wrap(contentBytes);
-        int maxWriteIndex = (int) (writeOffset + bufSize);
         byte[] bytesToWrite = new byte[(int) bufSize];
-        if (maxWriteIndex > contents.capacity()) {
-            // Need to create a new, larger buffer
-            ByteBuffer newContents = ByteBuffer.allocate(maxWriteIndex);
-            newContents.put(contents);
-            contents = newContents;
-        }
         buffer.get(0, bytesToWrite, 0, (int) bufSize);
-        contents.position((int) writeOffset);
-        contents.put(bytesToWrite);
-        contents.position(0);
-
-        ByteString bs = ByteString.copyFrom(contents);
-        bucket.update(antidote.noTransaction(),
-                map_aw(inodeKey).update(
-                        register(CONTENT, vc).assign(bs),
-                        integer(SIZE).assign(bs.size())));
+        TreeMap<Long, byte[]> extents = new TreeMap<>();
+        extents.put(writeOffset, bytesToWrite);
+        writeExtents(inodeKey, extents);
         return (int) bufSize;
     }
 
+    /**
+     * Writes a set of non-overlapping extents (offset to bytes) of a file in a
+     * single transaction. Only the blocks covering the extents are touched: the
+     * ones that are fully overwritten are not even read, the partially
+     * overwritten ones are read in a single batch and patched. The extents must
+     * not be modified afterwards: blocks they fully cover are not copied.
+     */
+    public void writeExtents(String inodeKey, NavigableMap<Long, byte[]> extents) {
+        if (extents.isEmpty())
+            return;
+
+        TreeMap<Long, Long> ranges = new TreeMap<>();
+        for (Entry<Long, byte[]> extent : extents.entrySet())
+            ranges.put(extent.getKey(), extent.getKey() + extent.getValue().length);
+        Manifest inode = readManifest(inodeKey, ranges);
+        long fileSize = inode.getInteger(SIZE, 0L);
+        int bSize = getBlockSize(inode);
+        BlockCodec codec = getCodec(inode);
+
+        // split the extents into per-block pieces
+        TreeMap<Integer, List<BlockPiece>> pieces = new TreeMap<>();
+        long writeEnd = 0;
+        for (Entry<Long, byte[]> extent : extents.entrySet()) {
+            long extStart = extent.getKey();
+            long extEnd = extStart + extent.getValue().length;
+            writeEnd = Math.max(writeEnd, extEnd);
+            for (int b = (int) (extStart / bSize); b <= (int) ((extEnd - 1) / bSize); b++) {
+                long blockStart = (long) b * bSize;
+                int from = (int) (Math.max(extStart, blockStart) - blockStart);
+                int to = (int) (Math.min(extEnd, blockStart + bSize) - blockStart);
+                pieces.computeIfAbsent(b, k -> new ArrayList<>(1)).add(new BlockPiece(from,
+                        extent.getValue(), (int) (blockStart + from - extStart), to - from));
+            }
+        }
+
+        // fetch the existing blocks that are only partially overwritten
+        List<Integer> partialBlocks = new ArrayList<>(2);
+        for (Entry<Integer, List<BlockPiece>> blockPieces : pieces.entrySet()) {
+            int b = blockPieces.getKey();
+            int existing = (int) Math.max(0, Math.min(bSize, fileSize - (long) b * bSize));
+            int covered = 0;
+            for (BlockPiece piece : blockPieces.getValue())
+                covered += Math.max(0, Math.min(existing, piece.from + piece.length) - piece.from);
+            if (covered < existing && hasBlock(inode, b))
+                partialBlocks.add(b);
+        }
+        HashMap<Integer, ByteString> oldBlocks = readBlocks(inodeKey, inode, partialBlocks);
+
+        BlockRefs refs = isDedup(inode) ? new BlockRefs() : null;
+        try (BackendTransaction tx = backend.startTransaction()) {
+            Manifest.Update inodeUpdate = new Manifest.Update();
+            HashMap<Integer, ByteString> contentBlocks = new HashMap<>();
+            for (Entry<Integer, List<BlockPiece>> blockPieces : pieces.entrySet()) {
+                int b = blockPieces.getKey();
+                List<BlockPiece> blockPcs = blockPieces.getValue();
+                ByteString oldBlock = oldBlocks.get(b);
+                ByteString newBlock;
+                if (oldBlock == null && blockPcs.size() == 1 && blockPcs.get(0).from == 0) {
+                    BlockPiece piece = blockPcs.get(0);
+                    // the extents are never modified once written, no need to copy them
+                    newBlock = UnsafeByteOperations.unsafeWrap(piece.src, piece.srcOffset,
+                            piece.length);
+                } else {
+                    int length = oldBlock == null ? 0 : oldBlock.size();
+                    for (BlockPiece piece : blockPcs)
+                        length = Math.max(length, piece.from + piece.length);
+                    byte[] blockBytes = new byte[length];
+                    if (oldBlock != null)
+                        oldBlock.copyTo(blockBytes, 0);
+                    for (BlockPiece piece : blockPcs)
+                        System.arraycopy(piece.src, piece.srcOffset, blockBytes, piece.from,
+                                piece.length);
+                    newBlock = UnsafeByteOperations.unsafeWrap(blockBytes);
+                }
+
+                if (refs != null)
+                    contentBlocks.put(b, newBlock);
+                else
+                    tx.assignRegister(getBlockKey(inodeKey, b), codec.encode(newBlock));
+                inodeUpdate.getBlock(b).increment(BLOCK_PREFIX + b, 1);
+            }
+            if (refs != null) {
+                putContentBlocks(tx, inodeKey, inode, contentBlocks, inodeUpdate, refs);
+                refs.apply(tx);
+            }
+            if (writeEnd > fileSize)
+                inodeUpdate.getInode().assign(SIZE, writeEnd);
+            inodeUpdate.apply(tx, inodeKey);
+            tx.commit();
+        }
+        for (int b : pieces.keySet())
+            blockCache.invalidate(getBlockKey(inodeKey, b));
+        if (refs != null)
+            gc.unreferenced(refs.getUnreferenced());
+        // the inode map is unchanged but for its size
+        attrCache.put(inodeKey, inode.getInteger(MODE, 0L), Math.max(fileSize, writeEnd),
+                inode.getInode());
+        for (int b : pieces.keySet())
+            attrCache.invalidateSegment(Manifest.getSegmentKey(inodeKey, Manifest.getSegment(b)));
+    }
+
+    /**
+     * Adds to tx the blocks of a deduplicated file: its manifest points to
+     * their content keys, and only the blocks whose content is not stored yet
+     * are uploaded. The changes of referrers are added to refs.
+     */
+    private void putContentBlocks(BackendTransaction tx, String inodeKey, StoredMap inode,
+            Map<Integer, ByteString> blocks, Manifest.Update inodeUpdate, BlockRefs refs) {
+        BlockCodec codec = getCodec(inode);
+        HashMap<Integer, String> hashKeys = new HashMap<>();
+        for (Entry<Integer, ByteString> block : blocks.entrySet())
+            hashKeys.put(block.getKey(), BlockRefs.getHashKey(codec, block.getValue()));
+        Set<String> store = new HashSet<>();
+        Map<String, String> contentKeys = refs.getContentKeys(tx,
+                new HashSet<>(hashKeys.values()), store);
+
+        for (Entry<Integer, ByteString> block : blocks.entrySet()) {
+            int b = block.getKey();
+            String contentKey = contentKeys.get(hashKeys.get(b));
+            String oldKey = inode.getString(HASH_PREFIX + b);
+            if (contentKey.equals(oldKey))
+                continue;
+            // uploaded once, even if several blocks of the write share it
+            if (store.remove(contentKey))
+                tx.assignRegister(contentKey, codec.encode(block.getValue()));
+            if (oldKey != null)
+                refs.remove(oldKey, getBlockKey(inodeKey, b));
+            refs.add(contentKey, getBlockKey(inodeKey, b));
+            inodeUpdate.getBlock(b).assign(HASH_PREFIX + b, contentKey);
+        }
+    }
+
+    /**
+     * Reads up to size bytes at offset, fetching only the blocks covering the
+     * requested range. Holes and blocks shorter than the block size are read as
+     * zeros. Bytes are copied straight from the blocks into buffer.
+     */
     public int readFile(String inodeKey, Pointer buffer, long size, long offset) {
-        ByteString res = bucket.read(antidote.noTransaction(), map_aw(inodeKey))
-                .get(register(CONTENT, vc));
-        byte[] contentBytes = res == null ? new byte[0] : res.toByteArray();
-        ByteBuffer contents = ByteBuffer.wrap(contentBytes);
-        int bytesToRead = (int) Math.min(contentBytes.length - offset, size);
-        byte[] bytesRead = new byte[bytesToRead];
-        contents.position((int) offset);
-        contents.get(bytesRead, 0, bytesToRead);
-        buffer.put(0, bytesRead, 0, bytesToRead);
+        return readFile(inodeKey, buffer, size, offset, null);
+    }
+
+    /**
+     * Reads up to size bytes at offset, like
+     * {@link #readFile(String, Pointer, long, long)}, then prefetches the
+     * content following the read if readahead detects a sequential stream.
+     */
+    public int readFile(String inodeKey, Pointer buffer, long size, long offset,
+            Readahead readahead) {
+        return readFile(inodeKey, buffer, size, offset, -1, readahead);
+    }
+
+    /**
+     * Reads like {@link #readFile(String, Pointer, long, long, Readahead)} a
+     * file whose size is known, from its open file, or -1.
+     */
+    public int readFile(String inodeKey, Pointer buffer, long size, long offset,
+            long fileSize, Readahead readahead) {
+        if (size <= 0)
+            return 0;
+        // the manifest is served from the attribute cache when valid, without
+        // any request
+        AttrCache.Attrs attrs = attrCache.get(inodeKey);
+        Manifest inode = new Manifest(attrs == null ? null : attrs.getInode());
+        if (fileSize < 0 && inode.getInode() != null)
+            fileSize = attrs.getSize();
+        if (fileSize >= 0 && offset >= fileSize)
+            return 0;
+        long end = fileSize < 0 ? offset + size : Math.min(offset + size, fileSize);
+        loadSegments(inodeKey, inode, Collections.singletonMap(offset, end), true);
+        if (fileSize < 0)
+            fileSize = inode.getInteger(SIZE, 0L);
+        if (offset >= fileSize)
+            return 0;
+
+        int bSize = getBlockSize(inode);
+        int bytesToRead = (int) Math.min(fileSize - offset, size);
+        long readEnd = offset + bytesToRead;
+        int firstBlock = (int) (offset / bSize);
+        int lastBlock = (int) ((readEnd - 1) / bSize);
+
+        List<Integer> blocksToRead = new ArrayList<>(lastBlock - firstBlock + 1);
+        for (int b = firstBlock; b <= lastBlock; b++)
+            if (hasBlock(inode, b))
+                blocksToRead.add(b);
+        HashMap<Integer, ByteString> blocks = readBlocks(inodeKey, inode, blocksToRead);
+
+        for (int b = firstBlock; b <= lastBlock; b++) {
+            long blockStart = (long) b * bSize;
+            int from = (int) (Math.max(offset, blockStart) - blockStart);
+            int to = (int) (Math.min(readEnd, blockStart + bSize) - blockStart);
+            long dstOffset = blockStart + from - offset;
+
+            ByteString block = blocks.get(b);
+            int available = block == null ? 0 : Math.max(0, Math.min(to, block.size()) - from);
+            if (available > 0)
+                PointerOutput.copy(block.substring(from, from + available), buffer, dstOffset);
+            if (available < to - from)
+                buffer.setMemory(dstOffset + available, to - from - available, (byte) 0);
+        }
+        if (readahead != null)
+            readahead.onRead(offset, bytesToRead, fileSize,
+                    (from, to) -> prefetch(inodeKey, inode, from, to));
         return bytesToRead;
     }
 
+    /**
+     * Fetches asynchronously into the block cache the blocks of a file covering
+     * the range [from, to) which are neither cached nor already being fetched.
+     * Readers needing them meanwhile wait for the fetch instead of issuing
+     * their own (see {@link #readBlocks(String, StoredMap, List)}). The
+     * segments of the manifest covering the range are read asynchronously
+     * too, so that the caller never blocks.
+     * 
+     * @return the completion of the prefetch; if it is cancelled, the blocks
+     *         are not cached
+     */
+    private CompletableFuture<Void> prefetch(String inodeKey, Manifest inode, long from,
+            long to) {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        loadSegmentsAsync(inodeKey, inode, Collections.singletonMap(from, to))
+                .whenComplete((loaded, e) -> {
+                    if (e != null)
+                        done.completeExceptionally(e);
+                    else if (!done.isCancelled())
+                        fetchBlocks(inodeKey, inode, from, to, done);
+                });
+        return done;
+    }
+
+    // fetches the blocks of a prefetch once its manifest is loaded
+    private void fetchBlocks(String inodeKey, Manifest inode, long from, long to,
+            CompletableFuture<Void> done) {
+        int bSize = getBlockSize(inode);
+        BlockCodec codec = getCodec(inode);
+        List<String> keys = new ArrayList<>();
+        List<Long> versions = new ArrayList<>();
+        for (int b = (int) (from / bSize); b <= (int) ((to - 1) / bSize); b++) {
+            if (!hasBlock(inode, b))
+                continue;
+            String key = getContentKey(inodeKey, inode, b);
+            long version = getContentVersion(inode, b);
+            if (!blockCache.contains(key, version) && !prefetching.containsKey(key)) {
+                keys.add(key);
+                versions.add(version);
+            }
+        }
+        if (keys.isEmpty()) {
+            done.complete(null);
+            return;
+        }
+
+        AtomicInteger remaining = new AtomicInteger((keys.size() + READ_BATCH - 1) / READ_BATCH);
+        for (int i = 0; i < keys.size(); i += READ_BATCH) {
+            List<String> batchKeys = keys.subList(i, Math.min(i + READ_BATCH, keys.size()));
+            List<Long> batchVersions = versions.subList(i, i + batchKeys.size());
+            // decoded on the I/O thread
+            CompletableFuture<List<ByteString>> batch = backend.readRegistersAsync(batchKeys)
+                    .thenApply(stored -> decode(codec, stored));
+            PendingBlock[] pending = new PendingBlock[batchKeys.size()];
+            for (int j = 0; j < pending.length; j++) {
+                pending[j] = new PendingBlock(batchVersions.get(j), batch, j);
+                prefetching.put(batchKeys.get(j), pending[j]);
+            }
+            batch.whenComplete((blocks, e) -> {
+                for (int j = 0; j < pending.length; j++) {
+                    if (blocks != null && blocks.get(j) != null && !done.isCancelled())
+                        blockCache.put(batchKeys.get(j), batchVersions.get(j), blocks.get(j));
+                    prefetching.remove(batchKeys.get(j), pending[j]);
+                }
+                if (remaining.decrementAndGet() == 0)
+                    done.complete(null);
+            });
+        }
+    }
+
     public boolean isDirectory(String inodeKey) {
-        if (inodeKey.startsWith(DIR_PREFIX))
-            return true;
-        else
-            return false;
+        return isDirectoryKey(inodeKey);
     }
 
-    public void makeFile(String path) {
+    static boolean isDirectoryKey(String inodeKey) {
+        return inodeKey.startsWith(DIR_PREFIX);
+    }
+
+    /**
+     * @return the inode key of the new file
+     */
+    public String makeFile(String path) {
         String fileKey = FILE_PREFIX + UUID.randomUUID().toString();
-        try (InteractiveTransaction tx = antidote.startTransaction()) {
-            bucket.update(tx, pathsKey.update(register(path).assign(fileKey)));
-            bucket.update(tx, map_aw(fileKey)
-                    .update(integer(MODE).assign(FileStat.S_IFREG | 0740),
-                            integer(SIZE).assign(0L)));
-            tx.commitTransaction();
-        }
-        refreshPathsMap();
+        MapUpdate inode = new MapUpdate()
+                .assign(MODE, FileStat.S_IFREG | 0740)
+                .assign(SIZE, 0L)
+                .assign(BLOCK_SIZE, blockSize);
+        if (compression != BlockCodec.NONE)
+            inode.assign(CODEC, compression.getId());
+        if (dedup)
+            inode.assign(DEDUP, 1L);
+        namespace.create(path, fileKey, inode);
+        attrCache.put(fileKey, FileStat.S_IFREG | 0740, 0L);
+        negativeCache.invalidate(path);
+        return fileKey;
     }
 
     public void makeDir(String path) {
         // XXX size of a dir: space on the disk that is used to store its metadata
         // (i.e. the table of files that belong to this directory)
         String dirKey = DIR_PREFIX + UUID.randomUUID().toString();
-        try (InteractiveTransaction tx = antidote.startTransaction()) {
-            bucket.update(tx, pathsKey.update(register(path).assign(dirKey)));
-            bucket.update(tx, map_aw(dirKey)
-                    .update(integer(MODE).assign(FileStat.S_IFDIR | 0740),
-                            integer(SIZE).assign(0L)));
-            tx.commitTransaction();
-        }
-        refreshPathsMap();
+        namespace.create(path, dirKey, new MapUpdate()
+                .assign(MODE, FileStat.S_IFDIR | 0740)
+                .assign(SIZE, 0L));
+        attrCache.put(dirKey, FileStat.S_IFDIR | 0740, 0L);
+        negativeCache.invalidate(path);
     }
 
     /**
      * Note: POSIX standard requires rename to be atomic:
      * http://pubs.opengroup.org/onlinepubs/9699919799/functions/rename.html
+     * An existing target at newPath is replaced in the same transaction. With
+     * per-directory maps, renaming a directory is a constant number of updates,
+     * whatever the size of its subtree.
      * 
      * @param inodeKey
      * @param oldPath
      * @param newPath
      */
     public void rename(String inodeKey, String oldPath, String newPath) {
-        if (isDirectory(inodeKey)) { // move a dir
-
-            // get all dir descendants
-            HashMap<String, String> descToCopy = new HashMap<>();
-            for (Key<?> key : pathsMap.keySet()) {
-                String keyStr = key.getKey().toStringUtf8();
-                if (isDescendantPath(oldPath, keyStr))
-                    descToCopy.put(trimParentFromPath(oldPath, keyStr),
-                            pathsMap.get(register(keyStr)));
-            }
-
-            try (InteractiveTransaction tx = antidote.startTransaction()) {
-                // create new path
-                bucket.update(tx, pathsKey.update(register(newPath).assign(inodeKey)));
-                // copy descendants to the new path
-                for (Entry<String, String> entry : descToCopy.entrySet())
-                    bucket.update(tx,
-                            pathsKey.update(register(newPath + separator + entry.getKey())
-                                    .assign(entry.getValue())));
-
-                // delete old key
-                bucket.update(tx, pathsKey.removeKey(register(oldPath)));
-                // delete old descendants
-                for (String k : descToCopy.keySet())
-                    bucket.update(tx, pathsKey.removeKey(register(oldPath + separator + k)));
-
-                tx.commitTransaction();
-            }
-        } else { // move a file
-            try (InteractiveTransaction tx = antidote.startTransaction()) {
-                bucket.update(tx, pathsKey.update(register(newPath).assign(inodeKey)));
-                bucket.update(tx, pathsKey.removeKey(register(oldPath)));
-                tx.commitTransaction();
-            }
+        String replaced = namespace.getInodeKey(newPath);
+        namespace.rename(inodeKey, oldPath, newPath);
+        // the descendants of a moved directory appear under newPath
+        if (isDirectoryKey(inodeKey))
+            negativeCache.invalidateTree(newPath);
+        else
+            negativeCache.invalidate(newPath);
+        if (replaced != null) {
+            attrCache.invalidate(replaced);
+            gc.unlinked(replaced);
         }
-        refreshPathsMap();
+    }
+
+    public boolean isEmptyDir(String path) {
+        return namespace.getChildren(path).isEmpty();
     }
 
     public void getAttr(String inodeKey, FileStat stat) {
+        AttrCache.Attrs attrs = getAttrs(inodeKey);
+        setAttr(inodeKey, attrs.getMode(), attrs.getSize(), stat);
+    }
+
+    /**
+     * @return the attributes of an inode, from the cache when valid
+     */
+    public AttrCache.Attrs getAttrs(String inodeKey) {
+        AttrCache.Attrs attrs = attrCache.get(inodeKey);
+        if (attrs == null) {
+            long generation = attrCache.getGeneration();
+            StoredMap res = backend.noTransaction().readMap(inodeKey);
+            attrs = attrCache.put(inodeKey, res.getInteger(MODE, 0L), res.getInteger(SIZE, 0L),
+                    res, generation);
+        }
+        return attrs;
+    }
+
+    public static void setAttr(String inodeKey, long mode, long size, FileStat stat) {
         // TODO handle other attributes
         // https://en.wikipedia.org/wiki/Inode#POSIX_inode_description
-        MapReadResult res = bucket.read(antidote.noTransaction(), map_aw(inodeKey));
-        // XXX remove casting once IntegerKey typing is published
-        long mode = (long) res.get(integer(MODE));
-        long size = (long) res.get(integer(SIZE));
         stat.st_size.set(size);
         if (inodeKey.startsWith(DIR_PREFIX))
             stat.st_mode.set(FileStat.S_IFDIR | mode);
@@ -213,52 +574,411 @@ public class FsModel implements Runnable {
             stat.st_mode.set(FileStat.S_IFREG | mode);
     }
 
-    public void truncate(String inodeKey, long offset) {
-        // TODO
+    /**
+     * Sets the size of a file. Growing it only records the new size, the bytes
+     * past the old end being a hole. Shrinking it drops the blocks past the new
+     * end from the manifest, without reading them; only the new last block is
+     * read and rewritten if it has to be cut.
+     */
+    public void truncate(String inodeKey, long size) {
+        // the blocks from the new last one to the old end, assuming the file shrinks
+        Manifest inode = readManifest(inodeKey, Collections.emptyMap());
+        long fileSize = inode.getInteger(SIZE, 0L);
+        if (size < fileSize)
+            loadSegments(inodeKey, inode,
+                    Collections.singletonMap(Math.max(0, size - 1), fileSize), false);
+        if (size != fileSize) {
+            Manifest.Update inodeUpdate = new Manifest.Update();
+            inodeUpdate.getInode().assign(SIZE, size);
+            int bSize = getBlockSize(inode);
+            int keptBlocks = (int) ((size + bSize - 1) / bSize);
+            int oldBlocks = (int) ((fileSize + bSize - 1) / bSize);
+            ByteString lastBlock = null;
+            BlockRefs refs = isDedup(inode) ? new BlockRefs() : null;
+            if (size < fileSize) {
+                for (int b = keptBlocks; b < oldBlocks; b++)
+                    if (hasBlock(inode, b)) {
+                        inodeUpdate.getBlock(b).removeInteger(BLOCK_PREFIX + b);
+                        if (refs != null) {
+                            refs.remove(inode.getString(HASH_PREFIX + b), getBlockKey(inodeKey, b));
+                            inodeUpdate.getBlock(b).removeRegister(HASH_PREFIX + b);
+                        }
+                    }
+                inodeUpdate.getInode().increment(TRUNCATES, 1);
+
+                // no block holds bytes past the end of the file
+                int lastLength = (int) (size - (long) (keptBlocks - 1) * bSize);
+                if (keptBlocks > 0 && lastLength < bSize && hasBlock(inode, keptBlocks - 1)) {
+                    lastBlock = readBlocks(inodeKey, inode,
+                            Collections.singletonList(keptBlocks - 1)).get(keptBlocks - 1);
+                    if (lastBlock != null && lastBlock.size() > lastLength)
+                        lastBlock = lastBlock.substring(0, lastLength);
+                    else
+                        lastBlock = null;
+                }
+            }
+
+            try (BackendTransaction tx = backend.startTransaction()) {
+                if (lastBlock != null && refs != null)
+                    putContentBlocks(tx, inodeKey, inode,
+                            Collections.singletonMap(keptBlocks - 1, lastBlock), inodeUpdate, refs);
+                else if (lastBlock != null)
+                    tx.assignRegister(getBlockKey(inodeKey, keptBlocks - 1),
+                            getCodec(inode).encode(lastBlock));
+                if (refs != null)
+                    refs.apply(tx);
+                inodeUpdate.apply(tx, inodeKey);
+                tx.commit();
+            }
+            for (int b = Math.max(0, keptBlocks - 1); b < oldBlocks; b++)
+                blockCache.invalidate(getBlockKey(inodeKey, b));
+            for (int seg : inodeUpdate.getSegments())
+                attrCache.invalidateSegment(Manifest.getSegmentKey(inodeKey, seg));
+            if (refs != null)
+                gc.unreferenced(refs.getUnreferenced());
+        }
+        attrCache.put(inodeKey, inode.getInteger(MODE, 0L), size);
     }
 
+    /**
+     * @return the inode key bound to path, or null; misses are cached
+     */
     public String getInodeKey(String path) {
-        return pathsMap.get(register(path));
+        if (negativeCache.isMissing(path))
+            return null;
+        long generation = negativeCache.getGeneration();
+        String inodeKey = namespace.getInodeKey(path);
+        if (inodeKey == null)
+            negativeCache.putMissing(path, generation);
+        return inodeKey;
     }
 
+    /**
+     * Unbinds path, its inode being reclaimed later by the garbage collector.
+     * Directories are expected to be empty.
+     */
     public void removePath(String path) {
-        // TODO gc inode key
-        bucket.update(antidote.noTransaction(), pathsKey.removeKey(register(path)));
-        refreshPathsMap();
+        String inodeKey = getInodeKey(path);
+        namespace.remove(path);
+        if (inodeKey != null) {
+            attrCache.invalidate(inodeKey);
+            gc.unlinked(inodeKey);
+        }
+    }
+
+    /**
+     * Reads the inode of a file along with the segments of its manifest
+     * covering the byte ranges (start to end), see
+     * {@link #loadSegments(String, Manifest, Map, boolean)}, bypassing the
+     * attribute cache.
+     */
+    private Manifest readManifest(String inodeKey, Map<Long, Long> ranges) {
+        Manifest manifest = new Manifest(null);
+        loadSegments(inodeKey, manifest, ranges, false);
+        return manifest;
+    }
+
+    /**
+     * Reads the segments of a manifest covering the byte ranges (start to end)
+     * which are not loaded yet, along with the inode if not read yet, in a
+     * single request. Until the inode is read, the segments are those of the
+     * block size of new files: the ones of a file with another block size are
+     * read by a second request. If cached, the segments are first looked up in
+     * the attribute cache, and the maps read are put in it.
+     */
+    private void loadSegments(String inodeKey, Manifest manifest, Map<Long, Long> ranges,
+            boolean cached) {
+        TreeSet<Integer> missing = new TreeSet<>();
+        List<String> keys = getMissingMaps(inodeKey, manifest, ranges, cached, missing);
+        if (keys.isEmpty())
+            return;
+
+        long generation = attrCache.getGeneration();
+        List<StoredMap> maps = backend.noTransaction().readMaps(keys);
+        if (putMaps(inodeKey, manifest, missing, maps, cached, generation))
+            loadSegments(inodeKey, manifest, ranges, cached);
+    }
+
+    /**
+     * Loads segments like {@link #loadSegments(String, Manifest, Map, boolean)}
+     * through the attribute cache, reading the missing ones asynchronously.
+     */
+    private CompletableFuture<Void> loadSegmentsAsync(String inodeKey, Manifest manifest,
+            Map<Long, Long> ranges) {
+        TreeSet<Integer> missing = new TreeSet<>();
+        List<String> keys = getMissingMaps(inodeKey, manifest, ranges, true, missing);
+        if (keys.isEmpty())
+            return CompletableFuture.completedFuture(null);
+
+        long generation = attrCache.getGeneration();
+        return backend.readMapsAsync(keys).thenCompose(maps -> putMaps(inodeKey, manifest,
+                missing, maps, true, generation) ? loadSegmentsAsync(inodeKey, manifest, ranges)
+                        : CompletableFuture.completedFuture(null));
+    }
+
+    /**
+     * @param missing
+     *            receives the indexes of the segments to read
+     * @return the keys of the maps to read to load the segments covering
+     *         ranges: the inode if not read yet, then the missing segments
+     */
+    private List<String> getMissingMaps(String inodeKey, Manifest manifest,
+            Map<Long, Long> ranges, boolean cached, TreeSet<Integer> missing) {
+        StoredMap inode = manifest.getInode();
+        int bSize = inode == null ? blockSize : getBlockSize(inode);
+        List<String> keys = new ArrayList<>();
+        if (inode == null)
+            keys.add(inodeKey);
+        for (Entry<Long, Long> range : ranges.entrySet()) {
+            if (range.getValue() <= range.getKey())
+                continue;
+            int last = Manifest.getSegment((int) ((range.getValue() - 1) / bSize));
+            for (int seg = Manifest.getSegment((int) (range.getKey() / bSize)); seg <= last; seg++) {
+                if (manifest.isLoaded(seg) || missing.contains(seg))
+                    continue;
+                String segmentKey = Manifest.getSegmentKey(inodeKey, seg);
+                StoredMap segment = cached ? attrCache.getSegment(segmentKey) : null;
+                if (segment != null)
+                    manifest.putSegment(seg, segment);
+                else {
+                    missing.add(seg);
+                    keys.add(segmentKey);
+                }
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Puts the maps read for the missing segments into the manifest.
+     * 
+     * @return whether the segments must be read again, the block size of the
+     *         inode just read differing from the one assumed
+     */
+    private boolean putMaps(String inodeKey, Manifest manifest, TreeSet<Integer> missing,
+            List<StoredMap> maps, boolean cached, long generation) {
+        int bSize = manifest.getInode() == null ? blockSize : getBlockSize(manifest);
+        int i = 0;
+        if (manifest.getInode() == null) {
+            manifest.setInode(maps.get(i++));
+            if (cached)
+                attrCache.put(inodeKey, manifest.getInteger(MODE, 0L),
+                        manifest.getInteger(SIZE, 0L), manifest.getInode(), generation);
+        }
+        for (int seg : missing) {
+            StoredMap segment = maps.get(i++);
+            manifest.putSegment(seg, segment);
+            if (cached)
+                attrCache.putSegment(Manifest.getSegmentKey(inodeKey, seg), segment, generation);
+        }
+        return getBlockSize(manifest) != bSize;
+    }
+
+    /**
+     * Reads a set of blocks of a file, from the block cache when it holds the
+     * version in the inode manifest, otherwise from Antidote in batches of up to
+     * READ_BATCH blocks, pipelined over the pool connections.
+     */
+    private HashMap<Integer, ByteString> readBlocks(String inodeKey, StoredMap inode,
+            List<Integer> blockIdxs) {
+        HashMap<Integer, ByteString> blocks = new HashMap<>();
+        List<Integer> missing = new ArrayList<>(blockIdxs.size());
+        for (int b : blockIdxs) {
+            ByteString block = blockCache.get(getContentKey(inodeKey, inode, b),
+                    getContentVersion(inode, b));
+            if (block != null)
+                blocks.put(b, block);
+            else
+                missing.add(b);
+        }
+        // wait for the blocks being prefetched rather than fetching them again
+        for (int i = missing.size() - 1; i >= 0; i--) {
+            int b = missing.get(i);
+            PendingBlock pending = prefetching.get(getContentKey(inodeKey, inode, b));
+            if (pending != null && pending.version == getContentVersion(inode, b)) {
+                ByteString block = pending.get();
+                if (block != null) {
+                    blocks.put(b, block);
+                    missing.remove(i);
+                }
+            }
+        }
+        if (missing.isEmpty())
+            return blocks;
+
+        List<String> keys = new ArrayList<>(missing.size());
+        for (int b : missing)
+            keys.add(getContentKey(inodeKey, inode, b));
+        List<ByteString> res;
+        if (keys.size() <= READ_BATCH)
+            res = decode(getCodec(inode), backend.noTransaction().readRegisters(keys));
+        else {
+            List<CompletableFuture<List<ByteString>>> batches = new ArrayList<>();
+            for (int i = 0; i < keys.size(); i += READ_BATCH)
+                batches.add(backend.readRegistersAsync(
+                        keys.subList(i, Math.min(i + READ_BATCH, keys.size())))
+                        .thenApply(stored -> decode(getCodec(inode), stored)));
+            res = new ArrayList<>(keys.size());
+            for (CompletableFuture<List<ByteString>> batch : batches)
+                res.addAll(batch.join());
+        }
+        for (int i = 0; i < missing.size(); i++)
+            if (res.get(i) != null) {
+                int b = missing.get(i);
+                blocks.put(b, res.get(i));
+                blockCache.put(keys.get(i), getContentVersion(inode, b), res.get(i));
+            }
+        return blocks;
+    }
+
+    private int getBlockSize(StoredMap inode) {
+        return (int) inode.getInteger(BLOCK_SIZE, blockSize);
+    }
+
+    private static BlockCodec getCodec(StoredMap inode) {
+        return BlockCodec.of(inode.getInteger(CODEC, 0L));
+    }
+
+    // the content of blocks as stored with codec
+    private static List<ByteString> decode(BlockCodec codec, List<ByteString> stored) {
+        if (codec == BlockCodec.NONE)
+            return stored;
+        List<ByteString> blocks = new ArrayList<>(stored.size());
+        for (ByteString block : stored)
+            blocks.add(block == null ? null : codec.decode(block));
+        return blocks;
+    }
+
+    // a block of a batch being prefetched
+    private static class PendingBlock {
+        final long                                version;
+        final CompletableFuture<List<ByteString>> batch;
+        final int                                 index;
+
+        PendingBlock(long version, CompletableFuture<List<ByteString>> batch, int index) {
+            this.version = version;
+            this.batch = batch;
+            this.index = index;
+        }
+
+        // null if the fetch failed
+        ByteString get() {
+            try {
+                return batch.join().get(index);
+            } catch (CompletionException | CancellationException e) {
+                return null;
+            }
+        }
+    }
+
+    // the part of an extent falling into a block
+    private static class BlockPiece {
+        final int    from;     // offset in the block
+        final byte[] src;
+        final int    srcOffset;
+        final int    length;
+
+        BlockPiece(int from, byte[] src, int srcOffset, int length) {
+            this.from = from;
+            this.src = src;
+            this.srcOffset = srcOffset;
+            this.length = length;
+        }
+    }
+
+    private static boolean hasBlock(StoredMap inode, int blockIdx) {
+        return inode.containsKey(BLOCK_PREFIX + blockIdx)
+                && (!isDedup(inode) || inode.containsKey(HASH_PREFIX + blockIdx));
+    }
+
+    static boolean isDedup(StoredMap inode) {
+        return inode.containsKey(DEDUP);
+    }
+
+    private static long getBlockVersion(StoredMap inode, int blockIdx) {
+        return (inode.getInteger(TRUNCATES, 0L) << 32)
+                + inode.getInteger(BLOCK_PREFIX + blockIdx, 0L);
+    }
+
+    static String getBlockKey(String inodeKey, int blockIdx) {
+        return inodeKey + BLOCK_SEP + blockIdx;
+    }
+
+    // key of the register holding the content of a block
+    private static String getContentKey(String inodeKey, StoredMap inode, int blockIdx) {
+        return isDedup(inode) ? inode.getString(HASH_PREFIX + blockIdx)
+                : getBlockKey(inodeKey, blockIdx);
+    }
+
+    // content-addressed blocks never change
+    private static long getContentVersion(StoredMap inode, int blockIdx) {
+        return isDedup(inode) ? 0 : getBlockVersion(inode, blockIdx);
     }
 
     @Override
     public void run() {
-        refreshPathsMap();
+        boolean remoteChanges = false;
+        try {
+            long start = metrics.start();
+            remoteChanges = namespace.refresh();
+            metrics.refreshed(start, namespace.size());
+            if (remoteChanges)
+                negativeCache.invalidateAll();
+            log.debug("backend: {} requests in flight, {} queued", backend.getInFlight(),
+                    backend.getQueueDepth());
+            blockCache.expire();
+            attrCache.expire();
+            negativeCache.expire();
+        } catch (RuntimeException e) {
+            log.error("failed to refresh the namespace", e);
+        } finally {
+            // back off while nothing changes, tighten as soon as remote changes show up
+            currentRefreshPeriod = remoteChanges ? refreshPeriod
+                    : Math.min(2 * currentRefreshPeriod, maxRefreshPeriod);
+            if (!pathsRefreshScheduler.isShutdown())
+                pathsRefreshScheduler.schedule(this, currentRefreshPeriod,
+                        TimeUnit.MILLISECONDS);
+        }
     }
 
-    synchronized private void refreshPathsMap() {
-        pathsMap = bucket.read(antidote.noTransaction(), pathsKey);
+    /**
+     * @return the current period of the paths map refresh (ms)
+     */
+    public int getRefreshPeriod() {
+        return currentRefreshPeriod;
     }
 
-    // --------------- Static methods to manage path strings
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    public GarbageCollector getGarbageCollector() {
+        return gc;
+    }
 
-    private static boolean isChildPath(String parent, String child) {
-        return isDescendantPath(parent, child)
-                && !child.replaceFirst(parent + SEP_REGEXP, "").contains(separator);
+    public NegativeCache getNegativeCache() {
+        return negativeCache;
     }
 
-    private static boolean isDescendantPath(String ancestor, String descendant) {
-        return descendant.startsWith(ancestor) && descendant.length() > ancestor.length();
+    public BlockCache getBlockCache() {
+        return blockCache;
     }
 
+    // --------------- Static methods to manage path strings
+
     public static String getParentPath(String path) {
-        if (!path.substring(1).contains(separator)) // in the root folder
+        int sep = path.lastIndexOf(separatorChar);
+        if (sep <= 0) // in the root folder
             return separator;
         else
-            return path.substring(0, path.lastIndexOf(separator));
+            return path.substring(0, sep);
     }
 
-    private static String getNameFromPath(String path) {
+    public static String getNameFromPath(String path) {
         return path.substring(path.lastIndexOf(separator) + 1);
     }
 
-    private static String trimParentFromPath(String parent, String path) {
-        return path.replaceFirst("^" + parent + SEP_REGEXP, "");
+    public static String childPath(String parent, String name) {
+        return parent.endsWith(separator) ? parent + name : parent + separator + name;
     }
 }
@@ -0,0 +1,424 @@
+package eu.antidotedb.fs;
+
+import com.beust.jcommander.Parameter;
+
+/**
+ * Tuning options of an Antidote file system mount, settable from the command
+ * line (see {@link AntidoteFs}) or programmatically.
+ */
+public class FsOptions {
+
+    @Parameter(names = "--connections", description = "Number of connections to Antidote, "
+            + "i.e. max number of requests in flight at once.")
+    private int        connections       = 4;
+
+    @Parameter(names = { "--refresh", "-r" }, description = "Path refresh period (ms).")
+    private int        refreshPeriod     = 5000;
+
+    @Parameter(names = "--refresh-max", description = "Max path refresh period, reached "
+            + "while no remote changes are observed (ms, 0 for 8 times the refresh period).")
+    private int        refreshMax        = 0;
+
+    @Parameter(names = "--full-refresh", description = "Period of the full reads of the "
+            + "paths map, in between changes are read incrementally (ms).")
+    private int        fullRefresh       = 10 * 60 * 1000;
+
+    @Parameter(names = "--snapshot", description = "Local file the paths map is saved to, "
+            + "and served from while catching up at the next mount (without --dir-maps).")
+    private String     snapshot          = null;
+
+    @Parameter(names = "--dir-maps", description = "Store the entries of each directory "
+            + "in its inode map instead of a single paths map (see LayoutMigration).")
+    private boolean    dirMaps           = false;
+
+    @Parameter(names = "--dir-cache", description = "Max number of directories held in "
+            + "memory, with --dir-maps.")
+    private int        dirCacheSize      = 10000;
+
+    @Parameter(names = "--group-commit", description = "Window in which concurrent "
+            + "metadata updates are committed together (ms, 0 commits each on its own).")
+    private int        groupCommitWindow = 0;
+
+    @Parameter(names = "--group-commit-max", description = "Max number of metadata "
+            + "updates committed together.")
+    private int        groupCommitMax    = 256;
+
+    @Parameter(names = "--negative-cache", description = "Max number of missing paths "
+            + "cached, to answer repeated lookups (0 disables the cache).")
+    private int        negativeCacheSize = 10000;
+
+    @Parameter(names = "--negative-ttl", description = "Time missing paths are cached, "
+            + "by the file system and the kernel (ms).")
+    private int        negativeTtl       = 1000;
+
+    @Parameter(names = "--gc-period", description = "Period of the garbage collection "
+            + "of unlinked inodes (ms, 0 disables it).")
+    private int        gcPeriod          = 10 * 60 * 1000;
+
+    @Parameter(names = "--gc-grace", description = "Time unlinked inodes are kept before "
+            + "being reclaimed (ms).")
+    private long       gcGracePeriod     = 60 * 60 * 1000;
+
+    @Parameter(names = "--gc-batch", description = "Max number of inodes checked per "
+            + "garbage collection.")
+    private int        gcBatchSize       = 1000;
+
+    @Parameter(names = "--gc-rate", description = "Max number of inodes reclaimed per "
+            + "second.")
+    private int        gcRate            = 100;
+
+    @Parameter(names = { "--blocksize",
+            "-b" }, description = "Size of file content blocks (bytes).")
+    private int        blockSize         = 128 * 1024;
+
+    @Parameter(names = "--compression", description = "Compression of the content of "
+            + "newly created files (NONE, LZ4 or DEFLATE).")
+    private BlockCodec compression       = BlockCodec.NONE;
+
+    @Parameter(names = "--dedup", description = "Store the content of newly created files "
+            + "in content-addressed blocks, shared by identical blocks of all files.")
+    private boolean    dedup             = false;
+
+    @Parameter(names = "--wb-file-max", description = "Dirty bytes buffered per file "
+            + "before it is flushed.")
+    private long       writeBackFileMax  = 4 * 1024 * 1024;
+
+    @Parameter(names = "--wb-total-max", description = "Dirty bytes buffered overall "
+            + "before files are flushed (0 disables write-back).")
+    private long       writeBackTotalMax = 64 * 1024 * 1024;
+
+    @Parameter(names = "--wb-max-age", description = "Max time dirty data is buffered (ms).")
+    private int        writeBackMaxAge   = 1000;
+
+    @Parameter(names = "--readahead-max", description = "Max size of the content "
+            + "prefetched ahead of sequential readers (bytes, 0 disables readahead).")
+    private long       readaheadMax      = 8 * 1024 * 1024;
+
+    @Parameter(names = "--cache-size", description = "Size of the file content cache "
+            + "(bytes, 0 disables it).")
+    private long       cacheSize         = 64 * 1024 * 1024;
+
+    @Parameter(names = "--cache-offheap", description = "Store the file content cache "
+            + "outside of the heap.")
+    private boolean    cacheOffHeap      = false;
+
+    @Parameter(names = "--cache-staleness", description = "Max time file content is "
+            + "served from the cache (ms).")
+    private int        cacheStaleness    = 5000;
+
+    @Parameter(names = "--disk-cache", description = "Local directory file content is "
+            + "cached in as well, across restarts (not shared by mounts).")
+    private String     diskCache         = null;
+
+    @Parameter(names = "--disk-cache-size", description = "Size of the disk cache (bytes).")
+    private long       diskCacheSize     = 1024L * 1024 * 1024;
+
+    @Parameter(names = "--attr-ttl", description = "Time inode attributes are cached, "
+            + "by the file system and the kernel (ms, 0 disables caching).")
+    private int        attrTtl           = 1000;
+
+    @Parameter(names = "--readdir-batch", description = "Max number of attributes of "
+            + "directory entries fetched per request when listing a directory (0 fetches "
+            + "them on getattr only).")
+    private int        readdirBatch      = 512;
+
+    @Parameter(names = "--metrics", description = "Collect latency histograms of the file "
+            + "system operations and storage metrics, exposed through JMX.")
+    private boolean    metrics           = false;
+
+    @Parameter(names = "--metrics-period", description = "Period of the metrics dumps to "
+            + "the log and CSV file, with --metrics (ms, 0 disables them).")
+    private int        metricsPeriod     = 0;
+
+    @Parameter(names = "--metrics-csv", description = "File the metrics are appended to "
+            + "at each dump, in CSV.")
+    private String     metricsCsv        = null;
+
+    public int getConnections() {
+        return connections;
+    }
+
+    public FsOptions setConnections(int connections) {
+        this.connections = connections;
+        return this;
+    }
+
+    public int getRefreshPeriod() {
+        return refreshPeriod;
+    }
+
+    public FsOptions setRefreshPeriod(int refreshPeriod) {
+        this.refreshPeriod = refreshPeriod;
+        return this;
+    }
+
+    public int getMaxRefreshPeriod() {
+        return refreshMax;
+    }
+
+    public FsOptions setMaxRefreshPeriod(int refreshMax) {
+        this.refreshMax = refreshMax;
+        return this;
+    }
+
+    public int getFullRefreshPeriod() {
+        return fullRefresh;
+    }
+
+    public FsOptions setFullRefreshPeriod(int fullRefresh) {
+        this.fullRefresh = fullRefresh;
+        return this;
+    }
+
+    public String getSnapshot() {
+        return snapshot;
+    }
+
+    public FsOptions setSnapshot(String snapshot) {
+        this.snapshot = snapshot;
+        return this;
+    }
+
+    public boolean isDirMaps() {
+        return dirMaps;
+    }
+
+    public FsOptions setDirMaps(boolean dirMaps) {
+        this.dirMaps = dirMaps;
+        return this;
+    }
+
+    public int getDirCacheSize() {
+        return dirCacheSize;
+    }
+
+    public FsOptions setDirCacheSize(int dirCacheSize) {
+        this.dirCacheSize = dirCacheSize;
+        return this;
+    }
+
+    public int getGroupCommitWindow() {
+        return groupCommitWindow;
+    }
+
+    public FsOptions setGroupCommitWindow(int groupCommitWindow) {
+        this.groupCommitWindow = groupCommitWindow;
+        return this;
+    }
+
+    public int getGroupCommitMax() {
+        return groupCommitMax;
+    }
+
+    public FsOptions setGroupCommitMax(int groupCommitMax) {
+        this.groupCommitMax = groupCommitMax;
+        return this;
+    }
+
+    public int getNegativeCacheSize() {
+        return negativeCacheSize;
+    }
+
+    public FsOptions setNegativeCacheSize(int negativeCacheSize) {
+        this.negativeCacheSize = negativeCacheSize;
+        return this;
+    }
+
+    public int getNegativeTtl() {
+        return negativeTtl;
+    }
+
+    public FsOptions setNegativeTtl(int negativeTtl) {
+        this.negativeTtl = negativeTtl;
+        return this;
+    }
+
+    public int getGcPeriod() {
+        return gcPeriod;
+    }
+
+    public FsOptions setGcPeriod(int gcPeriod) {
+        this.gcPeriod = gcPeriod;
+        return this;
+    }
+
+    public long getGcGracePeriod() {
+        return gcGracePeriod;
+    }
+
+    public FsOptions setGcGracePeriod(long gcGracePeriod) {
+        this.gcGracePeriod = gcGracePeriod;
+        return this;
+    }
+
+    public int getGcBatchSize() {
+        return gcBatchSize;
+    }
+
+    public FsOptions setGcBatchSize(int gcBatchSize) {
+        this.gcBatchSize = gcBatchSize;
+        return this;
+    }
+
+    public int getGcRate() {
+        return gcRate;
+    }
+
+    public FsOptions setGcRate(int gcRate) {
+        this.gcRate = gcRate;
+        return this;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public FsOptions setBlockSize(int blockSize) {
+        this.blockSize = blockSize;
+        return this;
+    }
+
+    public long getWriteBackFileMax() {
+        return writeBackFileMax;
+    }
+
+    public FsOptions setWriteBackFileMax(long writeBackFileMax) {
+        this.writeBackFileMax = writeBackFileMax;
+        return this;
+    }
+
+    public long getWriteBackTotalMax() {
+        return writeBackTotalMax;
+    }
+
+    public FsOptions setWriteBackTotalMax(long writeBackTotalMax) {
+        this.writeBackTotalMax = writeBackTotalMax;
+        return this;
+    }
+
+    public int getWriteBackMaxAge() {
+        return writeBackMaxAge;
+    }
+
+    public FsOptions setWriteBackMaxAge(int writeBackMaxAge) {
+        this.writeBackMaxAge = writeBackMaxAge;
+        return this;
+    }
+
+    public BlockCodec getCompression() {
+        return compression;
+    }
+
+    public FsOptions setCompression(BlockCodec compression) {
+        this.compression = compression;
+        return this;
+    }
+
+    public boolean isDedup() {
+        return dedup;
+    }
+
+    public FsOptions setDedup(boolean dedup) {
+        this.dedup = dedup;
+        return this;
+    }
+
+    public long getReadaheadMax() {
+        return readaheadMax;
+    }
+
+    public FsOptions setReadaheadMax(long readaheadMax) {
+        this.readaheadMax = readaheadMax;
+        return this;
+    }
+
+    public long getCacheSize() {
+        return cacheSize;
+    }
+
+    public FsOptions setCacheSize(long cacheSize) {
+        this.cacheSize = cacheSize;
+        return this;
+    }
+
+    public boolean isCacheOffHeap() {
+        return cacheOffHeap;
+    }
+
+    public FsOptions setCacheOffHeap(boolean cacheOffHeap) {
+        this.cacheOffHeap = cacheOffHeap;
+        return this;
+    }
+
+    public int getCacheStaleness() {
+        return cacheStaleness;
+    }
+
+    public FsOptions setCacheStaleness(int cacheStaleness) {
+        this.cacheStaleness = cacheStaleness;
+        return this;
+    }
+
+    public String getDiskCache() {
+        return diskCache;
+    }
+
+    public FsOptions setDiskCache(String diskCache) {
+        this.diskCache = diskCache;
+        return this;
+    }
+
+    public long getDiskCacheSize() {
+        return diskCacheSize;
+    }
+
+    public FsOptions setDiskCacheSize(long diskCacheSize) {
+        this.diskCacheSize = diskCacheSize;
+        return this;
+    }
+
+    public int getAttrTtl() {
+        return attrTtl;
+    }
+
+    public FsOptions setAttrTtl(int attrTtl) {
+        this.attrTtl = attrTtl;
+        return this;
+    }
+
+    public int getReaddirBatch() {
+        return readdirBatch;
+    }
+
+    public FsOptions setReaddirBatch(int readdirBatch) {
+        this.readdirBatch = readdirBatch;
+        return this;
+    }
+
+    public boolean isMetrics() {
+        return metrics;
+    }
+
+    public FsOptions setMetrics(boolean metrics) {
+        this.metrics = metrics;
+        return this;
+    }
+
+    public int getMetricsPeriod() {
+        return metricsPeriod;
+    }
+
+    public FsOptions setMetricsPeriod(int metricsPeriod) {
+        this.metricsPeriod = metricsPeriod;
+        return this;
+    }
+
+    public String getMetricsCsv() {
+        return metricsCsv;
+    }
+
+    public FsOptions setMetricsCsv(String metricsCsv) {
+        this.metricsCsv = metricsCsv;
+        return this;
+    }
+}
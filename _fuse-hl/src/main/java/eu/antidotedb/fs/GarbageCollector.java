@@ -0,0 +1,268 @@
+package eu.antidotedb.fs;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.google.protobuf.ByteString;
+
+/**
+ * Reclaims the storage of the inodes that are no longer bound to any path.
+ * <p>
+ * When a path is unlinked (or replaced by a rename), its inode key is recorded
+ * in the GC map with the time of the unlink. Periodically, the candidates
+ * older than a grace period are checked against the whole namespace: the ones
+ * that are still reachable, e.g. because another DC concurrently renamed them,
+ * are dropped from the map; the others have their block registers reset and
+ * their inode map emptied. The grace period leaves time for concurrent updates
+ * of other DCs to be delivered before the reachability check.
+ * <p>
+ * Content-addressed blocks (see {@link BlockRefs}) which lost referrers are
+ * candidates as well: past the grace period, the ones still without referrers
+ * have their register reset, in the transaction that checks them. Writers
+ * store a block without referrers under a new content key, so that no register
+ * reset is written again.
+ * <p>
+ * Candidates are processed in batches, at a bounded rate. Collecting is
+ * idempotent, so that several mounts can run it concurrently.
+ */
+public class GarbageCollector implements Runnable {
+
+    private final StorageBackend           backend;
+    private final Namespace                namespace;
+    private final long                     gracePeriod;
+    private final int                      batchSize;
+    // pause between two reclaimed inodes (ms)
+    private final long                     pause;
+    // null if not run periodically
+    private final ScheduledExecutorService gcScheduler;
+
+    private final LongAdder                reclaimedInodes = new LongAdder();
+    private final LongAdder                reclaimedBytes  = new LongAdder();
+    private final LongAdder                reclaimedBlocks = new LongAdder();
+
+    static final private String            GC_MAP          = "GC";
+
+    private static final Logger            log             = LogManager.getLogger();
+
+    public GarbageCollector(StorageBackend backend, Namespace namespace, FsOptions options) {
+        this.backend = backend;
+        this.namespace = namespace;
+        gracePeriod = options.getGcGracePeriod();
+        batchSize = options.getGcBatchSize();
+        pause = options.getGcRate() > 0 ? 1000 / options.getGcRate() : 0;
+        if (options.getGcPeriod() > 0) {
+            gcScheduler = Executors.newScheduledThreadPool(1);
+            gcScheduler.scheduleWithFixedDelay(this, options.getGcPeriod(),
+                    options.getGcPeriod(), TimeUnit.MILLISECONDS);
+        } else
+            gcScheduler = null;
+    }
+
+    public void close() {
+        if (gcScheduler != null)
+            gcScheduler.shutdownNow();
+    }
+
+    /**
+     * Records inodeKey as a candidate for collection, unlinked now.
+     */
+    public void unlinked(String inodeKey) {
+        backend.noTransaction().updateMap(GC_MAP,
+                new MapUpdate().assign(inodeKey, System.currentTimeMillis()));
+    }
+
+    /**
+     * Records content-addressed blocks as candidates for collection, having
+     * lost referrers now.
+     */
+    public void unreferenced(Collection<String> contentKeys) {
+        if (contentKeys.isEmpty())
+            return;
+        long now = System.currentTimeMillis();
+        MapUpdate candidates = new MapUpdate();
+        for (String contentKey : contentKeys)
+            candidates.assign(contentKey, now);
+        backend.noTransaction().updateMap(GC_MAP, candidates);
+    }
+
+    @Override
+    public void run() {
+        try {
+            collect();
+        } catch (RuntimeException e) {
+            log.error("garbage collection failed", e);
+        }
+    }
+
+    /**
+     * Processes a batch of the candidates past the grace period.
+     *
+     * @return the number of inodes and blocks reclaimed
+     */
+    public int collect() {
+        StoredMap candidates = backend.noTransaction().readMap(GC_MAP);
+        long now = System.currentTimeMillis();
+        List<String> due = new ArrayList<>();
+        for (String inodeKey : candidates.keySet()) {
+            if (now - candidates.getInteger(inodeKey, now) >= gracePeriod)
+                due.add(inodeKey);
+            if (due.size() == batchSize)
+                break;
+        }
+        if (due.isEmpty())
+            return 0;
+
+        MapUpdate processed = new MapUpdate();
+        List<String> inodes = new ArrayList<>();
+        List<String> blocks = new ArrayList<>();
+        for (String key : due)
+            (BlockRefs.isContentKey(key) ? blocks : inodes).add(key);
+        int reclaimed = reclaimBlocks(blocks);
+        for (String contentKey : blocks)
+            processed.removeInteger(contentKey);
+
+        // inodes are kept while reachable
+        Set<String> kept = inodes.isEmpty() ? Collections.emptySet()
+                : namespace.getReachable(inodes);
+        for (String inodeKey : inodes) {
+            processed.removeInteger(inodeKey);
+            if (kept.contains(inodeKey))
+                continue;
+            reclaim(inodeKey);
+            reclaimed++;
+            if (pause > 0) {
+                try {
+                    Thread.sleep(pause);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+        backend.noTransaction().updateMap(GC_MAP, processed);
+        if (reclaimed > 0)
+            log.info("reclaimed {} inodes, {} blocks, {} bytes so far", reclaimedInodes.sum(),
+                    reclaimedBlocks.sum(), reclaimedBytes.sum());
+        return reclaimed;
+    }
+
+    /**
+     * Resets the registers of the blocks still without referrers.
+     *
+     * @return the number of blocks reclaimed
+     */
+    private int reclaimBlocks(List<String> contentKeys) {
+        if (contentKeys.isEmpty())
+            return 0;
+        int reclaimed = 0;
+        try (BackendTransaction tx = backend.startTransaction()) {
+            Set<String> referenced = BlockRefs.getReferenced(tx, contentKeys);
+            for (String contentKey : contentKeys)
+                if (!referenced.contains(contentKey)) {
+                    tx.assignRegister(contentKey, ByteString.EMPTY);
+                    reclaimed++;
+                }
+            tx.commit();
+        }
+        reclaimedBlocks.add(reclaimed);
+        return reclaimed;
+    }
+
+    private void reclaim(String inodeKey) {
+        StoredMap inode = backend.noTransaction().readMap(inodeKey);
+        long size = inode.getInteger(FsModel.SIZE, 0L);
+        long bSize = inode.getInteger(FsModel.BLOCK_SIZE, 0L);
+        boolean dedup = FsModel.isDedup(inode);
+        // the segments of the manifest up to the end of the file: truncation
+        // drops the entries past it
+        List<String> segmentKeys = new ArrayList<>();
+        if (size > 0 && bSize > 0)
+            for (int seg = 0; seg <= Manifest.getSegment((int) ((size - 1) / bSize)); seg++)
+                segmentKeys.add(Manifest.getSegmentKey(inodeKey, seg));
+        // and the entries of a directory
+        boolean dir = FsModel.isDirectoryKey(inodeKey);
+        List<String> keys = new ArrayList<>(segmentKeys);
+        if (dir)
+            keys.add(DirsNamespace.getEntriesKey(inodeKey));
+        List<StoredMap> segments = keys.isEmpty() ? Collections.emptyList()
+                : backend.noTransaction().readMaps(keys);
+        StoredMap entries = dir ? segments.get(segmentKeys.size()) : null;
+        long bytes = 0;
+        MapUpdate reset = new MapUpdate();
+        List<String> orphans = new ArrayList<>();
+        // blocks of a deduplicated file are released, and reclaimed later if
+        // no other file shares them
+        BlockRefs refs = new BlockRefs();
+        try (BackendTransaction tx = backend.startTransaction()) {
+            for (String key : inode.keySet())
+                reset.removeInteger(key);
+            if (entries != null) {
+                // entries created concurrently with the removal of the directory
+                MapUpdate resetEntries = new MapUpdate();
+                for (String key : entries.keySet()) {
+                    orphans.add(entries.getString(key));
+                    resetEntries.removeRegister(key);
+                }
+                if (!resetEntries.isEmpty())
+                    tx.updateMap(DirsNamespace.getEntriesKey(inodeKey), resetEntries);
+            }
+            for (int seg = 0; seg < segmentKeys.size(); seg++) {
+                StoredMap segment = segments.get(seg);
+                MapUpdate resetSegment = new MapUpdate();
+                for (String key : segment.keySet()) {
+                    int b = Manifest.getBlockIndex(key);
+                    if (key.startsWith(FsModel.HASH_PREFIX)) {
+                        refs.remove(segment.getString(key), FsModel.getBlockKey(inodeKey, b));
+                        resetSegment.removeRegister(key);
+                    } else {
+                        if (!dedup) {
+                            tx.assignRegister(FsModel.getBlockKey(inodeKey, b), ByteString.EMPTY);
+                            bytes += Math.max(0, Math.min(bSize, size - b * bSize));
+                        }
+                        resetSegment.removeInteger(key);
+                    }
+                }
+                if (!resetSegment.isEmpty())
+                    tx.updateMap(segmentKeys.get(seg), resetSegment);
+            }
+            refs.apply(tx);
+            if (!reset.isEmpty())
+                tx.updateMap(inodeKey, reset);
+            tx.commit();
+        }
+        for (String orphan : orphans)
+            unlinked(orphan);
+        unreferenced(refs.getUnreferenced());
+        reclaimedInodes.increment();
+        reclaimedBytes.add(bytes);
+    }
+
+    public long getReclaimedInodes() {
+        return reclaimedInodes.sum();
+    }
+
+    /**
+     * @return the number of content-addressed blocks reclaimed so far
+     */
+    public long getReclaimedBlocks() {
+        return reclaimedBlocks.sum();
+    }
+
+    /**
+     * @return the bytes of file content reclaimed so far, content-addressed
+     *         blocks excluded
+     */
+    public long getReclaimedBytes() {
+        return reclaimedBytes.sum();
+    }
+}
@@ -0,0 +1,244 @@
+package eu.antidotedb.fs;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.google.protobuf.ByteString;
+
+/**
+ * Commits the metadata updates of a namespace. By default, each submission is
+ * committed in its own transaction, in the caller's thread. In group commit
+ * mode, submissions are queued and committed by a background thread, which
+ * merges those arriving within a short window (or up to a max number of them)
+ * into a single transaction: callers only wait for the commit of their group,
+ * and bursts of creations (e.g. extracting an archive) pay one commit per group
+ * instead of one per file.
+ * <p>
+ * Within a group, the updates of a same map are merged into a single update as
+ * long as they touch different entries, and are applied in submission order.
+ */
+public class GroupCommit implements Runnable {
+
+    /**
+     * Commits a transaction, given the path changes of its updates.
+     */
+    public interface Committer {
+        void commit(BackendTransaction tx, List<PathChange> changes);
+    }
+
+    private static class Submission {
+        final List<PathChange>             changes;
+        final Consumer<BackendTransaction> updates;
+        final CompletableFuture<Void>      committed = new CompletableFuture<>();
+
+        Submission(List<PathChange> changes, Consumer<BackendTransaction> updates) {
+            this.changes = changes;
+            this.updates = updates;
+        }
+    }
+
+    private final StorageBackend                  backend;
+    private final Committer                       committer;
+    private final long                            windowNanos;
+    private final int                             maxGroup;
+    // null if not in group commit mode
+    private final Thread                          groupThread;
+    private final LinkedBlockingQueue<Submission> queue = new LinkedBlockingQueue<>();
+    // commit of the last submission; groups are committed in order
+    private volatile CompletableFuture<Void>      last  = CompletableFuture.completedFuture(null);
+
+    private static final Logger                   log   = LogManager.getLogger();
+
+    public GroupCommit(StorageBackend backend, Committer committer, FsOptions options) {
+        this.backend = backend;
+        this.committer = committer;
+        windowNanos = TimeUnit.MILLISECONDS.toNanos(options.getGroupCommitWindow());
+        maxGroup = options.getGroupCommitMax();
+        if (windowNanos > 0) {
+            groupThread = new Thread(this, "group-commit");
+            groupThread.setDaemon(true);
+            groupThread.start();
+        } else
+            groupThread = null;
+    }
+
+    /**
+     * Commits the remaining submissions and stops the group commit thread.
+     */
+    public void close() {
+        if (groupThread != null) {
+            groupThread.interrupt();
+            try {
+                groupThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Submits updates, applied to a transaction, and the path changes they
+     * make. Callers are expected to apply the changes in memory before
+     * submitting them, and to submit and wait for the commit (see
+     * {@link #await(CompletableFuture)}) without holding their locks, so that
+     * concurrent submissions overlap. Without group commit, the updates are
+     * committed before returning.
+     *
+     * @return the commit of the submission
+     */
+    public CompletableFuture<Void> submit(List<PathChange> changes,
+            Consumer<BackendTransaction> updates) {
+        Submission submission = new Submission(changes, updates);
+        if (groupThread == null) {
+            try (BackendTransaction tx = backend.startTransaction()) {
+                updates.accept(tx);
+                committer.commit(tx, changes);
+            }
+            submission.committed.complete(null);
+        } else {
+            queue.add(submission);
+            last = submission.committed;
+        }
+        return submission.committed;
+    }
+
+    /**
+     * Waits for all the submissions so far to be committed, e.g. before reading
+     * from the store what they update.
+     */
+    public void awaitPending() {
+        try {
+            last.join();
+        } catch (CompletionException e) { // reported to its submitter
+        }
+    }
+
+    /**
+     * Waits for a commit, rethrowing its failure.
+     */
+    public static void await(CompletableFuture<Void> committed) {
+        try {
+            committed.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw e;
+        }
+    }
+
+    @Override
+    public void run() {
+        List<Submission> group = new ArrayList<>(maxGroup);
+        boolean closed = false;
+        while (!closed) {
+            try {
+                group.add(queue.take());
+                long deadline = System.nanoTime() + windowNanos;
+                while (group.size() < maxGroup) {
+                    Submission next = queue.poll(deadline - System.nanoTime(),
+                            TimeUnit.NANOSECONDS);
+                    if (next == null)
+                        break;
+                    group.add(next);
+                }
+            } catch (InterruptedException e) {
+                closed = true;
+                queue.drainTo(group);
+            }
+            if (!group.isEmpty())
+                commitGroup(group);
+            group.clear();
+        }
+    }
+
+    private void commitGroup(List<Submission> group) {
+        List<PathChange> changes = new ArrayList<>();
+        try (BackendTransaction tx = backend.startTransaction()) {
+            MergingTransaction merging = new MergingTransaction(tx);
+            for (Submission submission : group) {
+                submission.updates.accept(merging);
+                changes.addAll(submission.changes);
+            }
+            merging.flush();
+            committer.commit(tx, changes);
+        } catch (RuntimeException e) {
+            log.error("failed to commit a group of " + group.size() + " updates", e);
+            for (Submission submission : group)
+                submission.committed.completeExceptionally(e);
+            return;
+        }
+        for (Submission submission : group)
+            submission.committed.complete(null);
+    }
+
+    // merges the map updates of a group, write-only
+    private static class MergingTransaction implements BackendTransaction {
+        private final BackendTransaction                     tx;
+        // for each map, its updates in order, none overlapping the previous one
+        private final LinkedHashMap<String, List<MapUpdate>> maps = new LinkedHashMap<>();
+
+        MergingTransaction(BackendTransaction tx) {
+            this.tx = tx;
+        }
+
+        @Override
+        public void updateMap(String key, MapUpdate update) {
+            List<MapUpdate> updates = maps.computeIfAbsent(key, k -> new ArrayList<>(1));
+            MapUpdate lastUpdate = updates.isEmpty() ? null : updates.get(updates.size() - 1);
+            if (lastUpdate != null && !lastUpdate.overlaps(update))
+                lastUpdate.addAll(update);
+            else
+                updates.add(new MapUpdate().addAll(update));
+        }
+
+        @Override
+        public void assignRegister(String key, ByteString value) {
+            tx.assignRegister(key, value);
+        }
+
+        void flush() {
+            for (Entry<String, List<MapUpdate>> map : maps.entrySet())
+                for (MapUpdate update : map.getValue())
+                    tx.updateMap(map.getKey(), update);
+        }
+
+        @Override
+        public StoredMap readMap(String key) {
+            throw new UnsupportedOperationException("reads are not grouped");
+        }
+
+        @Override
+        public List<StoredMap> readMaps(List<String> keys) {
+            throw new UnsupportedOperationException("reads are not grouped");
+        }
+
+        @Override
+        public ByteString readRegister(String key) {
+            throw new UnsupportedOperationException("reads are not grouped");
+        }
+
+        @Override
+        public List<ByteString> readRegisters(List<String> keys) {
+            throw new UnsupportedOperationException("reads are not grouped");
+        }
+
+        @Override
+        public void commit() {
+            throw new UnsupportedOperationException("committed by the group");
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package eu.antidotedb.fs;
+
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The files opened through FUSE, indexed by the handle returned to the kernel
+ * in FuseFileInfo.fh, so that the operations on an open file skip the path
+ * resolution. Handles are small integers, reused once released; 0 is never
+ * returned, since it is the handle of the files opened without open. Looking
+ * up a handle does not lock nor allocate.
+ * <p>
+ * The mode and size of a file are cached when it is first opened, and shared
+ * by its open files until the last is released: getattr and read on an open
+ * file do not look them up, and see the changes made by other mounts once it
+ * is opened again (close-to-open consistency).
+ */
+public class HandleTable {
+
+    /**
+     * The state of an open file, kept until it is released. It still refers
+     * to the inode if the file is renamed or unlinked meanwhile.
+     */
+    public static class OpenFile {
+        final String                               inodeKey;
+        // null if readahead is disabled
+        final Readahead                            readahead;
+        final Attrs                                attrs;
+        // the buffered writes of the file, shared with its other open files;
+        // null until written through this one
+        private volatile WriteBackCache.DirtyFile dirty;
+
+        OpenFile(String inodeKey, Readahead readahead, Attrs attrs) {
+            this.inodeKey = inodeKey;
+            this.readahead = readahead;
+            this.attrs = attrs;
+        }
+
+        public String getInodeKey() {
+            return inodeKey;
+        }
+
+        public long getMode() {
+            return attrs.mode;
+        }
+
+        public long getSize() {
+            return attrs.size.get();
+        }
+
+        /**
+         * Records a write up to end through the file.
+         */
+        public void grow(long end) {
+            attrs.size.accumulateAndGet(end, Math::max);
+        }
+
+        public Readahead getReadahead() {
+            return readahead;
+        }
+
+        WriteBackCache.DirtyFile getDirty() {
+            return dirty;
+        }
+
+        void setDirty(WriteBackCache.DirtyFile dirty) {
+            this.dirty = dirty;
+        }
+    }
+
+    // the attributes of an inode, shared by its open files
+    private static class Attrs {
+        final long       mode;
+        final AtomicLong size;
+        // number of open files, under the lock of the table
+        int              openCount;
+
+        Attrs(long mode, long size) {
+            this.mode = mode;
+            this.size = new AtomicLong(size);
+        }
+    }
+
+    // slot 0 is never used; written under this, read without locking
+    private volatile AtomicReferenceArray<OpenFile> slots;
+    // lowest slot that may be free
+    private int                                     firstFree = 1;
+    private int                                     size;
+    // the attributes of the open inodes
+    private final HashMap<String, Attrs>            attrs     = new HashMap<>();
+    // max readahead window of the open files (bytes), 0 disables readahead
+    private final long                              readaheadMax;
+
+    public HandleTable() {
+        this(0);
+    }
+
+    public HandleTable(long readaheadMax) {
+        this.readaheadMax = readaheadMax;
+        slots = new AtomicReferenceArray<>(64);
+    }
+
+    /**
+     * @param mode
+     *            the mode of the inode, unless already open
+     * @param fileSize
+     *            the size of the inode, unless already open
+     * @return the handle of a new open file on inodeKey
+     */
+    public synchronized long open(String inodeKey, long mode, long fileSize) {
+        AtomicReferenceArray<OpenFile> s = slots;
+        int fh = firstFree;
+        while (fh < s.length() && s.get(fh) != null)
+            fh++;
+        if (fh == s.length()) { // full, double the table
+            AtomicReferenceArray<OpenFile> grown = new AtomicReferenceArray<>(2 * s.length());
+            for (int i = 1; i < s.length(); i++)
+                grown.set(i, s.get(i));
+            slots = s = grown;
+        }
+        Attrs a = attrs.computeIfAbsent(inodeKey, k -> new Attrs(mode, fileSize));
+        a.openCount++;
+        s.set(fh, new OpenFile(inodeKey, readaheadMax > 0 ? new Readahead(readaheadMax) : null,
+                a));
+        firstFree = fh + 1;
+        size++;
+        return fh;
+    }
+
+    /**
+     * @return the open file of a handle, or null if the handle is not in use
+     */
+    public OpenFile get(long fh) {
+        AtomicReferenceArray<OpenFile> s = slots;
+        return fh > 0 && fh < s.length() ? s.get((int) fh) : null;
+    }
+
+    /**
+     * Frees a handle, cancelling the readahead of its file.
+     * 
+     * @return the open file it referred to, or null if it was not in use
+     */
+    public synchronized OpenFile release(long fh) {
+        OpenFile file = get(fh);
+        if (file != null) {
+            if (file.readahead != null)
+                file.readahead.cancel();
+            if (--file.attrs.openCount == 0)
+                attrs.remove(file.inodeKey);
+            slots.set((int) fh, null);
+            firstFree = Math.min(firstFree, (int) fh);
+            size--;
+        }
+        return file;
+    }
+
+    /**
+     * Records the new size of a file truncated, if it is open.
+     */
+    public synchronized void truncated(String inodeKey, long fileSize) {
+        Attrs a = attrs.get(inodeKey);
+        if (a != null)
+            a.size.set(fileSize);
+    }
+
+    /**
+     * Records a write up to end to a file without an open file, if it is open
+     * through others.
+     */
+    public synchronized void written(String inodeKey, long end) {
+        Attrs a = attrs.get(inodeKey);
+        if (a != null)
+            a.size.accumulateAndGet(end, Math::max);
+    }
+
+    /**
+     * @return the number of open files
+     */
+    public synchronized int size() {
+        return size;
+    }
+}
@@ -0,0 +1,295 @@
+package eu.antidotedb.fs;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
+
+/**
+ * An in-process stand-in for Antidote, to exercise and benchmark FsModel
+ * without a running database.
+ * <p>
+ * Every round-trip to Antidote (a read, a batched read, an update, the start
+ * and the commit of an interactive transaction) is charged a configurable
+ * latency, and holds one of a fixed number of connections, the way requests to
+ * Antidote do. Interactive transactions buffer their updates and apply them
+ * atomically on commit; their reads do not observe their own updates.
+ */
+public class InMemoryBackend implements StorageBackend {
+
+    private final ConcurrentHashMap<String, InMemoryMap>         maps       = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, ByteString>          registers  = new ConcurrentHashMap<>();
+    private final long                                           latencyNanos;
+    private final AtomicLong                                     roundTrips = new AtomicLong();
+    // connections are only tokens here
+    private final ConnectionPool<Object>                         pool;
+
+    static final private int                                     DEFAULT_CONNECTIONS = 16;
+
+    public InMemoryBackend() {
+        this(0, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @param latency
+     *            latency injected in every round-trip
+     */
+    public InMemoryBackend(long latency, TimeUnit unit) {
+        this(latency, unit, DEFAULT_CONNECTIONS);
+    }
+
+    /**
+     * @param latency
+     *            latency injected in every round-trip
+     * @param connections
+     *            max number of round-trips in flight at once
+     */
+    public InMemoryBackend(long latency, TimeUnit unit, int connections) {
+        latencyNanos = unit.toNanos(latency);
+        List<Object> tokens = new ArrayList<>(connections);
+        for (int i = 0; i < connections; i++)
+            tokens.add(new Object());
+        pool = new ConnectionPool<>(tokens);
+    }
+
+    @Override
+    public BackendTransaction noTransaction() {
+        return new InMemoryTransaction(null);
+    }
+
+    @Override
+    public BackendTransaction startTransaction() {
+        Object connection = pool.acquire();
+        roundTrip();
+        return new InMemoryTransaction(connection);
+    }
+
+    @Override
+    public CompletableFuture<List<ByteString>> readRegistersAsync(List<String> keys) {
+        return pool.submit(() -> noTransaction().readRegisters(keys));
+    }
+
+    @Override
+    public CompletableFuture<List<StoredMap>> readMapsAsync(List<String> keys) {
+        return pool.submit(() -> noTransaction().readMaps(keys));
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return pool.getQueueDepth();
+    }
+
+    @Override
+    public int getInFlight() {
+        return pool.getInFlight();
+    }
+
+    @Override
+    public void close() {
+        pool.close();
+    }
+
+    /**
+     * @return the number of round-trips issued so far
+     */
+    public long getRoundTrips() {
+        return roundTrips.get();
+    }
+
+    private void roundTrip() {
+        roundTrips.incrementAndGet();
+        if (latencyNanos > 0)
+            LockSupport.parkNanos(latencyNanos);
+    }
+
+    // maps are immutable once stored, updates replace them with a patched copy
+    synchronized private void applyMapUpdate(String key, MapUpdate update) {
+        InMemoryMap old = maps.get(key);
+        HashMap<String, Object> map = old == null ? new HashMap<>() : new HashMap<>(old.map);
+        for (MapUpdate.Op op : update.getOps()) {
+            switch (op.type) {
+            case ASSIGN_REGISTER:
+            case ASSIGN_INTEGER:
+                map.put(op.key, op.value);
+                break;
+            case INCREMENT_INTEGER:
+                Object cur = map.get(op.key);
+                map.put(op.key, (cur == null ? 0L : (Long) cur) + (Long) op.value);
+                break;
+            case REMOVE_REGISTER:
+            case REMOVE_INTEGER:
+                map.remove(op.key);
+                break;
+            }
+        }
+        maps.put(key, new InMemoryMap(Collections.unmodifiableMap(map)));
+    }
+
+    synchronized private void applyUpdates(List<Runnable> updates) {
+        for (Runnable update : updates)
+            update.run();
+    }
+
+    private class InMemoryTransaction implements BackendTransaction {
+
+        // held until close, null if every operation is committed on its own
+        private Object               connection;
+        // null if every operation is committed on its own
+        private final List<Runnable> pendingUpdates;
+
+        private InMemoryTransaction(Object connection) {
+            this.connection = connection;
+            pendingUpdates = connection != null ? new ArrayList<>() : null;
+        }
+
+        @Override
+        public StoredMap readMap(String key) {
+            request();
+            return maps.getOrDefault(key, InMemoryMap.EMPTY);
+        }
+
+        @Override
+        public List<StoredMap> readMaps(List<String> keys) {
+            request();
+            List<StoredMap> res = new ArrayList<>(keys.size());
+            for (String key : keys)
+                res.add(maps.getOrDefault(key, InMemoryMap.EMPTY));
+            return res;
+        }
+
+        @Override
+        public ByteString readRegister(String key) {
+            request();
+            return registers.get(key);
+        }
+
+        @Override
+        public List<ByteString> readRegisters(List<String> keys) {
+            request();
+            List<ByteString> res = new ArrayList<>(keys.size());
+            for (String key : keys)
+                res.add(registers.get(key));
+            return res;
+        }
+
+        // a round-trip on the connection of the transaction, or on a pooled one
+        private void request() {
+            if (connection != null) {
+                roundTrip();
+                return;
+            }
+            Object pooled = pool.acquire();
+            try {
+                roundTrip();
+            } finally {
+                pool.release(pooled);
+            }
+        }
+
+        @Override
+        public void updateMap(String key, MapUpdate update) {
+            update(() -> applyMapUpdate(key, update));
+        }
+
+        @Override
+        public void assignRegister(String key, ByteString value) {
+            update(() -> registers.put(key, value));
+        }
+
+        private void update(Runnable update) {
+            request();
+            if (pendingUpdates == null)
+                applyUpdates(Collections.singletonList(update));
+            else
+                pendingUpdates.add(update);
+        }
+
+        @Override
+        public void commit() {
+            if (pendingUpdates != null) {
+                roundTrip();
+                applyUpdates(pendingUpdates);
+                pendingUpdates.clear();
+            }
+        }
+
+        @Override
+        public void close() {
+            if (connection != null) {
+                pendingUpdates.clear();
+                pool.release(connection);
+                connection = null;
+            }
+        }
+    }
+
+    private static class InMemoryMap implements StoredMap {
+
+        private final Map<String, Object> map;
+        // computed once, as the map never changes
+        private final long                serializedSize;
+
+        static final InMemoryMap          EMPTY = new InMemoryMap(Collections.emptyMap());
+
+        private InMemoryMap(Map<String, Object> map) {
+            this.map = map;
+            long bytes = 0;
+            for (Map.Entry<String, Object> entry : map.entrySet()) {
+                bytes += CodedOutputStream.computeStringSizeNoTag(entry.getKey());
+                if (entry.getValue() instanceof ByteString)
+                    bytes += CodedOutputStream.computeBytesSizeNoTag((ByteString) entry.getValue());
+                else
+                    bytes += CodedOutputStream.computeInt64SizeNoTag((Long) entry.getValue());
+            }
+            serializedSize = bytes;
+        }
+
+        @Override
+        public ByteString getRegister(String key) {
+            Object value = map.get(key);
+            return value instanceof ByteString ? (ByteString) value : null;
+        }
+
+        @Override
+        public String getString(String key) {
+            ByteString value = getRegister(key);
+            return value == null ? null : value.toStringUtf8();
+        }
+
+        @Override
+        public long getInteger(String key, long defaultValue) {
+            Object value = map.get(key);
+            return value instanceof Long ? (Long) value : defaultValue;
+        }
+
+        @Override
+        public boolean containsKey(String key) {
+            return map.containsKey(key);
+        }
+
+        @Override
+        public Set<String> keySet() {
+            return map.keySet();
+        }
+
+        @Override
+        public int size() {
+            return map.size();
+        }
+
+        @Override
+        public long getSerializedSize() {
+            return serializedSize;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package eu.antidotedb.fs;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+/**
+ * The latency histogram and error count of a kind of operation. Recording is
+ * wait-free and does not allocate, so that it can be done on every FUSE
+ * callback; readers take snapshots, merged into a histogram of all the values
+ * recorded since the creation.
+ */
+public class LatencyStats implements LatencyStatsMBean {
+
+    // latencies above are recorded as this value (ns)
+    static final private long MAX_LATENCY = TimeUnit.MINUTES.toNanos(1);
+    // values are recorded with a 1% precision
+    static final private int  PRECISION   = 2;
+
+    private final String      name;
+    private final Recorder    recorder    = new Recorder(MAX_LATENCY, PRECISION);
+    private final LongAdder   errors      = new LongAdder();
+    // guarded by this
+    private final Histogram   total       = new Histogram(MAX_LATENCY, PRECISION);
+    private Histogram         interval;
+
+    public LatencyStats(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Records an operation which took the given time (ns).
+     */
+    public void record(long nanos) {
+        recorder.recordValue(Math.max(0, Math.min(nanos, MAX_LATENCY)));
+    }
+
+    public void recordError() {
+        errors.increment();
+    }
+
+    // merges the values recorded since the last call
+    private Histogram snapshot() {
+        interval = recorder.getIntervalHistogram(interval);
+        total.add(interval);
+        return total;
+    }
+
+    private synchronized long getPercentile(double percentile) {
+        return TimeUnit.NANOSECONDS.toMicros(snapshot().getValueAtPercentile(percentile));
+    }
+
+    @Override
+    public synchronized long getCount() {
+        return snapshot().getTotalCount();
+    }
+
+    @Override
+    public long getErrors() {
+        return errors.sum();
+    }
+
+    @Override
+    public synchronized double getMean() {
+        return snapshot().getMean() / 1000;
+    }
+
+    @Override
+    public long getP50() {
+        return getPercentile(50);
+    }
+
+    @Override
+    public long getP90() {
+        return getPercentile(90);
+    }
+
+    @Override
+    public long getP99() {
+        return getPercentile(99);
+    }
+
+    @Override
+    public long getP999() {
+        return getPercentile(99.9);
+    }
+
+    @Override
+    public synchronized long getMax() {
+        return TimeUnit.NANOSECONDS.toMicros(snapshot().getMaxValue());
+    }
+}
@@ -0,0 +1,23 @@
+package eu.antidotedb.fs;
+
+/**
+ * The JMX view of a {@link LatencyStats}. Latencies are in microseconds.
+ */
+public interface LatencyStatsMBean {
+
+    long getCount();
+
+    long getErrors();
+
+    double getMean();
+
+    long getP50();
+
+    long getP90();
+
+    long getP99();
+
+    long getP999();
+
+    long getMax();
+}
@@ -0,0 +1,185 @@
+package eu.antidotedb.fs;
+
+import static java.io.File.separator;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map.Entry;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+import com.google.protobuf.ByteString;
+
+/**
+ * Converts a volume from the single-map layout ({@link PathsNamespace}) to the
+ * per-directory one ({@link DirsNamespace}): every entry of the paths map is
+ * copied into the entries map of its parent directory, then removed from the
+ * paths map, except for the root. The migration is done in batches of
+ * transactions, and can be run again if interrupted; no mount must use the
+ * volume meanwhile.
+ * <p>
+ * Beforehand, the files written before block manifests, whose whole content
+ * is in the CONTENT register of their inode map, are split into blocks (see
+ * {@link FsModel}): mounts no longer read that register. Its command line
+ * parameters are:
+ * <ul>
+ * <li>-a / --antidote: the address of the Antidote database, formatted as
+ * &lt;IPAddress:Port&gt;</li>
+ * <li>-b / --blocksize: the size of the blocks of the files converted</li>
+ * <li>--content-only: only convert the content of the files, keeping the
+ * layout</li>
+ * </ul>
+ */
+public class LayoutMigration {
+
+    private static class Args {
+        @Parameter(names = { "--antidote",
+                "-a" }, description = "IP address of Antidote (<IP>:<port>).")
+        private String  antidoteAddress;
+
+        @Parameter(names = { "--blocksize",
+                "-b" }, description = "Size of the blocks of the files converted (bytes).")
+        private int     blockSize   = new FsOptions().getBlockSize();
+
+        @Parameter(names = "--content-only", description = "Only convert the content of the "
+                + "files written before block manifests, keeping the layout.")
+        private boolean contentOnly = false;
+    }
+
+    // number of entries copied or removed per transaction
+    static final private int    BATCH_SIZE = 1000;
+
+    // register of the inode maps of files written before block manifests,
+    // holding their whole content
+    static final String         CONTENT    = "CONT";
+
+    private static final Logger log        = LogManager.getLogger();
+
+    /**
+     * @return the number of entries migrated
+     */
+    public static int migrate(StorageBackend backend) {
+        StoredMap paths = backend.noTransaction().readMap(PathsNamespace.PATHS_MAP);
+
+        // copy the entries to their parent directory, grouped by parent
+        List<String> migrated = new ArrayList<>();
+        HashMap<String, MapUpdate> batch = new HashMap<>();
+        for (String path : paths.keySet()) {
+            if (path.equals(separator))
+                continue;
+            String parentKey = paths.getString(FsModel.getParentPath(path));
+            if (parentKey == null || !FsModel.isDirectoryKey(parentKey)) {
+                log.warn("{} has no parent directory, left in the paths map", path);
+                continue;
+            }
+            batch.computeIfAbsent(DirsNamespace.getEntriesKey(parentKey), k -> new MapUpdate())
+                    .assign(DirsNamespace.ENTRY_PREFIX + FsModel.getNameFromPath(path),
+                    paths.getString(path));
+            migrated.add(path);
+            if (migrated.size() % BATCH_SIZE == 0) {
+                commit(backend, batch);
+                batch.clear();
+            }
+        }
+        commit(backend, batch);
+
+        // then drop them from the paths map
+        for (int i = 0; i < migrated.size(); i += BATCH_SIZE) {
+            MapUpdate removal = new MapUpdate();
+            for (String path : migrated.subList(i, Math.min(i + BATCH_SIZE, migrated.size())))
+                removal.removeRegister(path);
+            backend.noTransaction().updateMap(PathsNamespace.PATHS_MAP, removal);
+        }
+        return migrated.size();
+    }
+
+    /**
+     * Splits the content of the files written before block manifests into
+     * blocks of blockSize bytes. Files already converted are skipped.
+     *
+     * @return the number of files converted
+     */
+    public static int migrateContent(StorageBackend backend, int blockSize) {
+        int converted = 0;
+        List<String> files = getFiles(backend);
+        for (int i = 0; i < files.size(); i += BATCH_SIZE) {
+            List<String> keys = files.subList(i, Math.min(i + BATCH_SIZE, files.size()));
+            List<StoredMap> inodes = backend.noTransaction().readMaps(keys);
+            for (int j = 0; j < keys.size(); j++) {
+                StoredMap inode = inodes.get(j);
+                ByteString content = inode.getRegister(CONTENT);
+                if (content == null || inode.containsKey(FsModel.BLOCK_SIZE))
+                    continue;
+                convert(backend, keys.get(j), content, blockSize);
+                converted++;
+            }
+        }
+        return converted;
+    }
+
+    private static void convert(StorageBackend backend, String inodeKey, ByteString content,
+            int blockSize) {
+        try (BackendTransaction tx = backend.startTransaction()) {
+            Manifest.Update update = new Manifest.Update();
+            for (int b = 0; (long) b * blockSize < content.size(); b++) {
+                int start = b * blockSize;
+                tx.assignRegister(FsModel.getBlockKey(inodeKey, b),
+                        content.substring(start, Math.min(start + blockSize, content.size())));
+                update.getBlock(b).increment(FsModel.BLOCK_PREFIX + b, 1);
+            }
+            update.getInode().assign(FsModel.BLOCK_SIZE, blockSize)
+                    .assign(FsModel.SIZE, content.size()).removeRegister(CONTENT);
+            update.apply(tx, inodeKey);
+            tx.commit();
+        }
+    }
+
+    // the inode keys of all the files, in either layout
+    private static List<String> getFiles(StorageBackend backend) {
+        List<String> files = new ArrayList<>();
+        List<String> dirs = new ArrayList<>();
+        StoredMap paths = backend.noTransaction().readMap(PathsNamespace.PATHS_MAP);
+        for (String path : paths.keySet())
+            (FsModel.isDirectoryKey(paths.getString(path)) ? dirs : files)
+                    .add(paths.getString(path));
+        // the entries of the directories, empty in the single-map layout
+        for (int i = 0; i < dirs.size(); i += BATCH_SIZE) {
+            List<String> entriesKeys = new ArrayList<>();
+            for (String dir : dirs.subList(i, Math.min(i + BATCH_SIZE, dirs.size())))
+                entriesKeys.add(DirsNamespace.getEntriesKey(dir));
+            for (StoredMap entries : backend.noTransaction().readMaps(entriesKeys))
+                for (String name : entries.keySet()) {
+                    String key = entries.getString(name);
+                    (FsModel.isDirectoryKey(key) ? dirs : files).add(key);
+                }
+        }
+        return files;
+    }
+
+    private static void commit(StorageBackend backend, HashMap<String, MapUpdate> updates) {
+        if (updates.isEmpty())
+            return;
+        try (BackendTransaction tx = backend.startTransaction()) {
+            for (Entry<String, MapUpdate> update : updates.entrySet())
+                tx.updateMap(update.getKey(), update.getValue());
+            tx.commit();
+        }
+    }
+
+    public static void main(String[] args) {
+        Args ar = new Args();
+        JCommander.newBuilder().addObject(ar).build().parse(args);
+        try (StorageBackend backend = new AntidoteBackend(ar.antidoteAddress)) {
+            int converted = migrateContent(backend, ar.blockSize);
+            log.info("{} files split into blocks", converted);
+            if (!ar.contentOnly) {
+                int migrated = migrate(backend);
+                log.info("{} entries moved to their parent directory", migrated);
+            }
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package eu.antidotedb.fs;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeMap;
+
+import com.google.protobuf.ByteString;
+
+/**
+ * The block manifest of a file, along with its inode map. The manifest entries
+ * (see {@link FsModel}) are not stored in the inode map: they are split into
+ * segments of SEGMENT_BLOCKS consecutive blocks, each stored in its own map, so
+ * that reads and writes only fetch the entries of the blocks they touch and
+ * their cost does not grow with the size of the file. The inode map only holds
+ * the attributes of the file.
+ * <p>
+ * An instance is a view of the inode map and of the segments loaded so far, as
+ * a single map: the entries of the segments not loaded read as absent.
+ */
+class Manifest implements StoredMap {
+
+    // null until read
+    private StoredMap                         inode;
+    private final HashMap<Integer, StoredMap> segments = new HashMap<>();
+
+    // number of blocks per segment
+    static final int                          SEGMENT_BLOCKS = 128;
+    // separator between the inode key and the segment index in segment maps' keys
+    static final private String               SEGMENT_SEP    = "@";
+
+    Manifest(StoredMap inode) {
+        this.inode = inode;
+    }
+
+    StoredMap getInode() {
+        return inode;
+    }
+
+    void setInode(StoredMap inode) {
+        this.inode = inode;
+    }
+
+    boolean isLoaded(int segment) {
+        return segments.containsKey(segment);
+    }
+
+    void putSegment(int segment, StoredMap entries) {
+        segments.put(segment, entries);
+    }
+
+    static int getSegment(int blockIdx) {
+        return blockIdx / SEGMENT_BLOCKS;
+    }
+
+    static String getSegmentKey(String inodeKey, int segment) {
+        return inodeKey + SEGMENT_SEP + segment;
+    }
+
+    /**
+     * @return the index of the block of a manifest entry's key, or -1 for the
+     *         keys of the inode map
+     */
+    static int getBlockIndex(String key) {
+        if (!key.startsWith(FsModel.BLOCK_PREFIX) && !key.startsWith(FsModel.HASH_PREFIX))
+            return -1;
+        // both prefixes are a single char
+        if (key.length() < 2)
+            return -1;
+        for (int i = 1; i < key.length(); i++)
+            if (!Character.isDigit(key.charAt(i)))
+                return -1;
+        return Integer.parseInt(key.substring(1));
+    }
+
+    // the map holding key, null if not loaded
+    private StoredMap getMap(String key) {
+        int b = getBlockIndex(key);
+        return b < 0 ? inode : segments.get(getSegment(b));
+    }
+
+    @Override
+    public ByteString getRegister(String key) {
+        StoredMap map = getMap(key);
+        return map == null ? null : map.getRegister(key);
+    }
+
+    @Override
+    public String getString(String key) {
+        StoredMap map = getMap(key);
+        return map == null ? null : map.getString(key);
+    }
+
+    @Override
+    public long getInteger(String key, long defaultValue) {
+        StoredMap map = getMap(key);
+        return map == null ? defaultValue : map.getInteger(key, defaultValue);
+    }
+
+    @Override
+    public boolean containsKey(String key) {
+        StoredMap map = getMap(key);
+        return map != null && map.containsKey(key);
+    }
+
+    @Override
+    public Set<String> keySet() {
+        Set<String> keys = new HashSet<>();
+        if (inode != null)
+            keys.addAll(inode.keySet());
+        for (StoredMap segment : segments.values())
+            keys.addAll(segment.keySet());
+        return keys;
+    }
+
+    @Override
+    public int size() {
+        int size = inode == null ? 0 : inode.size();
+        for (StoredMap segment : segments.values())
+            size += segment.size();
+        return size;
+    }
+
+    @Override
+    public long getSerializedSize() {
+        long size = inode == null ? 0 : inode.getSerializedSize();
+        for (StoredMap segment : segments.values())
+            size += segment.getSerializedSize();
+        return size;
+    }
+
+    /**
+     * The updates of an inode map and of the segments of its manifest.
+     */
+    static class Update {
+        private final MapUpdate                   inode    = new MapUpdate();
+        private final TreeMap<Integer, MapUpdate> segments = new TreeMap<>();
+
+        MapUpdate getInode() {
+            return inode;
+        }
+
+        /**
+         * @return the update of the segment holding the entries of a block
+         */
+        MapUpdate getBlock(int blockIdx) {
+            return segments.computeIfAbsent(getSegment(blockIdx), s -> new MapUpdate());
+        }
+
+        /**
+         * @return the indexes of the segments updated
+         */
+        Set<Integer> getSegments() {
+            return segments.keySet();
+        }
+
+        void apply(BackendTransaction tx, String inodeKey) {
+            for (Entry<Integer, MapUpdate> segment : segments.entrySet())
+                tx.updateMap(getSegmentKey(inodeKey, segment.getKey()), segment.getValue());
+            if (!inode.isEmpty())
+                tx.updateMap(inodeKey, inode);
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package eu.antidotedb.fs;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.google.protobuf.ByteString;
+
+/**
+ * A batch of updates to the entries of a single map_aw, applied atomically.
+ */
+public final class MapUpdate {
+
+    enum OpType {
+        ASSIGN_REGISTER, ASSIGN_INTEGER, INCREMENT_INTEGER, REMOVE_REGISTER, REMOVE_INTEGER
+    }
+
+    static final class Op {
+        final OpType type;
+        final String key;
+        final Object value;
+
+        private Op(OpType type, String key, Object value) {
+            this.type = type;
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    private final List<Op> ops = new ArrayList<>(4);
+
+    public MapUpdate assign(String key, ByteString value) {
+        ops.add(new Op(OpType.ASSIGN_REGISTER, key, value));
+        return this;
+    }
+
+    public MapUpdate assign(String key, String value) {
+        return assign(key, ByteString.copyFromUtf8(value));
+    }
+
+    public MapUpdate assign(String key, long value) {
+        ops.add(new Op(OpType.ASSIGN_INTEGER, key, value));
+        return this;
+    }
+
+    public MapUpdate increment(String key, long delta) {
+        ops.add(new Op(OpType.INCREMENT_INTEGER, key, delta));
+        return this;
+    }
+
+    public MapUpdate removeRegister(String key) {
+        ops.add(new Op(OpType.REMOVE_REGISTER, key, null));
+        return this;
+    }
+
+    public MapUpdate removeInteger(String key) {
+        ops.add(new Op(OpType.REMOVE_INTEGER, key, null));
+        return this;
+    }
+
+    /**
+     * Appends the updates of other, to be applied after the ones of this.
+     */
+    MapUpdate addAll(MapUpdate other) {
+        ops.addAll(other.ops);
+        return this;
+    }
+
+    /**
+     * @return whether this and other update some entry in common
+     */
+    boolean overlaps(MapUpdate other) {
+        for (Op op : other.ops)
+            for (Op mine : ops)
+                if (mine.key.equals(op.key))
+                    return true;
+        return false;
+    }
+
+    public boolean isEmpty() {
+        return ops.isEmpty();
+    }
+
+    List<Op> getOps() {
+        return Collections.unmodifiableList(ops);
+    }
+}
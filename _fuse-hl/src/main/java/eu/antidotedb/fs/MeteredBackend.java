@@ -0,0 +1,164 @@
+package eu.antidotedb.fs;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
+
+/**
+ * Decorates a {@link StorageBackend} to time and count its requests, and the
+ * bytes they transfer, in {@link Metrics}. The bytes of registers and of maps
+ * are counted apart; those of maps are the serialized size of their entries,
+ * as reported by the maps read (see {@link StoredMap#getSerializedSize()}).
+ */
+public class MeteredBackend implements StorageBackend {
+
+    private final StorageBackend     backend;
+    private final Metrics            metrics;
+    // shared, as noTransaction() holds no state
+    private final MeteredTransaction noTransaction;
+
+    public MeteredBackend(StorageBackend backend, Metrics metrics) {
+        this.backend = backend;
+        this.metrics = metrics;
+        noTransaction = new MeteredTransaction(backend.noTransaction());
+    }
+
+    @Override
+    public BackendTransaction noTransaction() {
+        return noTransaction;
+    }
+
+    @Override
+    public BackendTransaction startTransaction() {
+        return new MeteredTransaction(backend.startTransaction());
+    }
+
+    @Override
+    public void close() {
+        backend.close();
+    }
+
+    @Override
+    public CompletableFuture<List<ByteString>> readRegistersAsync(List<String> keys) {
+        long start = metrics.start();
+        return backend.readRegistersAsync(keys).whenComplete((res, e) -> {
+            if (res != null)
+                metrics.storageRead(start, size(res));
+        });
+    }
+
+    @Override
+    public CompletableFuture<List<StoredMap>> readMapsAsync(List<String> keys) {
+        long start = metrics.start();
+        return backend.readMapsAsync(keys).whenComplete((res, e) -> {
+            if (res != null)
+                metrics.mapRead(start, mapsSize(res));
+        });
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return backend.getQueueDepth();
+    }
+
+    @Override
+    public int getInFlight() {
+        return backend.getInFlight();
+    }
+
+    private static long size(List<ByteString> registers) {
+        long bytes = 0;
+        for (int i = 0; i < registers.size(); i++)
+            if (registers.get(i) != null)
+                bytes += registers.get(i).size();
+        return bytes;
+    }
+
+    private static long mapsSize(List<StoredMap> maps) {
+        long bytes = 0;
+        for (int i = 0; i < maps.size(); i++)
+            bytes += maps.get(i).getSerializedSize();
+        return bytes;
+    }
+
+    private static long size(MapUpdate update) {
+        long bytes = 0;
+        for (MapUpdate.Op op : update.getOps()) {
+            bytes += CodedOutputStream.computeStringSizeNoTag(op.key);
+            if (op.value instanceof ByteString)
+                bytes += CodedOutputStream.computeBytesSizeNoTag((ByteString) op.value);
+            else if (op.value instanceof Long)
+                bytes += CodedOutputStream.computeInt64SizeNoTag((Long) op.value);
+        }
+        return bytes;
+    }
+
+    private class MeteredTransaction implements BackendTransaction {
+
+        private final BackendTransaction tx;
+
+        private MeteredTransaction(BackendTransaction tx) {
+            this.tx = tx;
+        }
+
+        @Override
+        public StoredMap readMap(String key) {
+            long start = metrics.start();
+            StoredMap res = tx.readMap(key);
+            metrics.mapRead(start, res.getSerializedSize());
+            return res;
+        }
+
+        @Override
+        public List<StoredMap> readMaps(List<String> keys) {
+            long start = metrics.start();
+            List<StoredMap> res = tx.readMaps(keys);
+            metrics.mapRead(start, mapsSize(res));
+            return res;
+        }
+
+        @Override
+        public ByteString readRegister(String key) {
+            long start = metrics.start();
+            ByteString res = tx.readRegister(key);
+            metrics.storageRead(start, res == null ? 0 : res.size());
+            return res;
+        }
+
+        @Override
+        public List<ByteString> readRegisters(List<String> keys) {
+            long start = metrics.start();
+            List<ByteString> res = tx.readRegisters(keys);
+            metrics.storageRead(start, size(res));
+            return res;
+        }
+
+        @Override
+        public void updateMap(String key, MapUpdate update) {
+            long start = metrics.start();
+            tx.updateMap(key, update);
+            metrics.mapUpdate(start, size(update));
+        }
+
+        @Override
+        public void assignRegister(String key, ByteString value) {
+            long start = metrics.start();
+            tx.assignRegister(key, value);
+            metrics.storageUpdate(start, value.size());
+        }
+
+        @Override
+        public void commit() {
+            long start = metrics.start();
+            tx.commit();
+            metrics.committed(start);
+        }
+
+        @Override
+        public void close() {
+            tx.close();
+        }
+    }
+}
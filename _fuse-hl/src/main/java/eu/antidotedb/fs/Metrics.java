@@ -0,0 +1,308 @@
+package eu.antidotedb.fs;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * The metrics of a mount: latency histograms of the FUSE operations and of the
+ * requests to the storage (see {@link MeteredBackend}), bytes transferred,
+ * duration of the namespace refreshes and size of the namespace.
+ * <p>
+ * With --metrics, they are registered as MBeans in the platform MBean server,
+ * under the eu.antidotedb.fs domain, and optionally dumped every
+ * --metrics-period to the log and to a CSV file. Recording does not allocate;
+ * when metrics are disabled, it is a no-op.
+ */
+public class Metrics implements MetricsMBean {
+
+    /**
+     * The timed FUSE operations.
+     */
+    public enum Op {
+        GETATTR, READDIR, CREATE, MKDIR, OPEN, READ, WRITE, TRUNCATE, RENAME, UNLINK, RMDIR,
+        FLUSH, FSYNC, RELEASE
+    }
+
+    private final boolean                  enabled;
+    private final LatencyStats[]           ops;
+    private final LatencyStats             storageReads;
+    private final LatencyStats             storageUpdates;
+    private final LatencyStats             commits;
+    private final LatencyStats             refreshes;
+    private final LongAdder                bytesRead       = new LongAdder();
+    private final LongAdder                bytesWritten    = new LongAdder();
+    private final LongAdder                mapBytesRead    = new LongAdder();
+    private final LongAdder                mapBytesWritten = new LongAdder();
+    private volatile int                   namespaceSize;
+
+    private final List<ObjectName>         registered      = new ArrayList<>();
+    // null if metrics are not dumped periodically
+    private final ScheduledExecutorService dumpScheduler;
+    private final String                   csvFile;
+
+    // distinguishes the MBeans of the mounts of a same JVM
+    private static final AtomicInteger     mounts          = new AtomicInteger();
+
+    static final private String            DOMAIN          = "eu.antidotedb.fs";
+    static final private String            CSV_HEADER      = "time,metric,count,errors,"
+            + "mean_us,p50_us,p90_us,p99_us,p999_us,max_us";
+
+    private static final Logger            log             = LogManager.getLogger();
+
+    public Metrics(FsOptions options) {
+        enabled = options.isMetrics();
+        ops = new LatencyStats[Op.values().length];
+        for (Op op : Op.values())
+            ops[op.ordinal()] = new LatencyStats(op.name().toLowerCase(Locale.ROOT));
+        storageReads = new LatencyStats("storage-read");
+        storageUpdates = new LatencyStats("storage-update");
+        commits = new LatencyStats("storage-commit");
+        refreshes = new LatencyStats("refresh");
+        csvFile = options.getMetricsCsv();
+
+        if (enabled) {
+            String mount = "mount=" + mounts.incrementAndGet();
+            register(DOMAIN + ":type=Metrics," + mount, this);
+            for (LatencyStats stats : ops)
+                register(DOMAIN + ":type=Operation," + mount + ",name=" + stats.getName(),
+                        stats);
+            for (LatencyStats stats : new LatencyStats[] { storageReads, storageUpdates,
+                    commits })
+                register(DOMAIN + ":type=Storage," + mount + ",name=" + stats.getName(), stats);
+            register(DOMAIN + ":type=Namespace," + mount + ",name=refresh", refreshes);
+        }
+        if (enabled && options.getMetricsPeriod() > 0) {
+            dumpScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "metrics-dump");
+                t.setDaemon(true);
+                return t;
+            });
+            dumpScheduler.scheduleAtFixedRate(this::dump, options.getMetricsPeriod(),
+                    options.getMetricsPeriod(), TimeUnit.MILLISECONDS);
+        } else
+            dumpScheduler = null;
+    }
+
+    private void register(String name, Object mbean) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName objectName = new ObjectName(name);
+            server.registerMBean(mbean, objectName);
+            registered.add(objectName);
+        } catch (JMException e) {
+            log.warn("failed to register MBean " + name, e);
+        }
+    }
+
+    /**
+     * Unregisters the MBeans and stops the periodic dumps.
+     */
+    public void close() {
+        if (dumpScheduler != null)
+            dumpScheduler.shutdownNow();
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (ObjectName name : registered) {
+            try {
+                server.unregisterMBean(name);
+            } catch (JMException e) {
+                log.warn("failed to unregister MBean " + name, e);
+            }
+        }
+        registered.clear();
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return the start time of an operation, to be passed to the recording
+     *         methods
+     */
+    public long start() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Records a FUSE operation started at start, failed if result is negative
+     * (an error code).
+     * 
+     * @return result
+     */
+    public int end(Op op, long start, int result) {
+        if (enabled) {
+            LatencyStats stats = ops[op.ordinal()];
+            stats.record(System.nanoTime() - start);
+            if (result < 0)
+                stats.recordError();
+        }
+        return result;
+    }
+
+    /**
+     * Records a read request to the storage, that fetched bytes of registers.
+     */
+    public void storageRead(long start, long bytes) {
+        if (enabled) {
+            storageReads.record(System.nanoTime() - start);
+            bytesRead.add(bytes);
+        }
+    }
+
+    /**
+     * Records an update request to the storage, that assigned bytes of registers.
+     */
+    public void storageUpdate(long start, long bytes) {
+        if (enabled) {
+            storageUpdates.record(System.nanoTime() - start);
+            bytesWritten.add(bytes);
+        }
+    }
+
+    /**
+     * Records a read request to the storage, that fetched maps of bytes
+     * serialized.
+     */
+    public void mapRead(long start, long bytes) {
+        if (enabled) {
+            storageReads.record(System.nanoTime() - start);
+            mapBytesRead.add(bytes);
+        }
+    }
+
+    /**
+     * Records an update request to the storage, that updated map entries of
+     * bytes serialized.
+     */
+    public void mapUpdate(long start, long bytes) {
+        if (enabled) {
+            storageUpdates.record(System.nanoTime() - start);
+            mapBytesWritten.add(bytes);
+        }
+    }
+
+    public void committed(long start) {
+        if (enabled)
+            commits.record(System.nanoTime() - start);
+    }
+
+    public void refreshed(long start, int namespaceSize) {
+        if (enabled) {
+            refreshes.record(System.nanoTime() - start);
+            this.namespaceSize = namespaceSize;
+        }
+    }
+
+    public LatencyStats getStats(Op op) {
+        return ops[op.ordinal()];
+    }
+
+    @Override
+    public long getStorageReads() {
+        return storageReads.getCount();
+    }
+
+    @Override
+    public long getStorageUpdates() {
+        return storageUpdates.getCount();
+    }
+
+    @Override
+    public long getTransactions() {
+        return commits.getCount();
+    }
+
+    @Override
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    @Override
+    public long getMapBytesRead() {
+        return mapBytesRead.sum();
+    }
+
+    @Override
+    public long getMapBytesWritten() {
+        return mapBytesWritten.sum();
+    }
+
+    @Override
+    public long getRefreshes() {
+        return refreshes.getCount();
+    }
+
+    @Override
+    public int getNamespaceSize() {
+        return namespaceSize;
+    }
+
+    /**
+     * Logs the metrics of the operations seen so far, and appends them to the
+     * CSV file if any.
+     */
+    public void dump() {
+        long now = System.currentTimeMillis();
+        List<LatencyStats> all = new ArrayList<>(ops.length + 4);
+        for (LatencyStats stats : ops)
+            all.add(stats);
+        all.add(storageReads);
+        all.add(storageUpdates);
+        all.add(commits);
+        all.add(refreshes);
+
+        PrintWriter csv = null;
+        try {
+            if (csvFile != null) {
+                boolean header = !new File(csvFile).exists();
+                csv = new PrintWriter(new FileWriter(csvFile, true));
+                if (header)
+                    csv.println(CSV_HEADER);
+            }
+            for (LatencyStats stats : all) {
+                if (stats.getCount() == 0)
+                    continue;
+                log.info("{}: {} ops, {} errors, mean {} us, p50 {} us, p99 {} us, max {} us",
+                        stats.getName(), stats.getCount(), stats.getErrors(),
+                        String.format(Locale.ROOT, "%.1f", stats.getMean()), stats.getP50(),
+                        stats.getP99(), stats.getMax());
+                if (csv != null)
+                    csv.println(String.format(Locale.ROOT, "%d,%s,%d,%d,%.1f,%d,%d,%d,%d,%d", now,
+                            stats.getName(), stats.getCount(), stats.getErrors(),
+                            stats.getMean(), stats.getP50(), stats.getP90(), stats.getP99(),
+                            stats.getP999(), stats.getMax()));
+            }
+            log.info("storage: {} bytes read, {} bytes written, {} map bytes read, {} map "
+                    + "bytes written; namespace: {} entries", getBytesRead(), getBytesWritten(),
+                    getMapBytesRead(), getMapBytesWritten(), getNamespaceSize());
+        } catch (IOException e) {
+            log.warn("failed to write the metrics to " + csvFile, e);
+        } finally {
+            if (csv != null)
+                csv.close();
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package eu.antidotedb.fs;
+
+/**
+ * The JMX view of the storage and namespace metrics of a mount (see
+ * {@link Metrics}). The latencies of the individual operations are exposed by
+ * {@link LatencyStatsMBean}s.
+ */
+public interface MetricsMBean {
+
+    long getStorageReads();
+
+    long getStorageUpdates();
+
+    long getTransactions();
+
+    long getBytesRead();
+
+    long getBytesWritten();
+
+    long getMapBytesRead();
+
+    long getMapBytesWritten();
+
+    long getRefreshes();
+
+    int getNamespaceSize();
+}
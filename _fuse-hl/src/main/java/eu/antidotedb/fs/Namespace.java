@@ -0,0 +1,67 @@
+package eu.antidotedb.fs;
+
+import java.util.Collection;
+import java.util.Set;
+
+/**
+ * The binding of paths to inode keys, as seen by a mount. Implementations keep
+ * (part of) it in memory, apply the changes made through them in place, and
+ * merge the ones made by other mounts when refreshed.
+ */
+public interface Namespace {
+
+    /**
+     * @return the inode key bound to path, or null
+     */
+    String getInodeKey(String path);
+
+    /**
+     * @return the names of the children of the directory at path
+     */
+    Collection<String> getChildren(String path);
+
+    /**
+     * Binds path to a new inode and initializes the inode map with inode, in a
+     * single transaction. The parent of path must be an existing directory.
+     * Changes are visible in memory right away, and committed (possibly
+     * together with concurrent ones, see {@link GroupCommit}) before returning.
+     */
+    void create(String path, String inodeKey, MapUpdate inode);
+
+    /**
+     * Moves the inode bound to oldPath, together with its descendants, to
+     * newPath in a single transaction, replacing the binding of newPath if any.
+     */
+    void rename(String inodeKey, String oldPath, String newPath);
+
+    /**
+     * Removes the binding of path.
+     */
+    void remove(String path);
+
+    /**
+     * Merges the changes made by other mounts since the last refresh.
+     *
+     * @return whether any change was merged
+     */
+    boolean refresh();
+
+    /**
+     * Checks which of inodeKeys are bound to some path, against the current
+     * state of the whole namespace in the store rather than what is held in
+     * memory.
+     *
+     * @return the reachable ones
+     */
+    Set<String> getReachable(Collection<String> inodeKeys);
+
+    /**
+     * @return the number of bindings held in memory
+     */
+    int size();
+
+    /**
+     * Commits the pending changes, if any, and releases the resources.
+     */
+    void close();
+}
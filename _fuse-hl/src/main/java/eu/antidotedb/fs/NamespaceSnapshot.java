@@ -0,0 +1,148 @@
+package eu.antidotedb.fs;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.SortedMap;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * A local copy of the paths map, from which a mount starts serving right away
+ * instead of reading the whole map from the store (see {@link PathsNamespace}).
+ * Along with the bindings, it records the position of the change log cursors
+ * they are up to date with, so that the mount catches up by reading only the
+ * changes logged since.
+ * <p>
+ * The file is written to a temporary file first, then moved over the previous
+ * snapshot. It is read through a memory mapping. It is made of big-endian
+ * fields, strings being an int length followed by UTF-8 bytes:
+ * <ul>
+ * <li>the magic number and the format version</li>
+ * <li>the number of cursors, then each mount id and sequence number</li>
+ * <li>the number of bindings, then each of them in path order: the number of
+ * leading chars shared with the previous path, the rest of the path, the
+ * inode key</li>
+ * </ul>
+ */
+public class NamespaceSnapshot {
+
+    private final PathIndex         pathIndex;
+    private final Map<String, Long> cursors;
+
+    static final private int        MAGIC   = 0x4146534e; // "AFSN"
+    static final private int        VERSION = 1;
+
+    private static final Logger     log     = LogManager.getLogger();
+
+    private NamespaceSnapshot(PathIndex pathIndex, Map<String, Long> cursors) {
+        this.pathIndex = pathIndex;
+        this.cursors = cursors;
+    }
+
+    public PathIndex getPathIndex() {
+        return pathIndex;
+    }
+
+    /**
+     * @return the change log cursors the bindings are up to date with
+     */
+    public Map<String, Long> getCursors() {
+        return Collections.unmodifiableMap(cursors);
+    }
+
+    /**
+     * @return the snapshot in file, or null if there is none or it cannot be
+     *         read
+     */
+    public static NamespaceSnapshot load(File file) {
+        if (!file.exists())
+            return null;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    channel.size());
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                log.warn("ignoring namespace snapshot {}: unknown format", file);
+                return null;
+            }
+            HashMap<String, Long> cursors = new HashMap<>();
+            for (int n = buffer.getInt(); n > 0; n--)
+                cursors.put(getString(buffer), buffer.getLong());
+            HashMap<String, String> bindings = new HashMap<>();
+            String path = "";
+            for (int n = buffer.getInt(); n > 0; n--) {
+                path = path.substring(0, buffer.getInt()) + getString(buffer);
+                bindings.put(path, getString(buffer));
+            }
+            return new NamespaceSnapshot(new PathIndex(bindings), cursors);
+        } catch (IOException | BufferUnderflowException | IndexOutOfBoundsException
+                | NegativeArraySizeException e) {
+            log.warn("ignoring namespace snapshot " + file, e);
+            return null;
+        }
+    }
+
+    /**
+     * Replaces the snapshot in file with bindings (path to inode key), up to
+     * date with the change log cursors.
+     */
+    public static void save(File file, SortedMap<String, String> bindings,
+            Map<String, Long> cursors) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(cursors.size());
+            for (Entry<String, Long> cursor : cursors.entrySet()) {
+                putString(out, cursor.getKey());
+                out.writeLong(cursor.getValue());
+            }
+            out.writeInt(bindings.size());
+            String previous = "";
+            for (Entry<String, String> binding : bindings.entrySet()) {
+                String path = binding.getKey();
+                int shared = 0;
+                int max = Math.min(path.length(), previous.length());
+                while (shared < max && path.charAt(shared) == previous.charAt(shared))
+                    shared++;
+                // do not split surrogate pairs
+                if (shared > 0 && Character.isHighSurrogate(path.charAt(shared - 1)))
+                    shared--;
+                out.writeInt(shared);
+                putString(out, path.substring(shared));
+                putString(out, binding.getValue());
+                previous = path;
+            }
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static String getString(MappedByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    private static void putString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+}
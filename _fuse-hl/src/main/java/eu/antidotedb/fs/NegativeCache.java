@@ -0,0 +1,129 @@
+package eu.antidotedb.fs;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * An LRU cache of the paths known not to exist, bounded in number of entries,
+ * so that repeated lookups of missing paths (e.g. include or module search
+ * paths) skip the namespace. Entries are valid for a fixed time (TTL), and are
+ * invalidated by local changes creating paths and by refreshes merging remote
+ * changes.
+ * <p>
+ * A miss is only cached if no invalidation happened since the lookup started
+ * (see {@link #getGeneration()}), so that a lookup racing with a creation
+ * cannot cache a stale miss.
+ */
+public class NegativeCache {
+
+    private final int                         capacity;
+    private final long                        ttlNanos;
+    // path to the time it was found missing, in access order
+    private final LinkedHashMap<String, Long> entries;
+    // incremented by each invalidation, written under this
+    private volatile long                     generation;
+
+    private final LongAdder                   hits   = new LongAdder();
+    private final LongAdder                   misses = new LongAdder();
+
+    /**
+     * @param capacity
+     *            max number of cached paths, 0 disables the cache
+     * @param ttl
+     *            validity of the entries (ms)
+     */
+    public NegativeCache(int capacity, long ttl) {
+        this.capacity = capacity;
+        ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttl);
+        entries = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                return size() > NegativeCache.this.capacity;
+            }
+        };
+    }
+
+    /**
+     * @return whether path is known not to exist
+     */
+    synchronized public boolean isMissing(String path) {
+        Long time = entries.get(path);
+        if (time == null || System.nanoTime() - time > ttlNanos) {
+            misses.increment();
+            return false;
+        }
+        hits.increment();
+        return true;
+    }
+
+    /**
+     * @return the generation to pass to {@link #putMissing(String, long)}, read
+     *         before looking path up
+     */
+    public long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Records that path was found missing by a lookup started at generation.
+     */
+    synchronized public void putMissing(String path, long generation) {
+        if (capacity > 0 && ttlNanos > 0 && generation == this.generation)
+            entries.put(path, System.nanoTime());
+    }
+
+    /**
+     * Invalidates path, once it is bound in the namespace.
+     */
+    synchronized public void invalidate(String path) {
+        generation++;
+        entries.remove(path);
+    }
+
+    /**
+     * Invalidates path and the paths below it, e.g. once a directory is moved
+     * there.
+     */
+    synchronized public void invalidateTree(String path) {
+        generation++;
+        entries.remove(path);
+        String prefix = FsModel.childPath(path, "");
+        Iterator<String> it = entries.keySet().iterator();
+        while (it.hasNext())
+            if (it.next().startsWith(prefix))
+                it.remove();
+    }
+
+    synchronized public void invalidateAll() {
+        generation++;
+        entries.clear();
+    }
+
+    /**
+     * Drops the expired entries.
+     */
+    synchronized public void expire() {
+        long now = System.nanoTime();
+        Iterator<Long> it = entries.values().iterator();
+        while (it.hasNext())
+            if (now - it.next() > ttlNanos)
+                it.remove();
+    }
+
+    synchronized public int size() {
+        return entries.size();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+}
@@ -0,0 +1,89 @@
+package eu.antidotedb.fs;
+
+/**
+ * A change to the paths map: the binding of a path to an inode key, its
+ * removal, or the move of a path and of all its descendants to another path,
+ * which {@link PathIndex} expands into the bindings and removals of the
+ * subtree.
+ */
+public class PathChange {
+
+    private final String path;
+    // null for removals
+    private final String inodeKey;
+    // the path moved, null but for moves
+    private final String fromPath;
+
+    private PathChange(String path, String inodeKey) {
+        this(path, inodeKey, null);
+    }
+
+    private PathChange(String path, String inodeKey, String fromPath) {
+        this.path = path;
+        this.inodeKey = inodeKey;
+        this.fromPath = fromPath;
+    }
+
+    public static PathChange bind(String path, String inodeKey) {
+        return new PathChange(path, inodeKey);
+    }
+
+    public static PathChange remove(String path) {
+        return new PathChange(path, null);
+    }
+
+    /**
+     * @return the move of the subtree at fromPath, whose root is inodeKey, to
+     *         path
+     */
+    public static PathChange move(String fromPath, String path, String inodeKey) {
+        return new PathChange(path, inodeKey, fromPath);
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public String getInodeKey() {
+        return inodeKey;
+    }
+
+    public boolean isRemoval() {
+        return inodeKey == null;
+    }
+
+    public boolean isMove() {
+        return fromPath != null;
+    }
+
+    public String getFromPath() {
+        return fromPath;
+    }
+
+    // --------------- Encoding as a log record
+
+    static final private char BIND   = '+';
+    static final private char REMOVE = '-';
+    // followed by the inode key, the length of the path moved, the path moved
+    // and the new path
+    static final private char MOVE   = '>';
+
+    String encode() {
+        if (isMove())
+            return MOVE + inodeKey + " " + fromPath.length() + " " + fromPath + path;
+        return isRemoval() ? REMOVE + path : BIND + inodeKey + " " + path;
+    }
+
+    static PathChange decode(String record) {
+        if (record.charAt(0) == REMOVE)
+            return new PathChange(record.substring(1), null);
+        int sep = record.indexOf(' ');
+        if (record.charAt(0) == MOVE) {
+            int lenSep = record.indexOf(' ', sep + 1);
+            int end = lenSep + 1 + Integer.parseInt(record.substring(sep + 1, lenSep));
+            return new PathChange(record.substring(end), record.substring(1, sep),
+                    record.substring(lenSep + 1, end));
+        }
+        return new PathChange(record.substring(sep + 1), record.substring(1, sep));
+    }
+}
@@ -0,0 +1,227 @@
+package eu.antidotedb.fs;
+
+import static java.io.File.separator;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+/**
+ * An in-memory index of the paths map: the inode key bound to each path, and
+ * the names of the children of each path. It is built whenever the whole paths
+ * map is read, then kept up to date by applying the changes logged since, so
+ * that lookups and listings take time proportional to the directory or subtree
+ * they involve, not to the size of the file system.
+ * <p>
+ * An index is immutable once built: applying changes returns a new index, so
+ * that readers see either none or all of them. The new index only holds the
+ * bindings and children sets changed, on top of the index they were applied
+ * to; layers are merged as they grow, so that their number stays logarithmic
+ * in the number of changes and the copies made amortize.
+ */
+public class PathIndex {
+
+    // a null inode key masks the binding of the path in the layers below
+    private final HashMap<String, String>      inodeKeys;
+    private final HashMap<String, Set<String>> children;
+    // null for the bottom layer
+    private final PathIndex                    below;
+    private int                                size;
+
+    private PathIndex(PathIndex below) {
+        inodeKeys = new HashMap<>();
+        children = new HashMap<>();
+        this.below = below;
+        size = below == null ? 0 : below.size;
+    }
+
+    private PathIndex(HashMap<String, String> inodeKeys, HashMap<String, Set<String>> children,
+            PathIndex below, int size) {
+        this.inodeKeys = inodeKeys;
+        this.children = children;
+        this.below = below;
+        this.size = size;
+    }
+
+    public PathIndex(Map<String, String> bindings) {
+        this((PathIndex) null);
+        for (Entry<String, String> binding : bindings.entrySet())
+            put(binding.getKey(), binding.getValue());
+    }
+
+    public PathIndex(StoredMap pathsMap) {
+        this((PathIndex) null);
+        for (String path : pathsMap.keySet())
+            put(path, pathsMap.getString(path));
+    }
+
+    /**
+     * @param expanded
+     *            if not null, receives the bindings and removals changes made
+     *            (see {@link #expand(PathChange)}), in order
+     * @return the index with changes applied, in order, to this one
+     */
+    public PathIndex apply(List<PathChange> changes, List<PathChange> expanded) {
+        PathIndex index = new PathIndex(this);
+        for (PathChange logged : changes)
+            for (PathChange change : index.expand(logged)) {
+                if (change.isRemoval())
+                    index.remove(change.getPath());
+                else
+                    index.put(change.getPath(), change.getInodeKey());
+                if (expanded != null)
+                    expanded.add(change);
+            }
+        return index.compact();
+    }
+
+    /**
+     * @return the bindings and removals a change makes to the paths map: the
+     *         binding of the new paths of the subtree moved, then the removal
+     *         of its old paths for a move, the change itself otherwise
+     */
+    public List<PathChange> expand(PathChange change) {
+        if (!change.isMove())
+            return Collections.singletonList(change);
+        Map<String, String> descendants = getDescendants(change.getFromPath());
+        List<PathChange> changes = new ArrayList<>(2 * descendants.size() + 2);
+        changes.add(PathChange.bind(change.getPath(), change.getInodeKey()));
+        for (Entry<String, String> entry : descendants.entrySet())
+            changes.add(PathChange.bind(FsModel.childPath(change.getPath(), entry.getKey()),
+                    entry.getValue()));
+        changes.add(PathChange.remove(change.getFromPath()));
+        for (String relPath : descendants.keySet())
+            changes.add(PathChange.remove(FsModel.childPath(change.getFromPath(), relPath)));
+        return changes;
+    }
+
+    // only called while the index is being built
+    private void put(String path, String inodeKey) {
+        String previous = getInodeKey(path);
+        inodeKeys.put(path, inodeKey);
+        if (previous == null) {
+            size++;
+            if (!path.equals(separator))
+                getOwnChildren(FsModel.getParentPath(path)).add(FsModel.getNameFromPath(path));
+        }
+    }
+
+    // only called while the index is being built
+    private void remove(String path) {
+        if (getInodeKey(path) == null)
+            return;
+        if (below == null)
+            inodeKeys.remove(path);
+        else
+            inodeKeys.put(path, null);
+        size--;
+        if (!path.equals(separator))
+            getOwnChildren(FsModel.getParentPath(path)).remove(FsModel.getNameFromPath(path));
+    }
+
+    private Set<String> getOwnChildren(String path) {
+        Set<String> names = children.get(path);
+        if (names == null) {
+            names = below == null ? new HashSet<>() : new HashSet<>(below.getChildren(path));
+            children.put(path, names);
+        }
+        return names;
+    }
+
+    // merges this layer into the ones below as long as it is at least as large
+    private PathIndex compact() {
+        PathIndex index = this;
+        while (index.below != null && index.weight() >= index.below.weight()) {
+            PathIndex lower = index.below;
+            HashMap<String, String> inodeKeys = new HashMap<>(lower.inodeKeys);
+            HashMap<String, Set<String>> children = new HashMap<>(lower.children);
+            for (Entry<String, String> binding : index.inodeKeys.entrySet())
+                if (binding.getValue() == null && lower.below == null)
+                    inodeKeys.remove(binding.getKey());
+                else
+                    inodeKeys.put(binding.getKey(), binding.getValue());
+            for (Entry<String, Set<String>> names : index.children.entrySet())
+                if (names.getValue().isEmpty() && lower.below == null)
+                    children.remove(names.getKey());
+                else
+                    children.put(names.getKey(), names.getValue());
+            index = new PathIndex(inodeKeys, children, lower.below, index.size);
+        }
+        return index;
+    }
+
+    private int weight() {
+        return inodeKeys.size() + children.size();
+    }
+
+    /**
+     * @return the inode key bound to path, or null
+     */
+    public String getInodeKey(String path) {
+        for (PathIndex index = this; index != null; index = index.below)
+            if (index.inodeKeys.containsKey(path))
+                return index.inodeKeys.get(path);
+        return null;
+    }
+
+    /**
+     * @return the names of the children of path
+     */
+    public Set<String> getChildren(String path) {
+        for (PathIndex index = this; index != null; index = index.below) {
+            Set<String> names = index.children.get(path);
+            if (names != null)
+                return Collections.unmodifiableSet(names);
+        }
+        return Collections.emptySet();
+    }
+
+    /**
+     * @return the descendants of path, as paths relative to it, with their inode
+     *         keys
+     */
+    public Map<String, String> getDescendants(String path) {
+        HashMap<String, String> descendants = new HashMap<>();
+        ArrayDeque<String> toVisit = new ArrayDeque<>();
+        toVisit.add("");
+        while (!toVisit.isEmpty()) {
+            String relPath = toVisit.poll();
+            String absPath = relPath.isEmpty() ? path : FsModel.childPath(path, relPath);
+            for (String name : getChildren(absPath)) {
+                String childRelPath = relPath.isEmpty() ? name : relPath + separator + name;
+                descendants.put(childRelPath, getInodeKey(FsModel.childPath(path,
+                        childRelPath)));
+                toVisit.add(childRelPath);
+            }
+        }
+        return descendants;
+    }
+
+    /**
+     * @return the inode key bound to each path
+     */
+    public Map<String, String> getBindings() {
+        if (below == null)
+            return Collections.unmodifiableMap(inodeKeys);
+        HashMap<String, String> bindings = new HashMap<>(below.getBindings());
+        for (Entry<String, String> binding : inodeKeys.entrySet())
+            if (binding.getValue() == null)
+                bindings.remove(binding.getKey());
+            else
+                bindings.put(binding.getKey(), binding.getValue());
+        return Collections.unmodifiableMap(bindings);
+    }
+
+    /**
+     * @return the number of paths in the index
+     */
+    public int size() {
+        return size;
+    }
+}
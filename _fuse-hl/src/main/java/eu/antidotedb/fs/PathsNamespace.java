@@ -0,0 +1,289 @@
+package eu.antidotedb.fs;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * The single-map layout: all path to inode key bindings are entries of the
+ * paths map. Each mount holds the whole map in a {@link PathIndex}, kept up to
+ * date through the {@link ChangeLog}.
+ * <p>
+ * With a snapshot file, the index is saved after each full read of the paths
+ * map and at unmount. The next mount starts from the snapshot instead of
+ * reading the paths map, and catches up with the changes logged since at its
+ * first refresh.
+ */
+public class PathsNamespace implements Namespace {
+
+    private final StorageBackend        backend;
+    private final ChangeLog             changeLog;
+    private final GroupCommit           groupCommit;
+    private final long                  fullRefreshPeriod;
+    private volatile PathIndex          pathIndex;
+    private long                        lastFullRefresh;
+    // null if no snapshot is kept
+    private final File                  snapshotFile;
+    private final ExecutorService       snapshotWriter;
+    // the changes applied to the index and not committed yet, by identity
+    private final Set<List<PathChange>> uncommitted = Collections
+            .newSetFromMap(new IdentityHashMap<>());
+    // serializes the refreshes, which only lock this to update the index
+    private final Object                refreshLock = new Object();
+
+    static final String                 PATHS_MAP   = "PATHS";
+
+    private static final Logger         log         = LogManager.getLogger();
+
+    public PathsNamespace(StorageBackend backend, FsOptions options) {
+        this.backend = backend;
+        changeLog = new ChangeLog(backend, options);
+        groupCommit = new GroupCommit(backend, changeLog::commit, options);
+        fullRefreshPeriod = TimeUnit.MILLISECONDS.toNanos(options.getFullRefreshPeriod());
+        if (options.getSnapshot() != null) {
+            snapshotFile = new File(options.getSnapshot());
+            snapshotWriter = Executors.newSingleThreadExecutor();
+        } else {
+            snapshotFile = null;
+            snapshotWriter = null;
+        }
+        NamespaceSnapshot snapshot = snapshotFile != null ? NamespaceSnapshot.load(snapshotFile)
+                : null;
+        if (snapshot != null) {
+            pathIndex = snapshot.getPathIndex();
+            changeLog.setCursors(snapshot.getCursors());
+            lastFullRefresh = System.nanoTime();
+            log.info("namespace of {} paths loaded from {}", pathIndex.size(), snapshotFile);
+        } else
+            refresh();
+    }
+
+    @Override
+    public String getInodeKey(String path) {
+        return pathIndex.getInodeKey(path);
+    }
+
+    @Override
+    public Collection<String> getChildren(String path) {
+        return pathIndex.getChildren(path);
+    }
+
+    @Override
+    public void create(String path, String inodeKey, MapUpdate inode) {
+        commit(Collections.singletonList(PathChange.bind(path, inodeKey)),
+                tx -> tx.updateMap(inodeKey, inode));
+    }
+
+    @Override
+    public void rename(String inodeKey, String oldPath, String newPath) {
+        if (FsModel.isDirectoryKey(inodeKey)) { // move a dir
+            // logged as a single change, whatever the size of the subtree
+            commit(Collections.singletonList(PathChange.move(oldPath, newPath, inodeKey)), null);
+        } else { // move a file
+            commit(Arrays.asList(PathChange.bind(newPath, inodeKey), PathChange.remove(oldPath)),
+                    null);
+        }
+    }
+
+    @Override
+    public void remove(String path) {
+        commit(Collections.singletonList(PathChange.remove(path)), null);
+    }
+
+    /**
+     * Brings the path index up to date by applying the changes logged since the
+     * last refresh. The whole paths map is read instead at startup, when some
+     * changes are no longer in the log, and periodically to converge with the
+     * paths map in case of concurrent conflicting changes. The reads from the
+     * store do not hold the lock of the index.
+     *
+     * @return whether changes made by other mounts were applied
+     */
+    @Override
+    public boolean refresh() {
+        synchronized (refreshLock) {
+            boolean incremental;
+            synchronized (this) {
+                incremental = pathIndex != null
+                        && System.nanoTime() - lastFullRefresh < fullRefreshPeriod;
+            }
+            if (incremental) {
+                List<PathChange> changes = changeLog.poll();
+                if (changes != null) {
+                    if (!changes.isEmpty())
+                        publish(changes, null);
+                    return !changes.isEmpty();
+                }
+            }
+
+            // the paths map must include this mount's changes: the ones being
+            // committed meanwhile are applied again to what is read
+            groupCommit.awaitPending();
+            List<List<PathChange>> pending;
+            synchronized (this) {
+                pending = new ArrayList<>(uncommitted);
+            }
+            changeLog.resetCursors();
+            // the paths map read next includes at least the changes before the cursors
+            Map<String, Long> cursors = changeLog.getCursors();
+            StoredMap paths = backend.noTransaction().readMap(PATHS_MAP);
+            PathIndex index = new PathIndex(paths);
+            synchronized (this) {
+                pending.addAll(uncommitted);
+                List<PathChange> reapplied = new ArrayList<>();
+                for (List<PathChange> changes : pending)
+                    reapplied.addAll(changes);
+                pathIndex = index.apply(reapplied, null);
+                lastFullRefresh = System.nanoTime();
+            }
+            if (snapshotFile != null)
+                snapshotWriter.execute(() -> {
+                    TreeMap<String, String> bindings = new TreeMap<>();
+                    for (String path : paths.keySet())
+                        bindings.put(path, paths.getString(path));
+                    saveSnapshot(bindings, cursors);
+                });
+            return true;
+        }
+    }
+
+    @Override
+    public Set<String> getReachable(Collection<String> inodeKeys) {
+        StoredMap paths = backend.noTransaction().readMap(PATHS_MAP);
+        HashSet<String> reachable = new HashSet<>();
+        for (String path : paths.keySet())
+            reachable.add(paths.getString(path));
+        reachable.retainAll(inodeKeys);
+        return reachable;
+    }
+
+    @Override
+    public int size() {
+        return pathIndex.size();
+    }
+
+    @Override
+    public void close() {
+        groupCommit.close();
+        if (snapshotFile != null) {
+            TreeMap<String, String> bindings;
+            Map<String, Long> cursors;
+            synchronized (this) {
+                bindings = new TreeMap<>(pathIndex.getBindings());
+                cursors = changeLog.getCursors();
+            }
+            snapshotWriter.execute(() -> saveSnapshot(bindings, cursors));
+            snapshotWriter.shutdown();
+            try {
+                snapshotWriter.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void saveSnapshot(SortedMap<String, String> bindings, Map<String, Long> cursors) {
+        try {
+            NamespaceSnapshot.save(snapshotFile, bindings, cursors);
+        } catch (IOException e) {
+            log.warn("failed to save the namespace snapshot to " + snapshotFile, e);
+        }
+    }
+
+    /**
+     * Applies changes to the path index, then commits them to the paths map,
+     * together with their log and updates (if not null). The moves of
+     * directories are expanded against the index into the changes of their
+     * subtrees for the paths map, and logged as is. The index is not
+     * refreshed from the store: changes made by other mounts are merged by the
+     * periodic refresh only.
+     * <p>
+     * Only the publication of the new index holds the lock, so that the
+     * commits of concurrent changes overlap; the changes to a same path are then committed
+     * in any order, and the periodic full refresh converges to the order of
+     * the store. If the commit fails, the changes still bound as applied are
+     * rolled back, and the index is read again at the next refresh.
+     */
+    private void commit(List<PathChange> changes, Consumer<BackendTransaction> updates) {
+        List<PathChange> expanded = new ArrayList<>(changes.size());
+        PathIndex previous = publish(changes, expanded);
+        try {
+            GroupCommit.await(groupCommit.submit(changes, tx -> {
+                MapUpdate paths = new MapUpdate();
+                for (PathChange change : expanded) {
+                    if (change.isRemoval())
+                        paths.removeRegister(change.getPath());
+                    else
+                        paths.assign(change.getPath(), change.getInodeKey());
+                }
+                tx.updateMap(PATHS_MAP, paths);
+                if (updates != null)
+                    updates.accept(tx);
+            }));
+        } catch (RuntimeException e) {
+            synchronized (this) {
+                uncommitted.remove(changes);
+                List<PathChange> undo = new ArrayList<>(expanded.size());
+                for (int i = expanded.size() - 1; i >= 0; i--) {
+                    String path = expanded.get(i).getPath();
+                    if (Objects.equals(pathIndex.getInodeKey(path),
+                            expanded.get(i).getInodeKey())) {
+                        String inodeKey = previous.getInodeKey(path);
+                        undo.add(inodeKey == null ? PathChange.remove(path)
+                                : PathChange.bind(path, inodeKey));
+                    }
+                }
+                pathIndex = pathIndex.apply(undo, null);
+                lastFullRefresh = System.nanoTime() - fullRefreshPeriod;
+            }
+            throw e;
+        }
+        synchronized (this) {
+            uncommitted.remove(changes);
+        }
+    }
+
+    /**
+     * Applies changes to the path index, outside the lock: the new index is
+     * built from the current one, then published with a single write if no
+     * other change was published meanwhile, so that readers see either none
+     * or all of the changes. The changes of local commits (expanded not null)
+     * are then uncommitted until their commit completes.
+     *
+     * @return the index the changes were applied to
+     */
+    private PathIndex publish(List<PathChange> changes, List<PathChange> expanded) {
+        while (true) {
+            PathIndex current = pathIndex;
+            if (expanded != null)
+                expanded.clear();
+            PathIndex index = current.apply(changes, expanded);
+            synchronized (this) {
+                if (pathIndex == current) {
+                    pathIndex = index;
+                    if (expanded != null)
+                        uncommitted.add(changes);
+                    return current;
+                }
+            }
+        }
+    }
+}
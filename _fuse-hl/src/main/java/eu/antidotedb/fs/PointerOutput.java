@@ -0,0 +1,79 @@
+package eu.antidotedb.fs;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+
+import com.google.protobuf.ByteOutput;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+
+import jnr.ffi.Pointer;
+
+/**
+ * Moves the content of ByteStrings straight into native memory, such as the
+ * buffers FUSE hands to read: the bytes are copied from the arrays or direct
+ * buffers backing the ByteStrings, without intermediate copies.
+ */
+public class PointerOutput extends ByteOutput {
+
+    private final Pointer pointer;
+    private long          position;
+
+    private PointerOutput(Pointer pointer, long position) {
+        this.pointer = pointer;
+        this.position = position;
+    }
+
+    /**
+     * Copies bytes into dst, starting at dstOffset.
+     */
+    public static void copy(ByteString bytes, Pointer dst, long dstOffset) {
+        try {
+            UnsafeByteOperations.unsafeWriteTo(bytes, new PointerOutput(dst, dstOffset));
+        } catch (IOException e) { // never thrown when writing to memory
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void write(byte value) {
+        pointer.putByte(position++, value);
+    }
+
+    @Override
+    public void write(byte[] value, int offset, int length) {
+        pointer.put(position, value, offset, length);
+        position += length;
+    }
+
+    @Override
+    public void writeLazy(byte[] value, int offset, int length) {
+        write(value, offset, length);
+    }
+
+    @Override
+    public void write(ByteBuffer value) {
+        int length = value.remaining();
+        if (value.hasArray()) {
+            pointer.put(position, value.array(), value.arrayOffset() + value.position(), length);
+        } else if (value.isDirect()) {
+            pointer.transferFrom(position, Pointer.wrap(pointer.getRuntime(), value.slice()), 0,
+                    length);
+        } else { // read-only heap buffer, its array cannot be accessed
+            byte[] chunk = new byte[Math.min(length, 8192)];
+            ByteBuffer src = value.duplicate();
+            for (int done = 0; done < length; done += chunk.length) {
+                int n = Math.min(chunk.length, length - done);
+                src.get(chunk, 0, n);
+                pointer.put(position + done, chunk, 0, n);
+            }
+        }
+        position += length;
+    }
+
+    @Override
+    public void writeLazy(ByteBuffer value) {
+        write(value);
+    }
+}
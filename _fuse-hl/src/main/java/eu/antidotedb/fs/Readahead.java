@@ -0,0 +1,107 @@
+package eu.antidotedb.fs;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * The access pattern of an open file, detecting sequential streams to prefetch
+ * their content ahead of the reader.
+ * <p>
+ * A read starting where the previous one ended is sequential. From the second
+ * sequential read on, the range following the reader is prefetched, in a
+ * window which starts small and doubles at each prefetch, up to a max size;
+ * the next prefetch is issued once the reader is less than half a window away
+ * from the end of what has been prefetched. A non-sequential read resets the
+ * window and cancels the prefetches in flight, as does the release of the file.
+ */
+public class Readahead {
+
+    /**
+     * Fetches a range of a file asynchronously into the cache, without
+     * blocking the caller.
+     */
+    public interface Prefetcher {
+        CompletableFuture<Void> prefetch(long from, long to);
+    }
+
+    static final private long                   MIN_WINDOW = 256 * 1024;
+
+    private final long                          maxWindow;
+    // offset the next sequential read starts at, -1 if none yet
+    private long                                nextOffset = -1;
+    private int                                 sequentialReads;
+    // current size of the window, 0 until a stream is detected
+    private long                                window;
+    // end of the range prefetched so far
+    private long                                prefetched;
+    private final List<CompletableFuture<Void>> inFlight   = new ArrayList<>(4);
+    // number of calls to cancel, to cancel the prefetches issued meanwhile
+    private long                                cancels;
+
+    /**
+     * @param maxWindow
+     *            max size of the range prefetched ahead of the reader (bytes)
+     */
+    public Readahead(long maxWindow) {
+        this.maxWindow = maxWindow;
+    }
+
+    /**
+     * Records a read of length bytes at offset, and prefetches what follows
+     * with prefetcher if the file is read sequentially. Only the update of the
+     * window holds the lock, not the prefetch.
+     */
+    public void onRead(long offset, long length, long fileSize, Prefetcher prefetcher) {
+        long from, to, cancelled;
+        synchronized (this) {
+            if (offset == nextOffset) {
+                sequentialReads++;
+            } else {
+                cancel();
+                sequentialReads = 0;
+            }
+            long end = offset + length;
+            nextOffset = end;
+            if (sequentialReads == 0 || prefetched - end > window / 2)
+                return;
+
+            window = window == 0 ? Math.min(MIN_WINDOW, maxWindow)
+                    : Math.min(2 * window, maxWindow);
+            from = Math.max(prefetched, end);
+            to = Math.min(fileSize, end + window);
+            if (from >= to)
+                return;
+            prefetched = to;
+            cancelled = cancels;
+        }
+        CompletableFuture<Void> prefetch = prefetcher.prefetch(from, to);
+        synchronized (this) {
+            if (cancels != cancelled) {
+                prefetch.cancel(false);
+                return;
+            }
+            inFlight.removeIf(CompletableFuture::isDone);
+            inFlight.add(prefetch);
+        }
+    }
+
+    /**
+     * Cancels the prefetches in flight: what they fetch is not cached.
+     */
+    synchronized public void cancel() {
+        for (CompletableFuture<Void> prefetch : inFlight)
+            prefetch.cancel(false);
+        inFlight.clear();
+        cancels++;
+        window = 0;
+        prefetched = 0;
+    }
+
+    /**
+     * @return the current size of the window, 0 if not reading sequentially
+     */
+    synchronized public long getWindow() {
+        return window;
+    }
+}
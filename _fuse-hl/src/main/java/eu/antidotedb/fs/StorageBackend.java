@@ -0,0 +1,64 @@
+package eu.antidotedb.fs;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import com.google.protobuf.ByteString;
+
+/**
+ * The storage FsModel persists its data to. It mirrors the subset of the
+ * Antidote data model used by the file system: add-wins maps (map_aw) holding
+ * registers and integers, and standalone registers.
+ * <p>
+ * As with the Antidote client, operations are issued through a transaction,
+ * either an interactive one (see {@link #startTransaction()}) or a
+ * pseudo-transaction where every read and update is executed on its own (see
+ * {@link #noTransaction()}). Requests are spread over a pool of connections
+ * (see {@link ConnectionPool}), so that requests of different threads can be in
+ * flight at once.
+ */
+public interface StorageBackend extends AutoCloseable {
+
+    /**
+     * @return a transaction where every operation is executed and committed
+     *         independently; its commit and close are no-ops, and it holds no
+     *         state, so that it may be shared by threads
+     */
+    BackendTransaction noTransaction();
+
+    /**
+     * @return a new interactive transaction: its updates are applied atomically
+     *         when it is committed, and discarded if it is closed before
+     */
+    BackendTransaction startTransaction();
+
+    /**
+     * Reads registers outside of any transaction, without blocking the caller:
+     * independent requests issued this way are in flight at once, up to the
+     * number of connections.
+     */
+    CompletableFuture<List<ByteString>> readRegistersAsync(List<String> keys);
+
+    /**
+     * Reads maps outside of any transaction, without blocking the caller (see
+     * {@link #readRegistersAsync(List)}).
+     */
+    CompletableFuture<List<StoredMap>> readMapsAsync(List<String> keys);
+
+    /**
+     * @return the number of requests waiting for a connection
+     */
+    int getQueueDepth();
+
+    /**
+     * @return the number of requests in flight
+     */
+    int getInFlight();
+
+    /**
+     * Releases the connections and threads of the backend, which must not be
+     * used afterwards.
+     */
+    @Override
+    void close();
+}
@@ -0,0 +1,39 @@
+package eu.antidotedb.fs;
+
+import java.util.Set;
+
+import com.google.protobuf.ByteString;
+
+/**
+ * The content of a map_aw read from a {@link StorageBackend}.
+ */
+public interface StoredMap {
+
+    /**
+     * @return the register at key, or null if not in the map
+     */
+    ByteString getRegister(String key);
+
+    /**
+     * @return the register at key decoded as an UTF-8 string, or null if not in
+     *         the map
+     */
+    String getString(String key);
+
+    /**
+     * @return the integer at key, or defaultValue if not in the map
+     */
+    long getInteger(String key, long defaultValue);
+
+    boolean containsKey(String key);
+
+    Set<String> keySet();
+
+    int size();
+
+    /**
+     * @return the size of the entries as transferred: the tag-less protobuf
+     *         sizes of their keys and values
+     */
+    long getSerializedSize();
+}
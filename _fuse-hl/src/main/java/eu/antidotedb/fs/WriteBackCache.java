@@ -0,0 +1,351 @@
+package eu.antidotedb.fs;
+
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import eu.antidotedb.fs.HandleTable.OpenFile;
+import jnr.ffi.Pointer;
+
+/**
+ * Buffers the writes to open files in memory, so that the many FUSE write
+ * calls a single write(2) is split into reach Antidote as a single update.
+ * <p>
+ * The dirty ranges of a file are flushed with one FsModel.writeExtents
+ * transaction when explicitly asked to (flush, fsync, release), when the file
+ * has more than a given amount of dirty bytes, when its oldest dirty range
+ * exceeds a given age, or when the dirty bytes of all files exceed a global
+ * bound (in which case the oldest files are flushed first). Reads are served
+ * from the dirty ranges they overlap, without flushing them.
+ */
+public class WriteBackCache implements Runnable {
+
+    private final FsModel                               fs;
+    private final long                                  fileMax;
+    private final long                                  totalMax;
+    private final long                                  maxAgeNanos;
+
+    private final ConcurrentHashMap<String, DirtyFile> files      = new ConcurrentHashMap<>();
+    private final AtomicLong                            totalDirty = new AtomicLong();
+    private final ScheduledExecutorService              flushScheduler;
+
+    private static final Logger                         log        = LogManager.getLogger();
+
+    /**
+     * The buffered writes of a file, shared by its open files, which keep a
+     * reference to it until it is detached.
+     */
+    static class DirtyFile {
+        // non-overlapping dirty ranges: offset to bytes
+        TreeMap<Long, byte[]> extents     = new TreeMap<>();
+        // the ranges being written by a flush, read until it commits; null if
+        // none
+        TreeMap<Long, byte[]> flushing;
+        long                  dirtyBytes;
+        long                  dirtySince;
+        // end of the furthest range written since this file became dirty
+        long                  end;
+        // set once flushed and no longer in the files map
+        boolean               detached;
+        // serializes the flushes of the file
+        final Object          flushLock   = new Object();
+    }
+
+    public WriteBackCache(FsModel fs, FsOptions options) {
+        this.fs = fs;
+        fileMax = options.getWriteBackFileMax();
+        totalMax = options.getWriteBackTotalMax();
+        maxAgeNanos = TimeUnit.MILLISECONDS.toNanos(options.getWriteBackMaxAge());
+
+        long period = Math.max(1, options.getWriteBackMaxAge() / 2);
+        flushScheduler = Executors.newScheduledThreadPool(1);
+        flushScheduler.scheduleAtFixedRate(this, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Buffers the write of size bytes at offset.
+     */
+    public int write(String inodeKey, Pointer buffer, long size, long offset) {
+        return write(inodeKey, null, buffer, size, offset);
+    }
+
+    /**
+     * Buffers the write of size bytes at offset through an open file, which
+     * keeps a reference to the buffered writes of the file, or null.
+     */
+    public int write(String inodeKey, OpenFile file, Pointer buffer, long size, long offset) {
+        if (size <= 0)
+            return 0;
+
+        byte[] bytes = new byte[(int) size];
+        buffer.get(0, bytes, 0, (int) size);
+
+        long fileDirty;
+        while (true) {
+            DirtyFile df = file != null ? file.getDirty() : null;
+            if (df == null || df.detached) {
+                df = files.computeIfAbsent(inodeKey, k -> new DirtyFile());
+                if (file != null)
+                    file.setDirty(df);
+            }
+            synchronized (df) {
+                if (df.detached)
+                    continue;
+                if (df.extents.isEmpty())
+                    df.dirtySince = System.nanoTime();
+                long delta = addExtent(df.extents, offset, bytes);
+                df.dirtyBytes += delta;
+                df.end = Math.max(df.end, offset + size);
+                totalDirty.addAndGet(delta);
+                fileDirty = df.dirtyBytes;
+                break;
+            }
+        }
+
+        if (fileDirty >= fileMax)
+            flush(inodeKey);
+        while (totalDirty.get() > totalMax && flushOldest())
+            ;
+        return (int) size;
+    }
+
+    /**
+     * Reads up to size bytes at offset like FsModel.readFile, through an open
+     * file or null, the ranges still buffered overlaying the content read from
+     * Antidote.
+     * 
+     * @return the number of bytes read, up to the end of the file including its
+     *         buffered writes
+     */
+    public int read(String inodeKey, OpenFile file, Pointer buffer, long size, long offset) {
+        // taken before reading Antidote, so that a concurrent flush is either
+        // in the overlay or read from Antidote
+        List<Entry<Long, byte[]>> overlay = new ArrayList<>();
+        long end = 0;
+        DirtyFile df = files.get(inodeKey);
+        if (df != null)
+            synchronized (df) {
+                if (!df.detached) {
+                    if (df.flushing != null)
+                        addOverlapping(df.flushing, offset, offset + size, overlay);
+                    addOverlapping(df.extents, offset, offset + size, overlay);
+                    end = df.end;
+                }
+            }
+
+        int read = file != null
+                ? fs.readFile(inodeKey, buffer, size, offset, file.getSize(), file.getReadahead())
+                : fs.readFile(inodeKey, buffer, size, offset, null);
+        long readEnd = Math.min(offset + size, Math.max(offset + read, end));
+        if (readEnd <= offset + read && overlay.isEmpty())
+            return read;
+        // a hole between the end in Antidote and the buffered writes
+        if (readEnd > offset + read)
+            buffer.setMemory(read, readEnd - offset - read, (byte) 0);
+        for (Entry<Long, byte[]> extent : overlay) {
+            long from = Math.max(offset, extent.getKey());
+            long to = Math.min(readEnd, extent.getKey() + extent.getValue().length);
+            if (from < to)
+                buffer.put(from - offset, extent.getValue(), (int) (from - extent.getKey()),
+                        (int) (to - from));
+        }
+        return (int) Math.max(read, readEnd - offset);
+    }
+
+    /**
+     * Writes the dirty ranges of a file to Antidote.
+     */
+    public void flush(String inodeKey) {
+        DirtyFile df = files.get(inodeKey);
+        if (df == null)
+            return;
+
+        synchronized (df.flushLock) {
+            TreeMap<Long, byte[]> extents;
+            long dirtyBytes;
+            synchronized (df) {
+                extents = df.extents;
+                dirtyBytes = df.dirtyBytes;
+                df.extents = new TreeMap<>();
+                df.dirtyBytes = 0;
+                df.flushing = extents;
+            }
+            try {
+                fs.writeExtents(inodeKey, extents);
+            } catch (RuntimeException e) {
+                // keep the data dirty, under the writes received in the meantime
+                synchronized (df) {
+                    df.flushing = null;
+                    TreeMap<Long, byte[]> newer = df.extents;
+                    long delta = 0;
+                    for (Entry<Long, byte[]> extent : newer.entrySet())
+                        delta += addExtent(extents, extent.getKey(), extent.getValue());
+                    totalDirty.addAndGet(delta - df.dirtyBytes);
+                    df.extents = extents;
+                    df.dirtyBytes = dirtyBytes + delta;
+                }
+                throw e;
+            }
+            totalDirty.addAndGet(-dirtyBytes);
+            synchronized (df) {
+                df.flushing = null;
+                if (df.extents.isEmpty()) {
+                    df.detached = true;
+                    files.remove(inodeKey, df);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the dirty ranges of all files to Antidote.
+     */
+    public void flushAll() {
+        for (String inodeKey : files.keySet())
+            flush(inodeKey);
+    }
+
+    /**
+     * Drops the dirty ranges of a file that no longer exists.
+     */
+    public void discard(String inodeKey) {
+        DirtyFile df = files.remove(inodeKey);
+        if (df != null)
+            synchronized (df) {
+                df.detached = true;
+                totalDirty.addAndGet(-df.dirtyBytes);
+                df.dirtyBytes = 0;
+                df.extents.clear();
+            }
+    }
+
+    /**
+     * @return the size of a file taking into account its buffered writes, given
+     *         its size in Antidote
+     */
+    public long getSize(String inodeKey, long storedSize) {
+        DirtyFile df = files.get(inodeKey);
+        return df == null ? storedSize : Math.max(storedSize, df.end);
+    }
+
+    public long getDirtyBytes() {
+        return totalDirty.get();
+    }
+
+    /**
+     * Flushes the remaining dirty data and stops the periodic flushes.
+     */
+    public void close() {
+        flushScheduler.shutdownNow();
+        flushAll();
+    }
+
+    /**
+     * Flushes the files whose dirty data is older than the max age.
+     */
+    @Override
+    public void run() {
+        long now = System.nanoTime();
+        for (Entry<String, DirtyFile> entry : files.entrySet()) {
+            DirtyFile df = entry.getValue();
+            boolean expired;
+            synchronized (df) {
+                expired = !df.extents.isEmpty() && now - df.dirtySince >= maxAgeNanos;
+            }
+            if (expired)
+                try {
+                    flush(entry.getKey());
+                } catch (RuntimeException e) {
+                    log.error("failed to flush " + entry.getKey(), e);
+                }
+        }
+    }
+
+    private boolean flushOldest() {
+        String oldestKey = null;
+        long oldestSince = Long.MAX_VALUE;
+        for (Entry<String, DirtyFile> entry : files.entrySet()) {
+            DirtyFile df = entry.getValue();
+            synchronized (df) {
+                if (!df.extents.isEmpty() && df.dirtySince < oldestSince) {
+                    oldestSince = df.dirtySince;
+                    oldestKey = entry.getKey();
+                }
+            }
+        }
+        if (oldestKey == null)
+            return false;
+        flush(oldestKey);
+        return true;
+    }
+
+    /**
+     * Adds to overlay a copy of the ranges of extents overlapping [from, to).
+     */
+    private static void addOverlapping(TreeMap<Long, byte[]> extents, long from, long to,
+            List<Entry<Long, byte[]>> overlay) {
+        Long first = extents.floorKey(from);
+        for (Entry<Long, byte[]> extent : extents
+                .subMap(first != null ? first : from, true, to, false).entrySet())
+            overlay.add(new SimpleImmutableEntry<>(extent));
+    }
+
+    /**
+     * Adds a range to a set of non-overlapping ones, trimming the parts of the
+     * existing ranges it overwrites.
+     * 
+     * @return the variation of the number of dirty bytes
+     */
+    private static long addExtent(TreeMap<Long, byte[]> extents, long offset, byte[] bytes) {
+        long end = offset + bytes.length;
+        long delta = bytes.length;
+
+        Entry<Long, byte[]> before = extents.lowerEntry(offset);
+        if (before != null && before.getKey() + before.getValue().length > offset) {
+            byte[] prev = before.getValue();
+            long prevEnd = before.getKey() + prev.length;
+            extents.put(before.getKey(),
+                    Arrays.copyOf(prev, (int) (offset - before.getKey())));
+            delta -= prevEnd - offset;
+            if (prevEnd > end) {
+                extents.put(end, Arrays.copyOfRange(prev, (int) (end - before.getKey()),
+                        prev.length));
+                delta += prevEnd - end;
+            }
+        }
+
+        Iterator<Entry<Long, byte[]>> it = extents.subMap(offset, true, end, false).entrySet()
+                .iterator();
+        byte[] tail = null;
+        long tailStart = 0;
+        while (it.hasNext()) {
+            Entry<Long, byte[]> next = it.next();
+            long nextEnd = next.getKey() + next.getValue().length;
+            delta -= next.getValue().length;
+            if (nextEnd > end) {
+                tail = Arrays.copyOfRange(next.getValue(), (int) (end - next.getKey()),
+                        next.getValue().length);
+                tailStart = end;
+                delta += tail.length;
+            }
+            it.remove();
+        }
+        if (tail != null)
+            extents.put(tailStart, tail);
+
+        extents.put(offset, bytes);
+        return delta;
+    }
+}
@@ -0,0 +1,57 @@
+package eu.antidotedb.fs;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import com.google.protobuf.ByteString;
+
+/**
+ * Test suite on the file content block cache.
+ */
+public class BlockCacheTest {
+
+    private static ByteString block(int size) {
+        return ByteString.copyFrom(new byte[size]);
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() {
+        BlockCache cache = new BlockCache(100, false, 60000);
+        cache.put("a", 1, block(40));
+        cache.put("b", 1, block(40));
+        assertNotNull(cache.get("a", 1)); // b is now the least recently used
+        cache.put("c", 1, block(40));
+
+        assertEquals(80, cache.getSize());
+        assertNotNull(cache.get("a", 1));
+        assertNull(cache.get("b", 1));
+        assertNotNull(cache.get("c", 1));
+        assertEquals(1, cache.getEvictions());
+        assertEquals(3, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void servesOnlyMatchingVersions() {
+        BlockCache cache = new BlockCache(100, true, 60000);
+        ByteString data = ByteString.copyFromUtf8("content");
+        cache.put("a", 1, data);
+        assertEquals(data, cache.get("a", 1));
+        assertNull(cache.get("a", 2));
+
+        cache.invalidate("a");
+        assertNull(cache.get("a", 1));
+        assertEquals(0, cache.getSize());
+    }
+
+    @Test
+    public void expiresStaleEntries() throws InterruptedException {
+        BlockCache cache = new BlockCache(100, false, 10);
+        cache.put("a", 1, block(10));
+        Thread.sleep(20);
+        assertNull(cache.get("a", 1));
+        cache.expire();
+        assertEquals(0, cache.getSize());
+    }
+}
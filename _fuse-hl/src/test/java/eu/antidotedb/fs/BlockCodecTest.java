@@ -0,0 +1,60 @@
+package eu.antidotedb.fs;
+
+import static org.junit.Assert.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.google.protobuf.ByteString;
+
+/**
+ * Test suite on the compression of file blocks.
+ */
+public class BlockCodecTest {
+
+    private static final Random random = new Random();
+
+    private static ByteString text(int size) {
+        StringBuilder text = new StringBuilder(size);
+        while (text.length() < size)
+            text.append("the quick brown fox jumps over the lazy dog ").append(text.length());
+        return ByteString.copyFrom(text.substring(0, size), StandardCharsets.US_ASCII);
+    }
+
+    @Test
+    public void compressesText() {
+        ByteString block = text(64 * 1024);
+        for (BlockCodec codec : new BlockCodec[] { BlockCodec.LZ4, BlockCodec.DEFLATE }) {
+            ByteString stored = codec.encode(block);
+            assertTrue(codec + ": " + stored.size(), stored.size() < block.size() / 2);
+            assertEquals(block, codec.decode(stored));
+        }
+    }
+
+    @Test
+    public void storesIncompressibleBlocksRaw() {
+        byte[] bytes = new byte[64 * 1024];
+        random.nextBytes(bytes);
+        ByteString block = ByteString.copyFrom(bytes);
+        for (BlockCodec codec : new BlockCodec[] { BlockCodec.LZ4, BlockCodec.DEFLATE }) {
+            ByteString stored = codec.encode(block);
+            assertEquals(block.size() + 1, stored.size());
+            assertEquals(block, codec.decode(stored));
+        }
+    }
+
+    @Test
+    public void noneKeepsBlocksAsIs() {
+        ByteString block = text(100);
+        assertSame(block, BlockCodec.NONE.encode(block));
+        assertSame(block, BlockCodec.NONE.decode(block));
+        for (BlockCodec codec : BlockCodec.values()) {
+            assertEquals(ByteString.EMPTY, codec.decode(codec.encode(ByteString.EMPTY)));
+            // reset blocks of reclaimed inodes
+            assertEquals(ByteString.EMPTY, codec.decode(ByteString.EMPTY));
+            assertEquals(codec, BlockCodec.of(codec.getId()));
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package eu.antidotedb.fs;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.protobuf.ByteString;
+
+/**
+ * Test suite on the disk tier of the file content cache.
+ */
+public class DiskCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void servesMatchingVersionsAfterReopening() {
+        File dir = new File(folder.getRoot(), "cache");
+        DiskCache cache = new DiskCache(dir, 1 << 20);
+        ByteString a = ByteString.copyFromUtf8("content of a");
+        cache.put("a", 1, a);
+        cache.put("b", 1, ByteString.copyFromUtf8("old b"));
+        cache.put("b", 2, ByteString.copyFromUtf8("new b"));
+        assertEquals(a, cache.get("a", 1));
+        cache.close();
+
+        cache = new DiskCache(dir, 1 << 20);
+        try {
+            assertEquals(2, cache.size());
+            assertEquals(a, cache.get("a", 1));
+            assertNull(cache.get("a", 2));
+            assertEquals(ByteString.copyFromUtf8("new b"), cache.get("b", 2));
+            assertNull(cache.get("b", 1));
+            assertEquals(2, cache.getHits());
+            assertEquals(2, cache.getMisses());
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void dropsDamagedRecordsOnLoad() throws IOException {
+        File dir = new File(folder.getRoot(), "cache");
+        DiskCache cache = new DiskCache(dir, 1 << 20);
+        cache.put("a", 1, ByteString.copyFromUtf8("aaaa"));
+        cache.put("b", 1, ByteString.copyFromUtf8("bbbb"));
+        cache.close();
+
+        // flip the last byte of b
+        File segment = dir.listFiles((d, name) -> name.startsWith("segment-"))[0];
+        try (RandomAccessFile raf = new RandomAccessFile(segment, "rw")) {
+            byte[] bytes = new byte[(int) raf.length()];
+            raf.readFully(bytes);
+            int last = new String(bytes, "ISO-8859-1").lastIndexOf("bbbb") + 3;
+            raf.seek(last);
+            raf.write('c');
+        }
+
+        cache = new DiskCache(dir, 1 << 20);
+        try {
+            assertNotNull(cache.get("a", 1));
+            assertNull(cache.get("b", 1));
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void evictsOldestSegments() {
+        File dir = new File(folder.getRoot(), "cache");
+        // segments of 64 bytes, a block each
+        DiskCache cache = new DiskCache(dir, 16 * 64);
+        try {
+            for (int i = 0; i < 20; i++)
+                cache.put("k" + i, 1, ByteString.copyFrom(new byte[32]));
+            assertEquals(4, cache.getEvictions());
+            assertEquals(16, dir.listFiles((d, name) -> name.startsWith("segment-")).length);
+            assertNull(cache.get("k3", 1));
+            assertNotNull(cache.get("k4", 1));
+            assertNotNull(cache.get("k19", 1));
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void directoryNotShared() {
+        File dir = new File(folder.getRoot(), "cache");
+        DiskCache cache = new DiskCache(dir, 1 << 20);
+        try {
+            new DiskCache(dir, 1 << 20);
+        } finally {
+            cache.close();
+        }
+    }
+}
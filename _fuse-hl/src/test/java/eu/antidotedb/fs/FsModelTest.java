@@ -0,0 +1,844 @@
+package eu.antidotedb.fs;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameter;
+import org.junit.runners.Parameterized.Parameters;
+
+import jnr.ffi.Memory;
+import jnr.ffi.Pointer;
+import jnr.ffi.Runtime;
+import ru.serce.jnrfuse.struct.FileStat;
+
+/**
+ * Test suite on FsModel, backed by the in-memory Antidote stand-in, run with
+ * both namespace layouts.
+ */
+@RunWith(Parameterized.class)
+public class FsModelTest extends AntidoteFsAbstractTest {
+
+    // small blocks, so that even short contents span several of them
+    private static final int BLOCK_SIZE = 16;
+
+    @Parameter
+    public boolean           dirMaps;
+
+    @Rule
+    public TemporaryFolder   folder = new TemporaryFolder();
+
+    private InMemoryBackend  backend;
+    private FsModel          fs;
+
+    @Parameters(name = "dirMaps={0}")
+    public static Collection<Object[]> layouts() {
+        return Arrays.asList(new Object[][] { { false }, { true } });
+    }
+
+    private FsOptions options() {
+        return new FsOptions().setBlockSize(BLOCK_SIZE).setDirMaps(dirMaps);
+    }
+
+    @Before
+    public void setUp() {
+        backend = new InMemoryBackend();
+        fs = new FsModel(backend, options());
+    }
+
+    @After
+    public void tearDown() {
+        fs.close();
+    }
+
+    private void write(String inodeKey, byte[] data, long offset) {
+        Pointer buf = Memory.allocateDirect(Runtime.getSystemRuntime(), data.length);
+        buf.put(0, data, 0, data.length);
+        assertEquals(data.length, fs.writeFile(inodeKey, buf, data.length, offset));
+    }
+
+    private byte[] read(String inodeKey, int size, long offset) {
+        Pointer buf = Memory.allocateDirect(Runtime.getSystemRuntime(), size);
+        int read = fs.readFile(inodeKey, buf, size, offset);
+        byte[] data = new byte[read];
+        buf.get(0, data, 0, read);
+        return data;
+    }
+
+    private long getSize(String inodeKey) {
+        FileStat stat = new FileStat(Runtime.getSystemRuntime());
+        fs.getAttr(inodeKey, stat);
+        return stat.st_size.get();
+    }
+
+    private HashSet<String> list(String path) {
+        return list(fs, path);
+    }
+
+    private static HashSet<String> list(FsModel fs, String path) {
+        HashSet<String> names = new HashSet<>();
+        fs.listDir(path, null, (buf, name, stbuf, off) -> {
+            byte[] bytes = new byte[name.remaining()];
+            name.get(bytes);
+            names.add(new String(bytes, StandardCharsets.UTF_8).replace("\0", ""));
+            return 0;
+        });
+        return names;
+    }
+
+    @Test
+    public void writeAndReadAcrossBlocks() {
+        fs.makeFile("/f");
+        String inodeKey = fs.getInodeKey("/f");
+
+        byte[] content = new byte[5 * BLOCK_SIZE + 3];
+        random.nextBytes(content);
+        write(inodeKey, content, 0);
+        assertEquals(content.length, getSize(inodeKey));
+        assertArrayEquals(content, read(inodeKey, content.length, 0));
+
+        // patch a range not aligned to blocks
+        byte[] patch = new byte[2 * BLOCK_SIZE];
+        random.nextBytes(patch);
+        write(inodeKey, patch, BLOCK_SIZE / 2);
+        System.arraycopy(patch, 0, content, BLOCK_SIZE / 2, patch.length);
+        assertArrayEquals(content, read(inodeKey, content.length, 0));
+        assertArrayEquals(Arrays.copyOfRange(content, 7, 40), read(inodeKey, 33, 7));
+
+        // reads past the end are truncated
+        assertArrayEquals(Arrays.copyOfRange(content, content.length - 2, content.length),
+                read(inodeKey, 100, content.length - 2));
+        assertEquals(0, read(inodeKey, 10, content.length).length);
+    }
+
+    @Test
+    public void largeReadsAcrossBatches() {
+        fs.makeFile("/f");
+        String inodeKey = fs.getInodeKey("/f");
+
+        // more blocks than fetched in a single request
+        byte[] content = new byte[20 * BLOCK_SIZE];
+        random.nextBytes(content);
+        write(inodeKey, content, 0);
+        assertArrayEquals(content, read(inodeKey, content.length, 0));
+        assertEquals(0, backend.getInFlight());
+    }
+
+    @Test
+    public void readsFromOffHeapCache() {
+        fs.close();
+        fs = new FsModel(backend, options().setCacheOffHeap(true));
+        fs.makeFile("/f");
+        String inodeKey = fs.getInodeKey("/f");
+
+        byte[] content = new byte[3 * BLOCK_SIZE + 1];
+        random.nextBytes(content);
+        write(inodeKey, content, 0);
+        assertArrayEquals(content, read(inodeKey, content.length, 0));
+        // served by the cache, from direct buffers
+        long hits = fs.getBlockCache().getHits();
+        assertArrayEquals(Arrays.copyOfRange(content, 5, 40), read(inodeKey, 35, 5));
+        assertTrue(fs.getBlockCache().getHits() > hits);
+    }
+
+    @Test
+    public void sequentialReadsPrefetched() {
+        byte[] data = new byte[64 * BLOCK_SIZE];
+        new Random(0).nextBytes(data);
+        fs.makeFile("/f");
+        String inodeKey = fs.getInodeKey("/f");
+        write(inodeKey, data, 0);
+
+        Readahead readahead = new Readahead(16 * BLOCK_SIZE);
+        Pointer buf = Memory.allocateDirect(Runtime.getSystemRuntime(), BLOCK_SIZE);
+        byte[] read = new byte[data.length];
+        long before = backend.getRoundTrips();
+        for (int off = 0; off < data.length; off += BLOCK_SIZE) {
+            assertEquals(BLOCK_SIZE, fs.readFile(inodeKey, buf, BLOCK_SIZE, off, readahead));
+            buf.get(0, read, off, BLOCK_SIZE);
+        }
+        assertArrayEquals(data, read);
+        // the manifest read once, the blocks being fetched in batches ahead
+        assertTrue(backend.getRoundTrips() - before < 64 / 4);
+
+        // served from the caches
+        before = backend.getRoundTrips();
+        for (int off = 0; off < data.length; off += BLOCK_SIZE) {
+            assertEquals(BLOCK_SIZE, fs.readFile(inodeKey, buf, BLOCK_SIZE, off, readahead));
+            buf.get(0, read, off, BLOCK_SIZE);
+        }
+        assertArrayEquals(data, read);
+        assertEquals(0, backend.getRoundTrips() - before);
+    }
+
+    @Test
+    public void manifestBytesReadBoundedAsFileGrows() {
+        FsModel metered = new FsModel(backend, options().setMetrics(true));
+        try {
+            Metrics metrics = metered.getMetrics();
+            String inodeKey = metered.makeFile("/f");
+            byte[] segment = new byte[Manifest.SEGMENT_BLOCKS * BLOCK_SIZE];
+            Pointer buf = Memory.allocateDirect(Runtime.getSystemRuntime(), segment.length);
+            metered.writeFile(inodeKey, buf, segment.length, 0);
+
+            long before = metrics.getMapBytesRead();
+            metered.readFile(inodeKey, buf, BLOCK_SIZE, segment.length - BLOCK_SIZE);
+            long small = metrics.getMapBytesRead() - before;
+
+            for (int i = 1; i < 8; i++)
+                metered.writeFile(inodeKey, buf, segment.length, i * segment.length);
+            before = metrics.getMapBytesRead();
+            metered.readFile(inodeKey, buf, BLOCK_SIZE, 8 * segment.length - BLOCK_SIZE);
+            // the inode and a single segment, not the manifest of the 8 of them
+            assertTrue(metrics.getMapBytesRead() - before < 2 * small);
+        } finally {
+            metered.close();
+        }
+    }
+
+    @Test
+    public void holesReadAsZeros() {
+        fs.makeFile("/f");
+        String inodeKey = fs.getInodeKey("/f");
+
+        byte[] tail = getRandomString().getBytes();
+        long tailOffset = 3 * BLOCK_SIZE + 5;
+        write(inodeKey, tail, tailOffset);
+        assertEquals(tailOffset + tail.length, getSize(inodeKey));
+
+        byte[] expected = new byte[(int) tailOffset + tail.length];
+        System.arraycopy(tail, 0, expected, (int) tailOffset, tail.length);
+        assertArrayEquals(expected, read(inodeKey, expected.length, 0));
+    }
+
+    @Test
+    public void truncateShrinksAndGrows() {
+        fs.makeFile("/f");
+        String inodeKey = fs.getInodeKey("/f");
+        byte[] content = new byte[5 * BLOCK_SIZE + 3];
+        random.nextBytes(content);
+        write(inodeKey, content, 0);
+        read(inodeKey, content.length, 0); // fill the cache
+
+        // shrink in the middle of a block
+        int shrunk = 2 * BLOCK_SIZE + 4;
+        fs.truncate(inodeKey, shrunk);
+        assertEquals(shrunk, getSize(inodeKey));
+        assertArrayEquals(Arrays.copyOf(content, shrunk), read(inodeKey, content.length, 0));
+
+        // grow: the bytes past the old end read as zeros
+        int grown = 4 * BLOCK_SIZE;
+        fs.truncate(inodeKey, grown);
+        assertEquals(grown, getSize(inodeKey));
+        assertArrayEquals(Arrays.copyOf(Arrays.copyOf(content, shrunk), grown),
+                read(inodeKey, grown, 0));
+
+        // truncate to zero, then rewrite
+        fs.truncate(inodeKey, 0);
+        assertEquals(0, getSize(inodeKey));
+        byte[] rewritten = new byte[BLOCK_SIZE + 1];
+        random.nextBytes(rewritten);
+        write(inodeKey, rewritten, 0);
+        assertArrayEquals(rewritten, read(inodeKey, 100, 0));
+    }
+
+    @Test
+    public void namespaceCrud() {
+        fs.makeDir("/d");
+        fs.makeFile("/d/f1");
+        fs.makeFile("/d/f2");
+        fs.makeDir("/d/sub");
+        fs.makeFile("/d/sub/f3");
+        assertTrue(fs.isDirectory(fs.getInodeKey("/d/sub")));
+        assertFalse(fs.isDirectory(fs.getInodeKey("/d/f1")));
+        assertEquals(new HashSet<>(Arrays.asList("f1", "f2", "sub")), list("/d"));
+        assertEquals(new HashSet<>(Arrays.asList("d")), list("/"));
+
+        // rename a file
+        String f1Key = fs.getInodeKey("/d/f1");
+        fs.rename(f1Key, "/d/f1", "/d/g1");
+        assertNull(fs.getInodeKey("/d/f1"));
+        assertEquals(f1Key, fs.getInodeKey("/d/g1"));
+
+        // rename a directory together with its descendants
+        String f3Key = fs.getInodeKey("/d/sub/f3");
+        fs.rename(fs.getInodeKey("/d"), "/d", "/e");
+        assertNull(fs.getInodeKey("/d"));
+        assertNull(fs.getInodeKey("/d/sub/f3"));
+        assertEquals(f3Key, fs.getInodeKey("/e/sub/f3"));
+        assertEquals(new HashSet<>(Arrays.asList("g1", "f2", "sub")), list("/e"));
+
+        fs.removePath("/e/f2");
+        assertNull(fs.getInodeKey("/e/f2"));
+        assertEquals(new HashSet<>(Arrays.asList("g1", "sub")), list("/e"));
+    }
+
+    @Test
+    public void renameDoesNotMoveSiblingsSharingPrefix() {
+        fs.makeDir("/d");
+        fs.makeFile("/d/f");
+        fs.makeDir("/dd");
+        fs.makeFile("/dd/f");
+        assertEquals(new HashSet<>(Arrays.asList("f")), list("/d"));
+
+        fs.rename(fs.getInodeKey("/d"), "/d", "/e");
+        assertNotNull(fs.getInodeKey("/e/f"));
+        assertNotNull(fs.getInodeKey("/dd/f"));
+        assertNull(fs.getInodeKey("/ed/f"));
+        assertEquals(new HashSet<>(Arrays.asList("dd", "e")), list("/"));
+    }
+
+    @Test
+    public void refreshAppliesRemoteRenamesAtomically() throws Exception {
+        FsModel remote = new FsModel(backend, options());
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        try {
+            remote.makeDir("/d");
+            for (int i = 0; i < 100; i++)
+                remote.makeFile("/d/f" + i);
+            String dKey = remote.getInodeKey("/d");
+            fs.run();
+
+            AtomicBoolean done = new AtomicBoolean();
+            Future<HashSet<Integer>> sizes = pool.submit(() -> {
+                HashSet<Integer> seen = new HashSet<>();
+                do {
+                    seen.add(list("/d").size());
+                    seen.add(list("/e").size());
+                } while (!done.get());
+                return seen;
+            });
+            for (int i = 0; i < 20; i++) {
+                remote.rename(dKey, i % 2 == 0 ? "/d" : "/e", i % 2 == 0 ? "/e" : "/d");
+                fs.run();
+            }
+            done.set(true);
+            // a listing never sees some of the files moved only
+            assertEquals(new HashSet<>(Arrays.asList(0, 100)), sizes.get(30, TimeUnit.SECONDS));
+        } finally {
+            pool.shutdownNow();
+            remote.close();
+        }
+    }
+
+    @Test
+    public void refreshAppliesRemoteChanges() {
+        FsModel remote = new FsModel(backend, options());
+        try {
+            remote.makeDir("/d");
+            remote.makeFile("/d/f");
+            assertNull(fs.getInodeKey("/d/f"));
+
+            fs.run();
+            assertEquals(remote.getInodeKey("/d/f"), fs.getInodeKey("/d/f"));
+            assertEquals(new HashSet<>(Arrays.asList("f")), list("/d"));
+
+            String dKey = remote.getInodeKey("/d");
+            remote.rename(dKey, "/d", "/e");
+            remote.removePath("/e/f");
+            fs.run();
+            assertNull(fs.getInodeKey("/d"));
+            assertEquals(dKey, fs.getInodeKey("/e"));
+            assertNull(fs.getInodeKey("/e/f"));
+            assertEquals(new HashSet<>(Arrays.asList("e")), list("/"));
+        } finally {
+            remote.close();
+        }
+    }
+
+    @Test
+    public void refreshCostIndependentOfLoadedDirs() {
+        FsModel metered = new FsModel(backend, options().setMetrics(true));
+        FsModel remote = new FsModel(backend, options());
+        try {
+            Metrics metrics = metered.getMetrics();
+            for (int i = 0; i < 20; i++) {
+                remote.makeDir("/d" + i);
+                remote.makeFile("/d" + i + "/f");
+            }
+            remote.makeDir("/a");
+            metered.run();
+            list(metered, "/a");
+            remote.makeFile("/a/f");
+            long before = metrics.getMapBytesRead();
+            metered.run();
+            long oneDir = metrics.getMapBytesRead() - before;
+
+            for (int i = 0; i < 20; i++)
+                list(metered, "/d" + i);
+            remote.makeFile("/a/g");
+            before = metrics.getMapBytesRead();
+            metered.run();
+            // the log segment, one record longer, not the directories loaded
+            assertTrue(metrics.getMapBytesRead() - before < oneDir * 11 / 10);
+            assertEquals(new HashSet<>(Arrays.asList("f", "g")), list(metered, "/a"));
+        } finally {
+            remote.close();
+            metered.close();
+        }
+    }
+
+    @Test
+    public void directoryLoadsOverlap() throws Exception {
+        // the single-map layout has nothing to load
+        assumeTrue(dirMaps);
+        InMemoryBackend slowBackend = new InMemoryBackend(50, TimeUnit.MILLISECONDS);
+        FsModel writer = new FsModel(slowBackend, options());
+        for (int i = 0; i < 4; i++) {
+            writer.makeDir("/d" + i);
+            writer.makeFile("/d" + i + "/f");
+        }
+        writer.close();
+
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        FsModel first = new FsModel(slowBackend, options());
+        FsModel second = new FsModel(slowBackend, options());
+        try {
+            long start = System.nanoTime();
+            assertNotNull(first.getInodeKey("/d0/f"));
+            long single = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            List<Future<String>> lookups = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                String path = "/d" + i + "/f";
+                lookups.add(pool.submit(() -> second.getInodeKey(path)));
+            }
+            for (Future<String> lookup : lookups)
+                assertNotNull(lookup.get());
+            // the root read once, then the directories read in parallel
+            assertTrue(System.nanoTime() - start < 2 * single);
+        } finally {
+            pool.shutdown();
+            first.close();
+            second.close();
+        }
+    }
+
+    // the number of records logged by all mounts
+    private long getLogRecords() {
+        StoredMap registry = backend.noTransaction().readMap(ChangeLog.REGISTRY_MAP);
+        long records = 0;
+        for (String key : registry.keySet())
+            if (!key.contains("."))
+                records += registry.getInteger(key, 0L);
+        return records;
+    }
+
+    @Test
+    public void dirRenameLoggedOnce() {
+        FsModel remote = new FsModel(backend, options());
+        try {
+            fs.makeDir("/d");
+            fs.makeDir("/d/e");
+            for (int i = 0; i < 20; i++)
+                fs.makeFile("/d/e/f" + i);
+            remote.run();
+            assertNotNull(remote.getInodeKey("/d/e/f0"));
+
+            long before = getLogRecords();
+            fs.rename(fs.getInodeKey("/d"), "/d", "/g");
+            // a single move, or the entry removed and added
+            assertTrue(getLogRecords() - before <= 2);
+            remote.run();
+            assertNull(remote.getInodeKey("/d"));
+            assertNull(remote.getInodeKey("/d/e/f0"));
+            for (int i = 0; i < 20; i++)
+                assertEquals(fs.getInodeKey("/g/e/f" + i), remote.getInodeKey("/g/e/f" + i));
+            assertEquals(20, list(remote, "/g/e").size());
+        } finally {
+            remote.close();
+        }
+    }
+
+    @Test
+    public void idleRegistrationsExpire() {
+        FsModel gone = new FsModel(backend, options());
+        gone.makeFile("/f");
+        gone.close();
+        // last seen long ago, like the mount of this test
+        StoredMap registry = backend.noTransaction().readMap(ChangeLog.REGISTRY_MAP);
+        MapUpdate stale = new MapUpdate();
+        for (String key : registry.keySet())
+            if (key.endsWith(ChangeLog.SEEN_SUFFIX))
+                stale.assign(key, 0L);
+        backend.noTransaction().updateMap(ChangeLog.REGISTRY_MAP, stale);
+
+        FsModel other = new FsModel(backend, options().setFullRefreshPeriod(0));
+        try {
+            other.run();
+            assertTrue(backend.noTransaction().readMap(ChangeLog.REGISTRY_MAP).keySet().isEmpty());
+            assertNotNull(other.getInodeKey("/f"));
+
+            // the expired mount registers again under a new id
+            fs.run();
+            fs.makeFile("/g");
+            assertEquals(1, getLogRecords());
+            other.run();
+            assertNotNull(other.getInodeKey("/g"));
+        } finally {
+            other.close();
+        }
+    }
+
+    @Test
+    public void refreshesAndCommitsShareOneConnection() throws Exception {
+        FsModel single = new FsModel(new InMemoryBackend(1, TimeUnit.MILLISECONDS, 1), options());
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        try {
+            Future<?> commits = pool.submit(() -> {
+                for (int i = 0; i < 50; i++)
+                    single.makeFile("/f" + i);
+            });
+            Future<?> refreshes = pool.submit(() -> {
+                while (!commits.isDone())
+                    single.run();
+            });
+            // no deadlock between the refreshes and the commits waiting for the
+            // connection
+            commits.get(30, TimeUnit.SECONDS);
+            refreshes.get(30, TimeUnit.SECONDS);
+            for (int i = 0; i < 50; i++)
+                assertNotNull(single.getInodeKey("/f" + i));
+        } finally {
+            pool.shutdownNow();
+            single.close();
+        }
+    }
+
+    @Test
+    public void nonPositiveBlockSizeFallsBackToDefault() {
+        for (int size : new int[] { 0, -1 }) {
+            FsModel model = new FsModel(backend, options().setBlockSize(size));
+            try {
+                String inodeKey = model.makeFile("/b" + (-size));
+                byte[] content = new byte[100];
+                random.nextBytes(content);
+                Pointer buf = Memory.allocateDirect(Runtime.getSystemRuntime(), content.length);
+                buf.put(0, content, 0, content.length);
+                assertEquals(content.length, model.writeFile(inodeKey, buf, content.length, 0));
+                assertEquals(128 * 1024, backend.noTransaction().readMap(inodeKey)
+                        .getInteger(FsModel.BLOCK_SIZE, 0L));
+                byte[] read = new byte[content.length];
+                assertEquals(content.length, model.readFile(inodeKey, buf, content.length, 0));
+                buf.get(0, read, 0, read.length);
+                assertArrayEquals(content, read);
+            } finally {
+                model.close();
+            }
+        }
+    }
+
+    @Test
+    public void nonPositiveRefreshPeriodFallsBackToDefault() {
+        for (int period : new int[] { 0, -1 }) {
+            FsModel model = new FsModel(backend, options().setRefreshPeriod(period));
+            try {
+                assertEquals(5000, model.getRefreshPeriod());
+                // backs off from the default, up to 8 times it
+                for (int i = 0; i < 5; i++)
+                    model.run();
+                assertEquals(8 * 5000, model.getRefreshPeriod());
+            } finally {
+                model.close();
+            }
+        }
+    }
+
+    @Test
+    public void missingPathsCachedUntilCreated() {
+        NegativeCache negativeCache = fs.getNegativeCache();
+        assertNull(fs.getInodeKey("/f"));
+        assertNull(fs.getInodeKey("/f"));
+        assertEquals(1, negativeCache.getHits());
+
+        fs.makeFile("/f");
+        assertNotNull(fs.getInodeKey("/f"));
+
+        // the descendants of a moved directory are no longer missing
+        fs.makeDir("/d");
+        fs.makeFile("/d/g");
+        assertNull(fs.getInodeKey("/e/g"));
+        fs.rename(fs.getInodeKey("/d"), "/d", "/e");
+        assertNotNull(fs.getInodeKey("/e/g"));
+        assertNull(fs.getInodeKey("/d/g"));
+    }
+
+    @Test
+    public void localChangesAppliedInPlace() {
+        long before = backend.getRoundTrips();
+        fs.makeFile("/f");
+        long perCreate = backend.getRoundTrips() - before;
+        assertNotNull(fs.getInodeKey("/f"));
+
+        for (int i = 0; i < 100; i++)
+            fs.makeFile("/g" + i);
+        // creating does not read the paths map back, whatever its size
+        before = backend.getRoundTrips();
+        fs.makeFile("/h");
+        assertEquals(perCreate, backend.getRoundTrips() - before);
+
+        fs.rename(fs.getInodeKey("/h"), "/h", "/i");
+        fs.removePath("/f");
+        assertNull(fs.getInodeKey("/f"));
+        assertNotNull(fs.getInodeKey("/i"));
+        assertNull(fs.getInodeKey("/h"));
+    }
+
+    @Test
+    public void groupCommitMergesConcurrentChanges() throws Exception {
+        FsModel grouped = new FsModel(backend,
+                options().setGroupCommitWindow(50).setGroupCommitMax(64).setMetrics(true));
+        try {
+            grouped.makeDir("/d");
+            long before = grouped.getMetrics().getTransactions();
+            AtomicReference<Throwable> failure = new AtomicReference<>();
+            Thread[] threads = new Thread[32];
+            for (int i = 0; i < threads.length; i++) {
+                String path = "/d/f" + i;
+                threads[i] = new Thread(() -> {
+                    grouped.makeFile(path);
+                    // visible in memory, and committed once created
+                    String inodeKey = grouped.getInodeKey(path);
+                    if (inodeKey == null || backend.noTransaction().readMap(inodeKey).size() == 0)
+                        failure.set(new AssertionError(path + " not committed"));
+                });
+                threads[i].start();
+            }
+            for (Thread thread : threads)
+                thread.join();
+            assertTrue(grouped.getMetrics().getTransactions() - before < threads.length);
+            assertNull(failure.get());
+            assertEquals(threads.length, list(grouped, "/d").size());
+
+            // another mount reads them all from the store
+            FsModel other = new FsModel(backend, options());
+            try {
+                assertEquals(threads.length, list(other, "/d").size());
+            } finally {
+                other.close();
+            }
+        } finally {
+            grouped.close();
+        }
+    }
+
+    @Test
+    public void compressedFilesStoreFewerBytes() {
+        byte[] content = new byte[20 * 1024];
+        for (int i = 0; i < content.length; i++)
+            content[i] = (byte) ('a' + i % 7);
+        long[] written = new long[2];
+        String[] inodeKeys = new String[2];
+        for (int i = 0; i < 2; i++) {
+            FsModel model = new FsModel(backend, options().setBlockSize(4096).setMetrics(true)
+                    .setCompression(i == 0 ? BlockCodec.NONE : BlockCodec.LZ4));
+            try {
+                inodeKeys[i] = model.makeFile("/f" + i);
+                Pointer buf = Memory.allocateDirect(Runtime.getSystemRuntime(), content.length);
+                buf.put(0, content, 0, content.length);
+                long before = model.getMetrics().getBytesWritten();
+                model.writeFile(inodeKeys[i], buf, content.length, 0);
+                written[i] = model.getMetrics().getBytesWritten() - before;
+                model.truncate(inodeKeys[i], 10000);
+            } finally {
+                model.close();
+            }
+        }
+        assertTrue(written[1] < written[0] / 4);
+
+        // the codec is read from the inode, whatever the options of the mount
+        for (String inodeKey : inodeKeys)
+            assertArrayEquals(Arrays.copyOf(content, 10000), read(inodeKey, 20000, 0));
+    }
+
+    @Test
+    public void dedupStoresIdenticalBlocksOnce() {
+        FsModel dedup = new FsModel(backend,
+                options().setBlockSize(4096).setDedup(true).setMetrics(true));
+        try {
+            byte[] content = new byte[8 * 4096];
+            random.nextBytes(content);
+            Pointer buf = Memory.allocateDirect(Runtime.getSystemRuntime(), content.length);
+            buf.put(0, content, 0, content.length);
+            long[] written = new long[2];
+            String[] inodeKeys = new String[2];
+            for (int i = 0; i < 2; i++) {
+                inodeKeys[i] = dedup.makeFile("/f" + i);
+                long before = dedup.getMetrics().getBytesWritten();
+                dedup.writeFile(inodeKeys[i], buf, content.length, 0);
+                written[i] = dedup.getMetrics().getBytesWritten() - before;
+            }
+            // no block of the second file is uploaded
+            assertEquals(content.length, written[0]);
+            assertEquals(0, written[1]);
+
+            assertArrayEquals(content, read(inodeKeys[1], content.length, 0));
+
+            // written through a mount without dedup, a file diverges alone
+            byte[] patch = new byte[100];
+            random.nextBytes(patch);
+            write(inodeKeys[1], patch, 4000);
+            fs.truncate(inodeKeys[1], 5000);
+            byte[] expected = Arrays.copyOf(content, 5000);
+            System.arraycopy(patch, 0, expected, 4000, patch.length);
+            assertArrayEquals(expected, read(inodeKeys[1], content.length, 0));
+            assertArrayEquals(content, read(inodeKeys[0], content.length, 0));
+        } finally {
+            dedup.close();
+        }
+    }
+
+    @Test
+    public void listingFetchesAttributesInBatches() {
+        fs.makeDir("/d");
+        for (int i = 0; i < 100; i++)
+            write(fs.makeFile("/d/f" + i), new byte[i], 0);
+
+        // a mount with no attribute cached
+        FsModel other = new FsModel(backend, options().setReaddirBatch(32));
+        try {
+            other.getInodeKey("/d/f0"); // loads /d
+            long before = backend.getRoundTrips();
+            HashSet<Long> sizes = new HashSet<>();
+            other.listDir("/d", null, (buf, name, stbuf, off) -> {
+                FileStat stat = FileStat.of(stbuf);
+                assertEquals(FileStat.S_IFREG, stat.st_mode.get() & FileStat.S_IFMT);
+                sizes.add(stat.st_size.longValue());
+                return 0;
+            });
+            assertEquals(4, backend.getRoundTrips() - before);
+            assertEquals(100, sizes.size());
+
+            // served from the attribute cache
+            for (int i = 0; i < 100; i++) {
+                FileStat stat = new FileStat(Runtime.getSystemRuntime());
+                other.getAttr(other.getInodeKey("/d/f" + i), stat);
+                assertEquals(i, stat.st_size.get());
+            }
+            assertEquals(4, backend.getRoundTrips() - before);
+        } finally {
+            other.close();
+        }
+    }
+
+    @Test
+    public void diskCacheServesContentAfterRemount() {
+        String diskCache = new File(folder.getRoot(), "cache").getPath();
+        byte[] content = new byte[10 * BLOCK_SIZE];
+        new Random(0).nextBytes(content);
+        String inodeKey = fs.makeFile("/f");
+        write(inodeKey, content, 0);
+
+        FsModel cached = new FsModel(backend, options().setDiskCache(diskCache));
+        assertEquals(content.length, cached.readFile(inodeKey,
+                Memory.allocateDirect(Runtime.getSystemRuntime(), content.length),
+                content.length, 0));
+        cached.close();
+
+        // a new process, with an empty memory cache, and no attribute cache
+        // hiding the change below
+        cached = new FsModel(backend, options().setDiskCache(diskCache).setAttrTtl(0));
+        try {
+            Pointer buf = Memory.allocateDirect(Runtime.getSystemRuntime(), content.length);
+            long before = backend.getRoundTrips();
+            assertEquals(content.length, cached.readFile(inodeKey, buf, content.length, 0));
+            assertEquals(1, backend.getRoundTrips() - before); // the manifest only
+            byte[] data = new byte[content.length];
+            buf.get(0, data, 0, data.length);
+            assertArrayEquals(content, data);
+
+            // changed by another mount
+            write(inodeKey, new byte[] { 1, 2, 3 }, 0);
+            cached.readFile(inodeKey, buf, 3, 0);
+            buf.get(0, data, 0, 3);
+            assertArrayEquals(new byte[] { 1, 2, 3 }, Arrays.copyOf(data, 3));
+        } finally {
+            cached.close();
+        }
+    }
+
+    @Test
+    public void renameReplacesTarget() {
+        fs.makeFile("/f");
+        fs.makeFile("/g");
+        String fKey = fs.getInodeKey("/f");
+        fs.rename(fKey, "/f", "/g");
+        assertNull(fs.getInodeKey("/f"));
+        assertEquals(fKey, fs.getInodeKey("/g"));
+
+        fs.makeDir("/d");
+        fs.makeFile("/d/f");
+        fs.makeDir("/e");
+        String dKey = fs.getInodeKey("/d");
+        fs.rename(dKey, "/d", "/e");
+        assertEquals(dKey, fs.getInodeKey("/e"));
+        assertNotNull(fs.getInodeKey("/e/f"));
+        assertEquals(new HashSet<>(Arrays.asList("e", "g")), list("/"));
+    }
+
+    @Test
+    public void dirRenameIndependentOfSubtreeSize() {
+        assumeTrue(dirMaps);
+        fs.makeDir("/small");
+        fs.makeDir("/large");
+        for (int i = 0; i < 100; i++)
+            fs.makeFile("/large/f" + i);
+
+        long before = backend.getRoundTrips();
+        fs.rename(fs.getInodeKey("/small"), "/small", "/small2");
+        long smallRename = backend.getRoundTrips() - before;
+        before = backend.getRoundTrips();
+        fs.rename(fs.getInodeKey("/large"), "/large", "/large2");
+        assertEquals(smallRename, backend.getRoundTrips() - before);
+        assertNotNull(fs.getInodeKey("/large2/f99"));
+    }
+
+    @Test
+    public void metadataCommitsOverlap() throws Exception {
+        FsModel slow = new FsModel(new InMemoryBackend(50, TimeUnit.MILLISECONDS), options());
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            long start = System.nanoTime();
+            slow.makeFile("/a");
+            long single = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            List<Future<String>> creates = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                String path = "/f" + i;
+                creates.add(pool.submit(() -> slow.makeFile(path)));
+            }
+            for (Future<String> create : creates)
+                create.get();
+            // one after the other, they would take 4 times as long
+            assertTrue(System.nanoTime() - start < 2 * single);
+            for (int i = 0; i < 4; i++)
+                assertNotNull(slow.getInodeKey("/f" + i));
+        } finally {
+            pool.shutdown();
+            slow.close();
+        }
+    }
+}
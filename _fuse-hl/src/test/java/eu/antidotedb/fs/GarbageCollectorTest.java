@@ -0,0 +1,179 @@
+package eu.antidotedb.fs;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameter;
+import org.junit.runners.Parameterized.Parameters;
+
+import jnr.ffi.Memory;
+import jnr.ffi.Pointer;
+import jnr.ffi.Runtime;
+
+/**
+ * Test suite on GarbageCollector, backed by the in-memory Antidote stand-in,
+ * run with both namespace layouts.
+ */
+@RunWith(Parameterized.class)
+public class GarbageCollectorTest {
+
+    private static final int BLOCK_SIZE = 16;
+
+    @Parameter
+    public boolean           dirMaps;
+
+    private InMemoryBackend  backend;
+    private FsModel          fs;
+
+    @Parameters(name = "dirMaps={0}")
+    public static Collection<Object[]> layouts() {
+        return Arrays.asList(new Object[][] { { false }, { true } });
+    }
+
+    private FsOptions options() {
+        // collected on demand, with no grace period
+        return new FsOptions().setBlockSize(BLOCK_SIZE).setDirMaps(dirMaps).setGcPeriod(0)
+                .setGcGracePeriod(0).setGcRate(0);
+    }
+
+    @Before
+    public void setUp() {
+        backend = new InMemoryBackend();
+        fs = new FsModel(backend, options());
+    }
+
+    @After
+    public void tearDown() {
+        fs.close();
+    }
+
+    private String makeFile(String path, int size) {
+        fs.makeFile(path);
+        String inodeKey = fs.getInodeKey(path);
+        Pointer buf = Memory.allocateDirect(Runtime.getSystemRuntime(), size);
+        fs.writeFile(inodeKey, buf, size, 0);
+        return inodeKey;
+    }
+
+    @Test
+    public void reclaimsUnlinkedInodes() {
+        String fKey = makeFile("/f", 3 * BLOCK_SIZE + 1);
+        fs.makeDir("/d");
+        String dKey = fs.getInodeKey("/d");
+        String kept = makeFile("/g", BLOCK_SIZE);
+
+        fs.removePath("/f");
+        fs.removePath("/d");
+        GarbageCollector gc = fs.getGarbageCollector();
+        assertEquals(2, gc.collect());
+        assertEquals(3 * BLOCK_SIZE + 1, gc.getReclaimedBytes());
+        assertEquals(0, backend.noTransaction().readMap(fKey).size());
+        assertEquals(0, backend.noTransaction().readMap(dKey).size());
+        assertEquals(0, backend.noTransaction().readMap(Manifest.getSegmentKey(fKey, 0)).size());
+        assertTrue(backend.noTransaction().readRegister(fKey + "#0").isEmpty());
+        assertNotEquals(0, backend.noTransaction().readMap(kept).size());
+
+        // nothing left to collect
+        assertEquals(0, gc.collect());
+    }
+
+    @Test
+    public void keepsInodesStillReachable() {
+        String fKey = makeFile("/f", BLOCK_SIZE);
+        fs.makeDir("/d");
+        // as if another mount had concurrently moved the unlinked inode
+        fs.rename(fKey, "/f", "/d/f");
+        fs.getGarbageCollector().unlinked(fKey);
+
+        assertEquals(0, fs.getGarbageCollector().collect());
+        assertNotEquals(0, backend.noTransaction().readMap(fKey).size());
+    }
+
+    @Test
+    public void replacedTargetIsReclaimed() {
+        String fKey = makeFile("/f", BLOCK_SIZE);
+        String gKey = makeFile("/g", BLOCK_SIZE);
+        fs.rename(fKey, "/f", "/g");
+
+        assertEquals(1, fs.getGarbageCollector().collect());
+        assertEquals(0, backend.noTransaction().readMap(gKey).size());
+        assertNotEquals(0, backend.noTransaction().readMap(fKey).size());
+    }
+
+    @Test
+    public void sharedBlocksReclaimedWithLastReferrer() {
+        FsModel dedup = new FsModel(backend, options().setDedup(true));
+        try {
+            byte[] content = new byte[2 * BLOCK_SIZE];
+            new Random().nextBytes(content);
+            String fKey = writeFile(dedup, "/f", content);
+            writeFile(dedup, "/g", content);
+            String contentKey = backend.noTransaction()
+                    .readMap(Manifest.getSegmentKey(fKey, 0)).getString(FsModel.HASH_PREFIX + 0);
+
+            GarbageCollector gc = dedup.getGarbageCollector();
+            dedup.removePath("/f");
+            assertEquals(1, gc.collect());
+            // the blocks of /f are still referred to by /g
+            assertEquals(0, gc.collect());
+            assertFalse(backend.noTransaction().readRegister(contentKey).isEmpty());
+
+            dedup.removePath("/g");
+            assertEquals(1, gc.collect());
+            assertEquals(2, gc.collect());
+            assertEquals(2, gc.getReclaimedBlocks());
+            assertTrue(backend.noTransaction().readRegister(contentKey).isEmpty());
+            assertEquals(0, gc.collect());
+        } finally {
+            dedup.close();
+        }
+    }
+
+    @Test
+    public void blocksAwaitingCollectionNotReused() {
+        FsModel dedup = new FsModel(backend, options().setDedup(true));
+        try {
+            byte[] content = new byte[BLOCK_SIZE];
+            new Random().nextBytes(content);
+            String fKey = writeFile(dedup, "/f", content);
+            String contentKey = backend.noTransaction()
+                    .readMap(Manifest.getSegmentKey(fKey, 0)).getString(FsModel.HASH_PREFIX + 0);
+            GarbageCollector gc = dedup.getGarbageCollector();
+            dedup.removePath("/f");
+            assertEquals(1, gc.collect());
+
+            // the content is stored again, under another key than the one
+            // about to be reset
+            String gKey = writeFile(dedup, "/g", content);
+            String newKey = backend.noTransaction()
+                    .readMap(Manifest.getSegmentKey(gKey, 0)).getString(FsModel.HASH_PREFIX + 0);
+            assertNotEquals(contentKey, newKey);
+            assertEquals(1, gc.collect());
+            assertTrue(backend.noTransaction().readRegister(contentKey).isEmpty());
+            assertFalse(backend.noTransaction().readRegister(newKey).isEmpty());
+
+            // later writes share it
+            String hKey = writeFile(dedup, "/h", content);
+            assertEquals(newKey, backend.noTransaction()
+                    .readMap(Manifest.getSegmentKey(hKey, 0)).getString(FsModel.HASH_PREFIX + 0));
+        } finally {
+            dedup.close();
+        }
+    }
+
+    private static String writeFile(FsModel model, String path, byte[] content) {
+        String inodeKey = model.makeFile(path);
+        Pointer buf = Memory.allocateDirect(Runtime.getSystemRuntime(), content.length);
+        buf.put(0, content, 0, content.length);
+        model.writeFile(inodeKey, buf, content.length, 0);
+        return inodeKey;
+    }
+}
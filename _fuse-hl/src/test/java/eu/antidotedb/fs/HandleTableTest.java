@@ -0,0 +1,112 @@
+package eu.antidotedb.fs;
+
+import static org.junit.Assert.*;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+import jnr.ffi.Memory;
+import jnr.ffi.Pointer;
+import jnr.ffi.Runtime;
+import ru.serce.jnrfuse.struct.FileStat;
+import ru.serce.jnrfuse.struct.FuseFileInfo;
+
+/**
+ * Test suite on the open file handles.
+ */
+public class HandleTableTest {
+
+    @Test
+    public void reusesReleasedHandles() {
+        HandleTable handles = new HandleTable();
+        long a = handles.open("a", 0640, 0);
+        long b = handles.open("b", 0640, 0);
+        assertNotEquals(0, a);
+        assertNotEquals(a, b);
+        assertEquals("b", handles.get(b).getInodeKey());
+
+        assertEquals("a", handles.release(a).getInodeKey());
+        assertNull(handles.get(a));
+        assertNull(handles.release(a));
+        assertEquals(a, handles.open("c", 0640, 0));
+        assertNull(handles.get(0));
+        assertEquals(2, handles.size());
+    }
+
+    @Test
+    public void growsBeyondInitialCapacity() {
+        HandleTable handles = new HandleTable();
+        for (int i = 0; i < 1000; i++)
+            assertEquals(i + 1, handles.open("f" + i, 0640, 0));
+        for (int i = 0; i < 1000; i++)
+            assertEquals("f" + i, handles.get(i + 1).getInodeKey());
+        assertNull(handles.get(1001));
+    }
+
+    @Test
+    public void openFileOutlivesUnlink() {
+        AntidoteFs fs = new AntidoteFs(new InMemoryBackend(), new FsOptions());
+        try {
+            Runtime runtime = Runtime.getSystemRuntime();
+            Pointer buf = Memory.allocateDirect(runtime, 10);
+            buf.putString(0, "content", 10, StandardCharsets.UTF_8);
+            FuseFileInfo fi = new FuseFileInfo(runtime);
+            assertEquals(0, fs.create("/f", 0, fi));
+            assertEquals(7, fs.write("/f", buf, 7, 0, fi));
+            assertEquals(0, fs.flush("/f", fi));
+
+            FuseFileInfo fi2 = new FuseFileInfo(runtime);
+            assertEquals(0, fs.open("/f", fi2));
+            assertNotEquals(fi.fh.get(), fi2.fh.get());
+            assertEquals(0, fs.unlink("/f"));
+
+            Pointer out = Memory.allocateDirect(runtime, 10);
+            assertEquals(7, fs.read("/f", out, 10, 0, fi2));
+            assertEquals("content", out.getString(0, 7, StandardCharsets.UTF_8));
+
+            assertEquals(0, fs.release("/f", fi));
+            assertEquals(0, fs.release("/f", fi2));
+            assertEquals(0, fs.getHandles().size());
+        } finally {
+            fs.destroy(null);
+        }
+    }
+
+    @Test
+    public void getattrOnOpenFileSkipsLookup() {
+        InMemoryBackend backend = new InMemoryBackend();
+        // without the attribute cache, a getattr by path reads the inode
+        AntidoteFs fs = new AntidoteFs(backend, new FsOptions().setAttrTtl(0));
+        try {
+            Runtime runtime = Runtime.getSystemRuntime();
+            Pointer buf = Memory.allocateDirect(runtime, 10);
+            FuseFileInfo fi = new FuseFileInfo(runtime);
+            assertEquals(0, fs.create("/f", 0, fi));
+            assertEquals(7, fs.write("/f", buf, 7, 0, fi));
+            assertEquals(0, fs.flush("/f", fi));
+            FuseFileInfo fi2 = new FuseFileInfo(runtime);
+            assertEquals(0, fs.open("/f", fi2));
+
+            FileStat stat = new FileStat(runtime);
+            long roundTrips = backend.getRoundTrips();
+            assertEquals(0, fs.fgetattr("/f", stat, fi2));
+            assertEquals(7, stat.st_size.get());
+            assertEquals(FileStat.S_IFREG, stat.st_mode.get() & FileStat.S_IFMT);
+            assertEquals(roundTrips, backend.getRoundTrips());
+            // truncated through the other open file
+            assertEquals(0, fs.ftruncate("/f", 3, fi));
+            roundTrips = backend.getRoundTrips();
+            assertEquals(0, fs.fgetattr("/f", stat, fi2));
+            assertEquals(3, stat.st_size.get());
+            assertEquals(roundTrips, backend.getRoundTrips());
+
+            assertEquals(0, fs.getattr("/f", stat));
+            assertNotEquals(roundTrips, backend.getRoundTrips());
+            assertEquals(0, fs.release("/f", fi));
+            assertEquals(0, fs.release("/f", fi2));
+        } finally {
+            fs.destroy(null);
+        }
+    }
+}
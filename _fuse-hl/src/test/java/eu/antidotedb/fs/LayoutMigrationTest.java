@@ -0,0 +1,89 @@
+package eu.antidotedb.fs;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.HashSet;
+
+import org.junit.Test;
+
+import com.google.protobuf.ByteString;
+
+import jnr.ffi.Memory;
+import jnr.ffi.Pointer;
+import jnr.ffi.Runtime;
+
+/**
+ * Test suite on LayoutMigration, backed by the in-memory Antidote stand-in.
+ */
+public class LayoutMigrationTest {
+
+    @Test
+    public void migratesSingleMapVolume() {
+        InMemoryBackend backend = new InMemoryBackend();
+        FsModel fs = new FsModel(backend, new FsOptions());
+        fs.makeDir("/d");
+        fs.makeDir("/d/sub");
+        fs.makeFile("/d/sub/f");
+        fs.makeFile("/g");
+        String fKey = fs.getInodeKey("/d/sub/f");
+        fs.close();
+
+        assertEquals(4, LayoutMigration.migrate(backend));
+        assertEquals(1, backend.noTransaction().readMap(PathsNamespace.PATHS_MAP).size());
+        // running it again is harmless
+        assertEquals(0, LayoutMigration.migrate(backend));
+
+        fs = new FsModel(backend, new FsOptions().setDirMaps(true));
+        try {
+            assertEquals(fKey, fs.getInodeKey("/d/sub/f"));
+            assertNotNull(fs.getInodeKey("/g"));
+            HashSet<String> names = new HashSet<>();
+            fs.listDir("/", null, (buf, name, stbuf, off) -> {
+                byte[] bytes = new byte[name.remaining()];
+                name.get(bytes);
+                names.add(new String(bytes).replace("\0", ""));
+                return 0;
+            });
+            assertEquals(new HashSet<>(Arrays.asList("d", "g")), names);
+        } finally {
+            fs.close();
+        }
+    }
+
+    @Test
+    public void splitsLegacyContentIntoBlocks() {
+        InMemoryBackend backend = new InMemoryBackend();
+        FsModel fs = new FsModel(backend, new FsOptions());
+        String fKey = fs.makeFile("/f");
+        fs.close();
+        // rewrite the inode as written before block manifests
+        byte[] content = new byte[250];
+        for (int i = 0; i < content.length; i++)
+            content[i] = (byte) i;
+        try (BackendTransaction tx = backend.startTransaction()) {
+            tx.updateMap(fKey, new MapUpdate().removeInteger(FsModel.BLOCK_SIZE)
+                    .assign(FsModel.SIZE, content.length)
+                    .assign(LayoutMigration.CONTENT, ByteString.copyFrom(content)));
+            tx.commit();
+        }
+
+        assertEquals(1, LayoutMigration.migrateContent(backend, 100));
+        StoredMap inode = backend.noTransaction().readMap(fKey);
+        assertNull(inode.getRegister(LayoutMigration.CONTENT));
+        assertEquals(100, inode.getInteger(FsModel.BLOCK_SIZE, 0));
+        // running it again is harmless
+        assertEquals(0, LayoutMigration.migrateContent(backend, 100));
+
+        fs = new FsModel(backend, new FsOptions());
+        try {
+            Pointer buf = Memory.allocateDirect(Runtime.getSystemRuntime(), content.length);
+            assertEquals(content.length, fs.readFile(fKey, buf, content.length, 0));
+            byte[] read = new byte[content.length];
+            buf.get(0, read, 0, read.length);
+            assertArrayEquals(content, read);
+        } finally {
+            fs.close();
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package eu.antidotedb.fs;
+
+import static org.junit.Assert.*;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.management.ThreadMXBean;
+
+import eu.antidotedb.fs.Metrics.Op;
+import jnr.ffi.Memory;
+import jnr.ffi.Pointer;
+import jnr.ffi.Runtime;
+import ru.serce.jnrfuse.ErrorCodes;
+import ru.serce.jnrfuse.struct.FileStat;
+
+/**
+ * Test suite on the metrics of a mount, backed by the in-memory Antidote
+ * stand-in.
+ */
+public class MetricsTest {
+
+    private AntidoteFs fs;
+    private Metrics    metrics;
+
+    @Before
+    public void setUp() {
+        fs = new AntidoteFs(new InMemoryBackend(),
+                new FsOptions().setMetrics(true).setWriteBackTotalMax(0));
+        metrics = fs.getMetrics();
+    }
+
+    @After
+    public void tearDown() {
+        fs.destroy(null);
+    }
+
+    @Test
+    public void recordsOperationsAndStorageRequests() {
+        Pointer buf = Memory.allocateDirect(Runtime.getSystemRuntime(), 1000);
+        assertEquals(0, fs.create("/f", 0, null));
+        assertEquals(1000, fs.write("/f", buf, 1000, 0, null));
+        assertEquals(1000, fs.read("/f", buf, 1000, 0, null));
+        FileStat stat = new FileStat(Runtime.getSystemRuntime());
+        assertEquals(-ErrorCodes.ENOENT(), fs.getattr("/g", stat));
+
+        assertEquals(1, metrics.getStats(Op.CREATE).getCount());
+        assertEquals(1, metrics.getStats(Op.WRITE).getCount());
+        assertEquals(1, metrics.getStats(Op.READ).getCount());
+        assertEquals(0, metrics.getStats(Op.READ).getErrors());
+        assertEquals(1, metrics.getStats(Op.GETATTR).getErrors());
+        assertTrue(metrics.getStats(Op.READ).getMax() >= metrics.getStats(Op.READ).getP50());
+        assertEquals(1000, metrics.getBytesWritten());
+        assertEquals(1000, metrics.getBytesRead());
+        assertTrue(metrics.getStorageReads() > 0);
+        assertTrue(metrics.getTransactions() > 0);
+        assertTrue(metrics.getMapBytesRead() > 0);
+        assertTrue(metrics.getMapBytesWritten() > 0);
+    }
+
+    @Test
+    public void recordsSerializedSizeOfMaps() {
+        MeteredBackend backend = new MeteredBackend(new InMemoryBackend(), metrics);
+        long written = metrics.getMapBytesWritten();
+        try (BackendTransaction tx = backend.startTransaction()) {
+            tx.updateMap("m", new MapUpdate().assign("k", "value").assign("n", 300));
+            tx.commit();
+        }
+        // tag-less lengths and varints: 1 + 1, 1 + 5, 1 + 1, 2
+        assertEquals(12, metrics.getMapBytesWritten() - written);
+
+        long read = metrics.getMapBytesRead();
+        backend.noTransaction().readMap("m");
+        assertEquals(12, metrics.getMapBytesRead() - read);
+        backend.readMapsAsync(Arrays.asList("m", "missing")).join();
+        assertEquals(24, metrics.getMapBytesRead() - read);
+    }
+
+    @Test
+    public void registersMBeans() throws Exception {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName read = new ObjectName("eu.antidotedb.fs:type=Operation,name=read,*");
+        int before = server.queryNames(read, null).size();
+        assertTrue(before > 0);
+
+        fs.create("/f", 0, null);
+        ObjectName create = server
+                .queryNames(new ObjectName("eu.antidotedb.fs:type=Operation,name=create,*"), null)
+                .iterator().next();
+        assertNotNull(server.getAttribute(create, "P99"));
+
+        fs.destroy(null);
+        assertEquals(before - 1, server.queryNames(read, null).size());
+        setUp(); // destroyed again by tearDown
+    }
+
+    @Test
+    public void recordingDoesNotAllocate() {
+        ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        for (int i = 0; i < 10000; i++) // warm up
+            metrics.end(Op.GETATTR, metrics.start(), 0);
+        long allocated = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < 100000; i++) {
+            metrics.end(Op.GETATTR, metrics.start(), -1);
+            metrics.storageRead(metrics.start(), 10);
+        }
+        assertTrue(threads.getThreadAllocatedBytes(thread) - allocated < 10000);
+    }
+
+    @Test
+    public void meteringMapReadsDoesNotAllocate() {
+        InMemoryBackend backend = new InMemoryBackend();
+        MeteredBackend metered = new MeteredBackend(backend, metrics);
+        MapUpdate update = new MapUpdate();
+        for (int i = 0; i < 1000; i++)
+            update.assign("k" + i, "value" + i);
+        backend.noTransaction().updateMap("m", update);
+        List<String> keys = Arrays.asList("m");
+
+        ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        for (int i = 0; i < 10000; i++) { // warm up
+            metered.noTransaction().readMap("m");
+            metered.noTransaction().readMaps(keys);
+        }
+        long allocated = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < 10000; i++)
+            backend.noTransaction().readMaps(keys);
+        long unmetered = threads.getThreadAllocatedBytes(thread) - allocated;
+        allocated = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < 10000; i++)
+            metered.noTransaction().readMaps(keys);
+        // not a byte per entry read
+        assertTrue(threads.getThreadAllocatedBytes(thread) - allocated - unmetered < 10000);
+    }
+}
@@ -0,0 +1,91 @@
+package eu.antidotedb.fs;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.TreeMap;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Test suite on NamespaceSnapshot, and the remount of PathsNamespace from it.
+ */
+public class NamespaceSnapshotTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void savesAndLoadsBindings() throws IOException {
+        TreeMap<String, String> bindings = new TreeMap<>();
+        bindings.put("/", "D_root");
+        bindings.put("/d", "D_1");
+        bindings.put("/d/f", "F_2");
+        // sharing a high surrogate with the next path
+        bindings.put("/d/\ud83d\ude00", "F_3");
+        bindings.put("/d/\ud83d\ude01", "F_4");
+        bindings.put("/e", "F_5");
+        HashMap<String, Long> cursors = new HashMap<>();
+        cursors.put("mount", 42L);
+        File file = new File(folder.getRoot(), "paths");
+        NamespaceSnapshot.save(file, bindings, cursors);
+
+        NamespaceSnapshot snapshot = NamespaceSnapshot.load(file);
+        assertEquals(bindings, snapshot.getPathIndex().getBindings());
+        assertEquals(cursors, snapshot.getCursors());
+        assertEquals(new HashSet<>(Arrays.asList("f", "\ud83d\ude00", "\ud83d\ude01")),
+                snapshot.getPathIndex().getChildren("/d"));
+    }
+
+    @Test
+    public void ignoresMissingOrDamagedSnapshots() throws IOException {
+        File file = new File(folder.getRoot(), "paths");
+        assertNull(NamespaceSnapshot.load(file));
+
+        TreeMap<String, String> bindings = new TreeMap<>();
+        bindings.put("/", "D_root");
+        NamespaceSnapshot.save(file, bindings, Collections.emptyMap());
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        Files.write(file.toPath(), Arrays.copyOf(bytes, bytes.length - 1));
+        assertNull(NamespaceSnapshot.load(file));
+    }
+
+    @Test
+    public void remountServesSnapshotThenCatchesUp() {
+        InMemoryBackend backend = new InMemoryBackend();
+        FsOptions options = new FsOptions()
+                .setSnapshot(new File(folder.getRoot(), "paths").getPath());
+        FsModel fs = new FsModel(backend, options);
+        fs.makeDir("/d");
+        fs.makeFile("/d/f");
+        fs.close();
+
+        FsModel other = new FsModel(backend, new FsOptions());
+        other.makeFile("/g");
+        other.removePath("/d/f");
+
+        // the paths map is not read
+        long before = backend.getRoundTrips();
+        PathsNamespace namespace = new PathsNamespace(backend, options);
+        try {
+            assertEquals(before, backend.getRoundTrips());
+            assertNotNull(namespace.getInodeKey("/d/f"));
+            assertNull(namespace.getInodeKey("/g"));
+
+            assertTrue(namespace.refresh());
+            assertNull(namespace.getInodeKey("/d/f"));
+            assertEquals(other.getInodeKey("/g"), namespace.getInodeKey("/g"));
+        } finally {
+            namespace.close();
+            other.close();
+        }
+    }
+}
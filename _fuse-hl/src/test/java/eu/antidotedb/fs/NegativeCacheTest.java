@@ -0,0 +1,55 @@
+package eu.antidotedb.fs;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * Test suite on the cache of missing paths.
+ */
+public class NegativeCacheTest {
+
+    @Test
+    public void evictsLeastRecentlyUsed() {
+        NegativeCache cache = new NegativeCache(2, 60000);
+        cache.putMissing("/a", cache.getGeneration());
+        cache.putMissing("/b", cache.getGeneration());
+        assertTrue(cache.isMissing("/a")); // /b is now the least recently used
+        cache.putMissing("/c", cache.getGeneration());
+
+        assertTrue(cache.isMissing("/a"));
+        assertFalse(cache.isMissing("/b"));
+        assertTrue(cache.isMissing("/c"));
+    }
+
+    @Test
+    public void ignoresMissesRacingWithInvalidations() {
+        NegativeCache cache = new NegativeCache(10, 60000);
+        long generation = cache.getGeneration();
+        cache.invalidate("/a"); // created while /a was looked up
+        cache.putMissing("/a", generation);
+        assertFalse(cache.isMissing("/a"));
+    }
+
+    @Test
+    public void invalidatesTrees() {
+        NegativeCache cache = new NegativeCache(10, 60000);
+        for (String path : new String[] { "/d", "/d/f", "/d/e/f", "/dd" })
+            cache.putMissing(path, cache.getGeneration());
+        cache.invalidateTree("/d");
+        assertFalse(cache.isMissing("/d"));
+        assertFalse(cache.isMissing("/d/f"));
+        assertFalse(cache.isMissing("/d/e/f"));
+        assertTrue(cache.isMissing("/dd"));
+    }
+
+    @Test
+    public void expiresEntries() throws InterruptedException {
+        NegativeCache cache = new NegativeCache(10, 10);
+        cache.putMissing("/a", cache.getGeneration());
+        Thread.sleep(20);
+        assertFalse(cache.isMissing("/a"));
+        cache.expire();
+        assertEquals(0, cache.size());
+    }
+}
@@ -0,0 +1,86 @@
+package eu.antidotedb.fs;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.Test;
+
+/**
+ * Test suite on the detection of sequential reads.
+ */
+public class ReadaheadTest {
+
+    private static final long KB = 1024;
+
+    private final List<long[]>                  prefetches = new ArrayList<>();
+    private final List<CompletableFuture<Void>> futures    = new ArrayList<>();
+
+    private CompletableFuture<Void> prefetch(long from, long to) {
+        prefetches.add(new long[] { from, to });
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        futures.add(future);
+        return future;
+    }
+
+    @Test
+    public void growsWindowOnSequentialReads() {
+        Readahead readahead = new Readahead(1024 * KB);
+        readahead.onRead(0, 128 * KB, 1 << 30, this::prefetch);
+        assertTrue(prefetches.isEmpty()); // a single read is no stream
+
+        readahead.onRead(128 * KB, 128 * KB, 1 << 30, this::prefetch);
+        assertArrayEquals(new long[] { 256 * KB, 512 * KB }, prefetches.get(0));
+
+        // the reader is still more than half a window away from the end
+        readahead.onRead(256 * KB, 64 * KB, 1 << 30, this::prefetch);
+        assertEquals(1, prefetches.size());
+
+        readahead.onRead(320 * KB, 128 * KB, 1 << 30, this::prefetch);
+        assertArrayEquals(new long[] { 512 * KB, 960 * KB }, prefetches.get(1));
+        assertEquals(512 * KB, readahead.getWindow());
+
+        for (long off = 448 * KB; off < 8192 * KB; off += 128 * KB)
+            readahead.onRead(off, 128 * KB, 1 << 30, this::prefetch);
+        assertEquals(1024 * KB, readahead.getWindow());
+    }
+
+    @Test
+    public void cancelsOnRandomAccess() {
+        Readahead readahead = new Readahead(1024 * KB);
+        readahead.onRead(0, 128 * KB, 1 << 30, this::prefetch);
+        readahead.onRead(128 * KB, 128 * KB, 1 << 30, this::prefetch);
+        assertEquals(1, futures.size());
+
+        readahead.onRead(10240 * KB, 128 * KB, 1 << 30, this::prefetch);
+        assertTrue(futures.get(0).isCancelled());
+        assertEquals(0, readahead.getWindow());
+        assertEquals(1, prefetches.size());
+    }
+
+    @Test
+    public void stopsAtEndOfFile() {
+        Readahead readahead = new Readahead(1024 * KB);
+        readahead.onRead(0, 128 * KB, 300 * KB, this::prefetch);
+        readahead.onRead(128 * KB, 128 * KB, 300 * KB, this::prefetch);
+        assertArrayEquals(new long[] { 256 * KB, 300 * KB }, prefetches.get(0));
+        readahead.onRead(256 * KB, 44 * KB, 300 * KB, this::prefetch);
+        assertEquals(1, prefetches.size());
+    }
+
+    @Test
+    public void prefetchesOutsideTheLock() {
+        Readahead readahead = new Readahead(1024 * KB);
+        readahead.onRead(0, 128 * KB, 1 << 30, this::prefetch);
+        readahead.onRead(128 * KB, 128 * KB, 1 << 30, (from, to) -> {
+            assertFalse(Thread.holdsLock(readahead));
+            // the file released while the prefetch is issued
+            readahead.cancel();
+            return prefetch(from, to);
+        });
+        assertEquals(1, prefetches.size());
+        assertTrue(futures.get(0).isCancelled());
+    }
+}
@@ -7,11 +7,13 @@ import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.io.RandomAccessFile;
 import java.nio.file.DirectoryIteratorException;
 import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.stream.Collectors;
 
@@ -75,6 +77,72 @@ public class SequentialTest extends AntidoteFsAbstractTest {
         assertFalse("file mustn't exist", file.exists());
     }
 
+    @Test
+    public void multiBlockFileCrud() throws Exception {
+        // spans several blocks and ends in the middle of one
+        byte[] content = new byte[3 * 128 * 1024 + 1000];
+        random.nextBytes(content);
+
+        File file = new File(rootDir.toAbsolutePath() + separator + getRandomString());
+        Files.write(file.toPath(), content);
+        assertArrayEquals("file content doesn't match what was written", content,
+                Files.readAllBytes(file.toPath()));
+
+        // overwrite a range across a block boundary
+        byte[] patch = new byte[5000];
+        random.nextBytes(patch);
+        int patchOffset = 128 * 1024 - 2000;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(patchOffset);
+            raf.write(patch);
+        }
+        System.arraycopy(patch, 0, content, patchOffset, patch.length);
+        assertArrayEquals("file content doesn't match what was written", content,
+                Files.readAllBytes(file.toPath()));
+
+        // write past the end, leaving a hole that reads as zeros
+        byte[] tail = getRandomString().getBytes();
+        int tailOffset = content.length + 200 * 1024;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(tailOffset);
+            raf.write(tail);
+        }
+        byte[] expected = new byte[tailOffset + tail.length];
+        System.arraycopy(content, 0, expected, 0, content.length);
+        System.arraycopy(tail, 0, expected, tailOffset, tail.length);
+        assertArrayEquals("file content doesn't match what was written", expected,
+                Files.readAllBytes(file.toPath()));
+
+        assertTrue("file can't be deleted", file.delete());
+    }
+
+    @Test
+    public void truncateFile() throws Exception {
+        byte[] content = new byte[2 * 128 * 1024 + 1000];
+        random.nextBytes(content);
+        File file = new File(rootDir.toAbsolutePath() + separator + getRandomString());
+        Files.write(file.toPath(), content);
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(1000);
+        }
+        assertArrayEquals("file content doesn't match the truncated one",
+                Arrays.copyOf(content, 1000), Files.readAllBytes(file.toPath()));
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(5000);
+        }
+        assertArrayEquals("file content isn't zero-extended",
+                Arrays.copyOf(Arrays.copyOf(content, 1000), 5000),
+                Files.readAllBytes(file.toPath()));
+
+        // O_TRUNC
+        String content2 = getRandomString();
+        Files.write(file.toPath(), content2.getBytes());
+        assertEquals("file content doesn't match what was written", content2,
+                new String(Files.readAllBytes(file.toPath())));
+    }
+
     @Test
     public void createEmptyFile() throws Exception {
         File file = new File(rootDir.toAbsolutePath() + separator + getRandomString());
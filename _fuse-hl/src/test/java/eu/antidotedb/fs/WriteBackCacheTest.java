@@ -0,0 +1,119 @@
+package eu.antidotedb.fs;
+
+import static org.junit.Assert.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import jnr.ffi.Memory;
+import jnr.ffi.Pointer;
+import jnr.ffi.Runtime;
+
+/**
+ * Test suite on the write-back of file content, backed by the in-memory Antidote
+ * stand-in.
+ */
+public class WriteBackCacheTest extends AntidoteFsAbstractTest {
+
+    private InMemoryBackend backend;
+    private FsModel         fs;
+    private WriteBackCache  writeBack;
+    private String          inodeKey;
+
+    @Before
+    public void setUp() {
+        backend = new InMemoryBackend();
+        FsOptions options = new FsOptions().setBlockSize(16).setWriteBackFileMax(1024)
+                .setWriteBackTotalMax(4096).setWriteBackMaxAge(60000);
+        fs = new FsModel(backend, options);
+        writeBack = new WriteBackCache(fs, options);
+        fs.makeFile("/f");
+        inodeKey = fs.getInodeKey("/f");
+    }
+
+    @After
+    public void tearDown() {
+        writeBack.close();
+        fs.close();
+    }
+
+    private void write(byte[] data, long offset) {
+        Pointer buf = Memory.allocateDirect(Runtime.getSystemRuntime(), data.length);
+        buf.put(0, data, 0, data.length);
+        assertEquals(data.length, writeBack.write(inodeKey, buf, data.length, offset));
+    }
+
+    private byte[] read(int size, long offset) {
+        Pointer buf = Memory.allocateDirect(Runtime.getSystemRuntime(), size);
+        int read = fs.readFile(inodeKey, buf, size, offset);
+        byte[] data = new byte[read];
+        buf.get(0, data, 0, read);
+        return data;
+    }
+
+    @Test
+    public void coalescesWrites() {
+        byte[] content = new byte[100];
+        random.nextBytes(content);
+
+        long roundTrips = backend.getRoundTrips();
+        for (int off = 0; off < content.length; off += 10) {
+            byte[] chunk = new byte[10];
+            System.arraycopy(content, off, chunk, 0, 10);
+            write(chunk, off);
+        }
+        // overwrite a range across two buffered writes
+        byte[] patch = new byte[15];
+        random.nextBytes(patch);
+        write(patch, 35);
+        System.arraycopy(patch, 0, content, 35, patch.length);
+
+        assertEquals("buffered writes must not reach the backend", roundTrips,
+                backend.getRoundTrips());
+        assertEquals(content.length, writeBack.getDirtyBytes());
+        assertEquals(content.length, writeBack.getSize(inodeKey, 0));
+        assertEquals(0, read(content.length, 0).length);
+
+        writeBack.flush(inodeKey);
+        assertEquals(0, writeBack.getDirtyBytes());
+        assertArrayEquals(content, read(content.length, 0));
+    }
+
+    @Test
+    public void readsBufferedWritesWithoutFlushing() {
+        byte[] content = new byte[100];
+        random.nextBytes(content);
+        write(content, 0);
+        writeBack.flush(inodeKey);
+
+        // patches over the stored content, and past its end after a hole
+        byte[] patch = new byte[20];
+        random.nextBytes(patch);
+        write(patch, 50);
+        write(patch, 130);
+        byte[] expected = new byte[150];
+        System.arraycopy(content, 0, expected, 0, content.length);
+        System.arraycopy(patch, 0, expected, 50, patch.length);
+        System.arraycopy(patch, 0, expected, 130, patch.length);
+
+        Pointer buf = Memory.allocateDirect(Runtime.getSystemRuntime(), 200);
+        assertEquals(expected.length, writeBack.read(inodeKey, null, buf, 200, 0));
+        byte[] data = new byte[expected.length];
+        buf.get(0, data, 0, data.length);
+        assertArrayEquals(expected, data);
+        assertEquals(10, writeBack.read(inodeKey, null, buf, 10, 140));
+        // still buffered
+        assertEquals(2 * patch.length, writeBack.getDirtyBytes());
+        assertEquals(content.length, read(200, 0).length);
+    }
+
+    @Test
+    public void flushesOverFileMax() {
+        byte[] content = new byte[1500];
+        random.nextBytes(content);
+        write(content, 0);
+        assertEquals(0, writeBack.getDirtyBytes());
+        assertArrayEquals(content, read(content.length, 0));
+    }
+}